@@ -2,88 +2,225 @@ package com.imddy.frp.agent;
 
 import com.imddy.frp.agent.config.AgentConfig;
 import com.imddy.frp.agent.handler.ServerConnectionHandler;
+import com.imddy.frp.agent.proxy.AgentTunnel;
 import com.imddy.frp.agent.proxy.ProxyConnectionManager;
 import com.imddy.frp.common.codec.MessageCodec;
+import com.imddy.frp.common.codec.WriteBatchHandler;
+import com.imddy.frp.common.compress.CompressionStats;
+import com.imddy.frp.common.transport.Transport;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
 import io.netty.handler.codec.LengthFieldPrepender;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
+import io.netty.handler.timeout.ReadTimeoutHandler;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
 @Slf4j
 public class FrpAgent {
     private final AgentConfig config;
-    private final ProxyConnectionManager connectionManager;
+    private final Transport transport;
     private final EventLoopGroup workerGroup;
-    private Channel serverChannel;
+    // 服务的所有隧道，各自连接自己的目标服务
+    private final List<AgentTunnel> tunnels = new ArrayList<>();
+    // 所有链路共享的压缩统计
+    private final CompressionStats compressionStats = new CompressionStats();
+    // 非UDP隧道共用connections条链路，每个UDP隧道单独connections条
+    private final List<Link> links = new ArrayList<>();
     private volatile boolean running = true;
 
     public FrpAgent(AgentConfig config) {
         this.config = config;
-        this.connectionManager = new ProxyConnectionManager();
-        this.workerGroup = new NioEventLoopGroup();
+        // 启动前检查心跳间隔
+        config.resolveHeartbeatIntervalSeconds();
+        if (config.getAgentId() == null || config.getAgentId().isEmpty()) {
+            config.setAgentId(UUID.randomUUID().toString().substring(0, 8));
+        }
+        this.transport = Transport.select(config.getTransport());
+        this.workerGroup = transport.newEventLoopGroup();
+        List<AgentTunnel> shared = new ArrayList<>();
+        for (AgentConfig tunnelConfig : config.resolveTunnels()) {
+            AgentTunnel tunnel = new AgentTunnel(tunnelConfig, workerGroup, transport);
+            tunnels.add(tunnel);
+            if (tunnel.getUdpRelay() != null) {
+                addLinks(List.of(tunnel));
+            } else {
+                shared.add(tunnel);
+            }
+        }
+        if (!shared.isEmpty()) {
+            addLinks(shared);
+        }
+    }
+
+    private void addLinks(List<AgentTunnel> group) {
+        int connections = Math.max(1, config.getConnections());
+        for (int i = 0; i < connections; i++) {
+            links.add(new Link(links.size(), group, workerGroup.next()));
+        }
     }
 
     public void start() {
-        connect();
+        for (AgentTunnel tunnel : tunnels) {
+            tunnel.start();
+        }
+        for (Link link : links) {
+            connect(link);
+        }
     }
 
-    private void connect() {
-        Bootstrap bootstrap = new Bootstrap();
-        bootstrap.group(workerGroup)
-                .channel(NioSocketChannel.class)
+    private void connect(Link link) {
+        ServerConnectionHandler handler = new ServerConnectionHandler(link.tunnels, link.connectionManager,
+                link.handler, () -> link.reconnectAttempts = 0);
+        link.handler = handler;
+        Bootstrap bootstrap = transport.configure(new Bootstrap());
+        bootstrap.group(link.loop)
                 .option(ChannelOption.SO_KEEPALIVE, true)
+                // 链路由所有流共享，出站缓冲区超过高水位时各流暂停读取
+                .option(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(512 * 1024, 1024 * 1024))
                 .handler(new LoggingHandler(LogLevel.INFO))
                 .handler(new ChannelInitializer<SocketChannel>() {
                     @Override
                     protected void initChannel(SocketChannel ch) throws Exception {
                         ChannelPipeline pipeline = ch.pipeline();
+                        if (config.getHeartbeatTimeoutSeconds() > 0) {
+                            pipeline.addLast(new ReadTimeoutHandler(config.getHeartbeatTimeoutSeconds()));
+                        }
                         pipeline.addLast(new LengthFieldBasedFrameDecoder(1024 * 1024, 0, 4, 0, 4));
                         pipeline.addLast(new LengthFieldPrepender(4));
-                        pipeline.addLast(new MessageCodec());
-                        pipeline.addLast(new ServerConnectionHandler(config, connectionManager, workerGroup));
+                        pipeline.addLast(new MessageCodec(config.getCompression(), compressionStats));
+                        if (config.getBatch().isEnabled()) {
+                            pipeline.addLast(new WriteBatchHandler(config.getBatch()));
+                        }
+                        pipeline.addLast(handler);
                     }
                 });
 
         String host = config.getFrpTunnel().getHost();
         int port = config.getFrpTunnel().getPort();
+        int index = link.index;
 
         bootstrap.connect(host, port).addListener((ChannelFutureListener) future -> {
             if (future.isSuccess()) {
-                serverChannel = future.channel();
-                log.info("Connected to FRP Server: {}:{}", host, port);
+                Channel serverChannel = future.channel();
+                link.channel = serverChannel;
+                log.info("Connected to FRP Server: {}:{}, agent: {}, link: {}/{}, tunnels: {}, transport: {}",
+                        host, port, config.getAgentId(), index + 1, links.size(), link.tunnels.size(), transport.getName());
 
-                // 监听连接断开，自动重连
+                // 监听连接断开，自动重连；只影响这条链路上的流
                 serverChannel.closeFuture().addListener((ChannelFutureListener) closeFuture -> {
                     if (running) {
-                        log.warn("Connection lost, reconnecting in 5 seconds...");
-                        workerGroup.schedule(this::connect, 5, TimeUnit.SECONDS);
+                        long delay = nextReconnectDelay(link);
+                        log.warn("Connection lost, link: {}, reconnecting in {} ms...", index + 1, delay);
+                        link.loop.schedule(() -> connect(link), delay, TimeUnit.MILLISECONDS);
                     }
                 });
             } else {
-                log.error("Failed to connect to FRP Server: {}:{}, retrying in 5 seconds...",
-                        host, port, future.cause());
+                long delay = nextReconnectDelay(link);
+                log.error("Failed to connect to FRP Server: {}:{}, link: {}, retrying in {} ms...",
+                        host, port, index + 1, delay, future.cause());
                 if (running) {
-                    workerGroup.schedule(this::connect, 5, TimeUnit.SECONDS);
+                    link.loop.schedule(() -> connect(link), delay, TimeUnit.MILLISECONDS);
                 }
             }
         });
     }
 
+    // 指数退避，在上限的一半到全部之间随机，避免服务端恢复时所有Agent同时重连
+    private long nextReconnectDelay(Link link) {
+        AgentConfig.Reconnect reconnect = config.getReconnect();
+        int attempt = Math.min(link.reconnectAttempts++, 30);
+        long ceiling = Math.min(reconnect.getMaxDelayMillis(), reconnect.getInitialDelayMillis() << attempt);
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
     public void stop() {
         running = false;
-        if (serverChannel != null) {
-            serverChannel.close();
+        drain();
+        for (Link link : links) {
+            if (link.channel != null) {
+                link.channel.close();
+            }
+        }
+        for (Link link : links) {
+            if (link.handler != null) {
+                link.handler.close();
+            }
+        }
+        for (Link link : links) {
+            link.connectionManager.closeAll();
+        }
+        for (AgentTunnel tunnel : tunnels) {
+            tunnel.close();
         }
-        connectionManager.closeAll();
         workerGroup.shutdownGracefully();
         log.info("FRP Agent stopped");
     }
+
+    // 通知服务端不再分配新连接，等已有的连接结束或超时，服务端的新连接由同一隧道的其他Agent接收
+    private void drain() {
+        if (config.getDrainTimeoutSeconds() <= 0) {
+            return;
+        }
+        boolean draining = false;
+        for (Link link : links) {
+            if (link.handler != null && link.handler.drain()) {
+                draining = true;
+            }
+        }
+        if (!draining) {
+            return;
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.getDrainTimeoutSeconds());
+        log.info("Draining agent {}, active streams: {}", config.getAgentId(), activeStreams());
+        try {
+            while (activeStreams() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(100);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.info("Drain finished, remaining streams: {}", activeStreams());
+    }
+
+    private int activeStreams() {
+        int total = 0;
+        for (Link link : links) {
+            if (link.handler != null) {
+                total += link.handler.activeStreams();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * 到服务端的一条链路：独立的连接表和Channel，流ID在链路内分配
+     */
+    private static class Link {
+        private final int index;
+        // 链路服务的隧道，注册时一起登记
+        private final List<AgentTunnel> tunnels;
+        private final ProxyConnectionManager connectionManager = new ProxyConnectionManager();
+        // 固定在一个事件循环上，重连后流的状态仍只在这个线程访问
+        private final EventLoop loop;
+        private Channel channel;
+        // 最近一次连接的handler，重连时从它接手等待恢复的会话
+        private ServerConnectionHandler handler;
+        // 连续重连失败次数，注册成功后清零
+        private int reconnectAttempts;
+
+        Link(int index, List<AgentTunnel> tunnels, EventLoop loop) {
+            this.index = index;
+            this.tunnels = tunnels;
+            this.loop = loop;
+        }
+    }
 }
@@ -1,14 +1,64 @@
 package com.imddy.frp.agent.config;
 
+import com.imddy.frp.common.config.BatchConfig;
+import com.imddy.frp.common.config.CompressionConfig;
+import com.imddy.frp.common.config.ResumeConfig;
+import com.imddy.frp.common.config.TransportConfig;
+import com.imddy.frp.common.config.UdpConfig;
 import com.imddy.frp.common.protocol.ProxyProtocol;
 import lombok.Data;
 
+import java.util.ArrayList;
+import java.util.List;
+
 @Data
-public class AgentConfig {
+public class AgentConfig implements Cloneable {
     private String type;
     private String tunnelName = "default";
+    // Agent标识，同一隧道注册多个Agent时在服务端区分负载；为空时启动时随机生成
+    private String agentId;
+    // 停止时先通知服务端不再分配新连接，最多等这么久让已有的连接结束，0表示直接断开
+    private int drainTimeoutSeconds = 30;
     private FrpTunnel frpTunnel;
     private Proxy proxy;
+    // 每个隧道与服务端建立的并行链路数
+    private int connections = 1;
+    // 目标服务预连接池
+    private Pool pool = new Pool();
+    // UDP隧道的会话表和Socket池
+    private UdpConfig udp = new UdpConfig();
+    // HTTP隧道到目标服务的长连接复用
+    private Http http = new Http();
+    // 服务端链路写批处理
+    private BatchConfig batch = new BatchConfig();
+    // 服务端链路负载压缩，注册时与服务端协商
+    private CompressionConfig compression = new CompressionConfig();
+    // 传输层：io_uring / epoll / nio
+    private TransportConfig transport = new TransportConfig();
+    // 链路断开后保留流，重连时与服务端恢复会话
+    private ResumeConfig resume = new ResumeConfig();
+    // 断线重连的退避
+    private Reconnect reconnect = new Reconnect();
+    // 超过这么久没有收到服务端的任何消息（每次心跳都有响应）就断开重连，0表示不检测
+    private int heartbeatTimeoutSeconds = 30;
+    // 心跳间隔，必须小于两端的heartbeatTimeoutSeconds；0表示取heartbeatTimeoutSeconds的三分之一，不检测超时时为10秒
+    private int heartbeatIntervalSeconds = 0;
+    // 目标连接建立在（或优先从连接池取）所属服务端链路的事件循环上，转发时不必跨线程；
+    // 目标连接只分布在connections个线程上，适合多链路，因此默认关闭
+    private boolean loopAffinity = false;
+    // 同一进程服务的多个隧道，共用到服务端的链路，连接按隧道名分发到各自的目标服务；
+    // 为空时只服务上面tunnelName、type、proxy描述的一个隧道。UDP隧道单独建立链路
+    private List<Tunnel> tunnels = new ArrayList<>();
+
+    @Data
+    public static class Tunnel {
+        private String name;
+        // 为空时使用顶层的type
+        private String type;
+        private Proxy proxy;
+        // 为空时使用顶层的http配置
+        private Http http;
+    }
 
     @Data
     public static class FrpTunnel {
@@ -18,11 +68,126 @@ public class AgentConfig {
 
     @Data
     public static class Proxy {
+        // 单个目标服务，配置了backends时忽略
         private String host;
         private int port;
+        // 多个目标服务，按权重选活跃连接最少的一个
+        private List<Backend> backends = new ArrayList<>();
+        // 一个流最多尝试连接几个目标服务，都失败才向服务端报告连接失败
+        private int maxConnectAttempts = 3;
+        // 定时TCP探测目标服务，只有多个目标时生效
+        private HealthCheck healthCheck = new HealthCheck();
+        // 连续连接失败的目标服务暂时摘除
+        private Outlier outlier = new Outlier();
+
+        /**
+         * 实际使用的目标列表，没有配置backends时为host:port一个
+         */
+        public List<Backend> resolveBackends() {
+            if (backends != null && !backends.isEmpty()) {
+                return backends;
+            }
+            Backend backend = new Backend();
+            backend.setHost(host);
+            backend.setPort(port);
+            return List.of(backend);
+        }
+    }
+
+    @Data
+    public static class Backend {
+        private String host;
+        private int port;
+        private int weight = 1;
+    }
+
+    @Data
+    public static class HealthCheck {
+        private boolean enabled = true;
+        private long intervalMillis = 5000;
+        private long timeoutMillis = 1000;
+        // 连续探测失败这么多次标记为不健康，不健康时连续成功这么多次恢复
+        private int unhealthyThreshold = 2;
+        private int healthyThreshold = 2;
+    }
+
+    @Data
+    public static class Outlier {
+        // 连续连接失败这么多次摘除，0表示不摘除
+        private int consecutiveFailures = 3;
+        // 第n次摘除持续 n * ejectionMillis，最多10倍
+        private long ejectionMillis = 30000;
+        // 同时被摘除的目标不超过总数的这个比例，避免全部摘除
+        private int maxEjectionPercent = 50;
+    }
+
+    @Data
+    public static class Pool {
+        private boolean enabled = false;
+        private int minIdle = 2;
+        private int maxIdle = 16;
+        // 空闲连接存活时间，应小于目标服务的握手超时（例如MySQL的connect_timeout）
+        private long idleTtlMillis = 5000;
+        private long checkIntervalMillis = 1000;
+    }
+
+    @Data
+    public static class Http {
+        // 开启后按HTTP解析请求和响应边界，各个流的请求轮流复用有限的目标长连接，不再每个流单独建连
+        private boolean keepAlive = false;
+        // 每条服务端链路到目标服务的最大连接数，连接都在使用中时请求排队
+        private int maxConnections = 32;
+        // 空闲连接存活时间，应小于目标服务的keep-alive超时，避免取到目标刚关闭的连接
+        private long idleTimeoutMillis = 4000;
+    }
+
+    @Data
+    public static class Reconnect {
+        // 第n次重试等待 min(maxDelay, initialDelay * 2^n)，并在其一半到全部之间随机，避免大量Agent同时重连
+        private long initialDelayMillis = 1000;
+        private long maxDelayMillis = 30000;
     }
 
     public ProxyProtocol getProtocolType() {
         return ProxyProtocol.fromString(type);
     }
+
+    /**
+     * 实际的心跳间隔，配置的间隔不小于超时时间时启动失败：对端收不到响应之前就会判定超时断开
+     */
+    public int resolveHeartbeatIntervalSeconds() {
+        if (heartbeatIntervalSeconds <= 0) {
+            return heartbeatTimeoutSeconds > 0 ? Math.max(1, heartbeatTimeoutSeconds / 3) : 10;
+        }
+        if (heartbeatTimeoutSeconds > 0 && heartbeatIntervalSeconds >= heartbeatTimeoutSeconds) {
+            throw new IllegalArgumentException("heartbeatIntervalSeconds (" + heartbeatIntervalSeconds
+                    + ") must be less than heartbeatTimeoutSeconds (" + heartbeatTimeoutSeconds + ")");
+        }
+        return heartbeatIntervalSeconds;
+    }
+
+    /**
+     * 每个隧道一份配置，除隧道名、类型、目标服务和HTTP配置外与顶层相同；没有配置tunnels时为自身
+     */
+    public List<AgentConfig> resolveTunnels() {
+        if (tunnels == null || tunnels.isEmpty()) {
+            return List.of(this);
+        }
+        List<AgentConfig> resolved = new ArrayList<>();
+        for (Tunnel tunnel : tunnels) {
+            AgentConfig copy;
+            try {
+                copy = (AgentConfig) clone();
+            } catch (CloneNotSupportedException e) {
+                throw new IllegalStateException(e);
+            }
+            copy.setTunnelName(tunnel.getName());
+            copy.setType(tunnel.getType() != null ? tunnel.getType() : type);
+            copy.setProxy(tunnel.getProxy() != null ? tunnel.getProxy() : proxy);
+            copy.setHttp(tunnel.getHttp() != null ? tunnel.getHttp() : http);
+            copy.setTunnels(List.of());
+            resolved.add(copy);
+        }
+        return resolved;
+    }
 }
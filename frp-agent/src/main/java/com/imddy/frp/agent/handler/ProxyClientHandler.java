@@ -1,69 +1,218 @@
 package com.imddy.frp.agent.handler;
 
+import com.imddy.frp.agent.proxy.ProxyConnectionManager;
 import com.imddy.frp.common.protocol.Message;
+import com.imddy.frp.common.session.LinkSession;
+import com.imddy.frp.common.stream.StreamWindow;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.ArrayDeque;
+import java.util.Queue;
+
 @Slf4j
 public class ProxyClientHandler extends ChannelInboundHandlerAdapter {
-    private final Channel serverChannel;
-    private final String channelId;
+    private final LinkSession session;
+    private final ProxyConnectionManager connectionManager;
+    private final int streamId;
+    private volatile Channel channel;
     private volatile boolean closing = false;
+    private volatile boolean linkWritable = true;
+    private final StreamWindow window = new StreamWindow();
+    // 目标连接建立前收到的数据（乐观连接），连接成功后按序写出；受发送窗口约束，不会无限增长
+    private final Queue<ByteBuf> pendingData = new ArrayDeque<>();
+    private boolean connected = false;
+    private boolean closed = false;
+
+    public ProxyClientHandler(LinkSession session, ProxyConnectionManager connectionManager, int streamId) {
+        this.session = session;
+        this.connectionManager = connectionManager;
+        this.streamId = streamId;
+    }
+
+    public int getStreamId() {
+        return streamId;
+    }
+
+    public Channel getChannel() {
+        return channel;
+    }
+
+    public StreamWindow getWindow() {
+        return window;
+    }
+
+    /**
+     * 转发Server发来的数据，目标连接未建立时先缓存。data的所有权转移给本方法
+     */
+    public void forward(ByteBuf data) {
+        synchronized (this) {
+            if (closed) {
+                data.release();
+                return;
+            }
+            if (!connected) {
+                pendingData.offer(data);
+                log.debug("Buffering data, target not connected: streamId={}, size={}", streamId, data.readableBytes());
+                return;
+            }
+        }
+        write(data);
+    }
+
+    /**
+     * 目标连接建立成功，写出缓存的数据。流已被关闭时返回false，由调用方关闭目标连接
+     */
+    public boolean onConnected() {
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            // 持锁写出，保证缓存数据排在之后到达的数据前面
+            while (!pendingData.isEmpty()) {
+                write(pendingData.poll());
+            }
+            connected = true;
+        }
+        return true;
+    }
+
+    /**
+     * 关闭流：释放缓存数据，目标连接已建立时一并关闭
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            releasePendingData();
+        }
+        Channel ch = channel;
+        if (ch != null) {
+            ch.close();
+        }
+    }
+
+    private void write(ByteBuf data) {
+        int size = data.readableBytes();
+        if (!channel.eventLoop().inEventLoop()) {
+            connectionManager.onCrossThreadWrite();
+        }
+        channel.writeAndFlush(data).addListener(future -> {
+            if (future.isSuccess()) {
+                log.debug("Forward data to proxy target: streamId={}, size={}", streamId, size);
+                // 数据已交给目标服务Socket，向Server归还窗口
+                int increment = window.onDelivered(size);
+                if (increment > 0) {
+                    session.write(Message.windowUpdate(streamId, increment));
+                }
+            } else {
+                log.error("Failed to forward data to proxy target: streamId={}", streamId, future.cause());
+                connectionManager.removeConnection(streamId);
+                session.write(Message.disconnect(streamId));
+            }
+        });
+    }
 
-    public ProxyClientHandler(Channel serverChannel, String channelId) {
-        this.serverChannel = serverChannel;
-        this.channelId = channelId;
+    private void releasePendingData() {
+        while (!pendingData.isEmpty()) {
+            pendingData.poll().release();
+        }
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.channel = ctx.channel();
+        this.linkWritable = session.isWritable();
     }
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
         if (msg instanceof ByteBuf) {
             ByteBuf buf = (ByteBuf) msg;
-            try {
-                if (buf.readableBytes() > 0) {
-                    byte[] data = new byte[buf.readableBytes()];
-                    buf.readBytes(data);
-
-                    // 发送数据到FRP Server
-                    Message dataMsg = Message.data(channelId, data);
-
-                    // 等待数据发送完成
-                    serverChannel.writeAndFlush(dataMsg).addListener(future -> {
-                        if (future.isSuccess()) {
-                            log.debug("Data sent to server successfully: channelId={}, size={}", channelId, data.length);
-                        } else {
-                            log.error("Failed to send data to server: channelId={}", channelId, future.cause());
-                            ctx.close();
-                        }
-                    });
-                }
-            } finally {
+            if (!buf.isReadable()) {
                 buf.release();
+                return;
+            }
+
+            // 发送数据到FRP Server，ByteBuf直接作为负载，由编码器写出后释放；
+            // 链路断开时由会话缓冲等待恢复，会话结束时连接表统一关闭目标连接
+            int size = buf.readableBytes();
+            Channel link = session.getChannel();
+            if (link != null && link.eventLoop() != ctx.channel().eventLoop()) {
+                connectionManager.onCrossThreadWrite();
+            }
+            session.write(Message.data(streamId, buf));
+            log.debug("Forward data to server: streamId={}, size={}", streamId, size);
+            if (!window.consume(size) || !session.isWritable()) {
+                // 发送窗口耗尽，暂停读取目标服务，等待WINDOW_UPDATE；链路不可写时等待可写事件
+                updateAutoRead();
             }
         }
     }
 
+    // 收到Server的WINDOW_UPDATE
+    public void onWindowUpdate(int increment) {
+        if (window.release(increment)) {
+            runInEventLoop(this::updateAutoRead);
+        }
+    }
+
+    // Server链路可写状态变化
+    public void onLinkWritabilityChanged(boolean writable) {
+        linkWritable = writable;
+        runInEventLoop(this::updateAutoRead);
+    }
+
+    // 只有发送窗口有余量且Server链路可写时才读取目标服务
+    private void updateAutoRead() {
+        Channel ch = channel;
+        if (ch == null || !ch.isActive()) {
+            return;
+        }
+        // 会话的重传缓冲积压时链路立即变为不可写，可写事件稍后才到，这里直接检查，避免一轮读取冲过上限
+        boolean autoRead = window.isOpen() && linkWritable && session.isWritable();
+        if (ch.config().isAutoRead() != autoRead) {
+            ch.config().setAutoRead(autoRead);
+            log.debug("Proxy read {}: streamId={}, window={}, linkWritable={}",
+                    autoRead ? "resumed" : "paused", streamId, window.getSendWindow(), linkWritable);
+        }
+    }
+
+    private void runInEventLoop(Runnable task) {
+        Channel ch = channel;
+        if (ch == null) {
+            return;
+        }
+        if (ch.eventLoop().inEventLoop()) {
+            task.run();
+        } else {
+            ch.eventLoop().execute(task);
+        }
+    }
+
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         if (!closing) {
             closing = true;
-            // 给一点时间让最后的数据发送完成
-            ctx.executor().schedule(() -> {
-                // 通知Server连接断开
-                Message disconnectMsg = Message.disconnect(channelId);
-                serverChannel.writeAndFlush(disconnectMsg);
-                log.info("Proxy client disconnected: {}", channelId);
-            }, 100, java.util.concurrent.TimeUnit.MILLISECONDS);
+            // 目标主动断开时才需要通知Server，Server发起的断开已经从连接表中移除
+            if (connectionManager.connectionClosed(streamId, this)) {
+                // 给一点时间让最后的数据发送完成
+                ctx.executor().schedule(() -> {
+                    // 通知Server连接断开
+                    Message disconnectMsg = Message.disconnect(streamId);
+                    session.write(disconnectMsg);
+                    log.info("Proxy client disconnected: {}", streamId);
+                }, 100, java.util.concurrent.TimeUnit.MILLISECONDS);
+            }
         }
         super.channelInactive(ctx);
     }
 
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
-        log.error("Exception in proxy client handler: {}", channelId, cause);
+        log.error("Exception in proxy client handler: {}", streamId, cause);
         ctx.close();
     }
 }
@@ -1,40 +1,113 @@
 package com.imddy.frp.agent.handler;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.imddy.frp.agent.config.AgentConfig;
+import com.imddy.frp.agent.proxy.AgentTunnel;
+import com.imddy.frp.agent.proxy.HttpStreamManager;
 import com.imddy.frp.agent.proxy.ProxyConnectionManager;
+import com.imddy.frp.agent.proxy.TargetConnector;
+import com.imddy.frp.agent.proxy.UdpRelay;
+import com.imddy.frp.agent.proxy.UdpSessionManager;
+import com.imddy.frp.common.codec.DatagramBatcher;
+import com.imddy.frp.common.codec.MessageCodec;
+import com.imddy.frp.common.codec.WriteBatchHandler;
+import com.imddy.frp.common.compress.PayloadCompressors;
 import com.imddy.frp.common.protocol.Message;
 import com.imddy.frp.common.protocol.MessageType;
-import io.netty.bootstrap.Bootstrap;
-import io.netty.buffer.Unpooled;
+import com.imddy.frp.common.protocol.RegisterOptions;
+import com.imddy.frp.common.session.LinkSession;
 import io.netty.channel.*;
-import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.timeout.ReadTimeoutException;
+import io.netty.util.concurrent.FutureListener;
+import io.netty.util.concurrent.ScheduledFuture;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 @Slf4j
 public class ServerConnectionHandler extends SimpleChannelInboundHandler<Message> {
+    // 第一个隧道的配置，链路级的设置（压缩、会话恢复等）各隧道相同
     private final AgentConfig config;
     private final ProxyConnectionManager connectionManager;
-    private final EventLoopGroup workerGroup;
+    // 这条链路服务的隧道，第一个的名字用于注册，其余的随注册消息一起登记；UDP隧道独占链路
+    private final List<AgentTunnel> tunnels;
+    private final Map<String, AgentTunnel> tunnelsByName = new LinkedHashMap<>();
+    // UDP隧道时非空，流对应UDP会话而不是TCP连接
+    private final UdpRelay udpRelay;
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    // 注册成功后回调，重置重连退避
+    private final Runnable onRegistered;
+    // 有序帧经会话计数后分发
+    private final Consumer<Message> dispatcher = this::dispatch;
     private Channel serverChannel;
+    // 注册成功后的会话，流都通过它发送有序帧
+    private LinkSession session;
+    private ScheduledFuture<?> heartbeatTask;
+    // 最近一次心跳的发送时间和平滑后的往返时间，往返时间随心跳上报，服务端据此选择链路
+    private long heartbeatSentNanos;
+    private long rttMicros;
+    private UdpSessionManager udpSessions;
+    // HTTP隧道开启长连接复用时非空，请求复用连接池中的目标连接
+    private HttpStreamManager httpStreams;
+    // 上一条连接留下的等待恢复的会话及其HTTP流表，注册时请求恢复
+    private LinkSession suspended;
+    private HttpStreamManager suspendedHttpStreams;
 
-    public ServerConnectionHandler(AgentConfig config, ProxyConnectionManager connectionManager, EventLoopGroup workerGroup) {
-        this.config = config;
+    /**
+     * previous为这条链路上一次连接的handler，它的会话可恢复时本次连接注册时请求恢复
+     */
+    public ServerConnectionHandler(List<AgentTunnel> tunnels, ProxyConnectionManager connectionManager,
+                                   ServerConnectionHandler previous, Runnable onRegistered) {
+        this.config = tunnels.get(0).getConfig();
         this.connectionManager = connectionManager;
-        this.workerGroup = workerGroup;
+        this.tunnels = tunnels;
+        for (AgentTunnel tunnel : tunnels) {
+            tunnelsByName.put(tunnel.getName(), tunnel);
+        }
+        this.udpRelay = tunnels.get(0).getUdpRelay();
+        this.onRegistered = onRegistered;
+        if (previous != null) {
+            // 上一次连接没有注册成功时，它等待恢复的会话继续传下来
+            LinkSession last = previous.session != null ? previous.session : previous.suspended;
+            if (last != null && last.isResumable()) {
+                this.suspended = last;
+                this.suspendedHttpStreams = previous.session != null ? previous.httpStreams : previous.suspendedHttpStreams;
+            }
+        }
     }
 
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
         this.serverChannel = ctx.channel();
+        if (udpRelay != null) {
+            udpSessions = new UdpSessionManager(udpRelay, serverChannel);
+        }
 
         // 发送注册消息
-        Message registerMsg = Message.register(config.getTunnelName(), config.getProtocolType());
-        ctx.writeAndFlush(registerMsg);
+        // 同时提议压缩算法，由服务端在注册成功时选定
+        // UDP隧道同时提议合并报文
+        // 开启会话恢复时带上等待恢复的会话token和已收到的帧数
+        // 服务多个隧道时带上其余隧道的名字
+        RegisterOptions options = new RegisterOptions();
+        options.setCompression(PayloadCompressors.offer(config.getCompression()));
+        options.setDatagramBatch(udpRelay != null && config.getUdp().isBatchEnabled());
+        options.setAgentId(config.getAgentId());
+        options.setResume(config.getResume().isEnabled() && udpRelay == null);
+        if (suspended != null) {
+            options.setSession(suspended.getToken());
+            options.setReceived(suspended.getReceived());
+        }
+        options.setTunnels(new ArrayList<>(tunnelsByName.keySet()).subList(1, tunnelsByName.size()));
+        ctx.writeAndFlush(Message.register(config.getTunnelName(), config.getProtocolType(), options));
 
-        log.info("Connected to FRP Server, sending register message");
+        log.info("Connected to FRP Server, sending register message, resume={}", suspended != null);
         super.channelActive(ctx);
     }
 
@@ -42,14 +115,37 @@ public class ServerConnectionHandler extends SimpleChannelInboundHandler<Message
     protected void channelRead0(ChannelHandlerContext ctx, Message msg) throws Exception {
         switch (msg.getType()) {
             case REGISTER_SUCCESS:
-                handleRegisterSuccess();
+                handleRegisterSuccess(ctx, msg);
                 break;
             case REGISTER_FAIL:
                 handleRegisterFail(msg);
                 break;
             case HEARTBEAT_ACK:
-                log.debug("Received heartbeat ack");
+                onHeartbeatAck();
+                break;
+            case SESSION_ACK:
+                if (session != null) {
+                    session.onAck(Long.parseLong(msg.getMetadata()));
+                }
+                break;
+            case DATAGRAM_BATCH:
+                handleDatagramBatch(msg);
                 break;
+            case CONNECT:
+            case DATA:
+            case DISCONNECT:
+            case WINDOW_UPDATE:
+                if (session != null) {
+                    session.receive(ctx.channel(), msg, dispatcher);
+                }
+                break;
+            default:
+                log.warn("Unknown message type: {}", msg.getType());
+        }
+    }
+
+    private void dispatch(Message msg) {
+        switch (msg.getType()) {
             case CONNECT:
                 handleConnect(msg);
                 break;
@@ -59,14 +155,74 @@ public class ServerConnectionHandler extends SimpleChannelInboundHandler<Message
             case DISCONNECT:
                 handleDisconnect(msg);
                 break;
+            case WINDOW_UPDATE:
+                handleWindowUpdate(msg);
+                break;
             default:
                 log.warn("Unknown message type: {}", msg.getType());
         }
     }
 
-    private void handleRegisterSuccess() {
-        log.info("Register success, agent is ready");
+    private void handleRegisterSuccess(ChannelHandlerContext ctx, Message msg) throws JsonProcessingException {
+        JsonNode metadata = msg.getMetadata() != null ? objectMapper.readTree(msg.getMetadata()) : null;
+        if (metadata != null) {
+            JsonNode compression = metadata.get("compression");
+            if (compression != null) {
+                ctx.pipeline().get(MessageCodec.class).enableCompression(compression.asText());
+            }
+            if (udpSessions != null && metadata.path("datagramBatch").asBoolean(false)) {
+                udpSessions.enableBatching(config.getUdp().getMaxBatchBytes(), config.getUdp().getMaxBatchDelayMicros());
+                log.info("Datagram batching enabled");
+            }
+            for (JsonNode rejected : metadata.path("rejected")) {
+                log.error("Tunnel rejected by server, its connections will not arrive: {}", rejected.asText());
+            }
+        }
+        JsonNode token = metadata != null ? metadata.get("session") : null;
+        boolean resumed = metadata != null && metadata.path("resumed").asBoolean(false);
+        if (resumed && suspended != null && token != null && token.asText().equals(suspended.getToken())
+                && suspended.resume(ctx.channel(), metadata.path("received").asLong(0)) >= 0) {
+            // 接上原会话，流继续使用，重传已提交到事件循环
+            session = suspended;
+            httpStreams = suspendedHttpStreams;
+            log.info("Session resumed, streams: {}", connectionManager.size()
+                    + (httpStreams != null ? httpStreams.size() : 0));
+            notifyLinkWritability(ctx.channel().isWritable());
+        } else if (resumed) {
+            // 服务端接上了会话但本端已无法重传，只能放弃，下次连接重新开始
+            log.warn("Session resumed by server but no longer resumable locally, reconnecting");
+            discardSuspended();
+            ctx.close();
+            return;
+        } else {
+            if (suspended != null) {
+                log.warn("Session not resumed by server, closing its streams");
+            }
+            discardSuspended();
+            session = new LinkSession(config.getResume().getMaxUnackedBytes());
+            session.start(ctx.channel(), token != null ? token.asText() : null);
+            if (tunnels.stream().anyMatch(AgentTunnel::isHttpKeepAlive)) {
+                httpStreams = new HttpStreamManager(tunnels, session, ctx.channel().eventLoop());
+            }
+        }
+        suspended = null;
+        suspendedHttpStreams = null;
+        log.info("Register success, agent is ready, tunnels: {}", tunnelsByName.keySet());
         startHeartbeat();
+        onRegistered.run();
+    }
+
+    // 放弃等待恢复的会话，关闭其上的流
+    private void discardSuspended() {
+        if (suspended != null) {
+            suspended.close();
+            connectionManager.closeAll();
+            if (suspendedHttpStreams != null) {
+                suspendedHttpStreams.closeAll();
+            }
+        }
+        suspended = null;
+        suspendedHttpStreams = null;
     }
 
     private void handleRegisterFail(Message msg) {
@@ -75,95 +231,300 @@ public class ServerConnectionHandler extends SimpleChannelInboundHandler<Message
     }
 
     private void handleConnect(Message msg) {
-        String channelId = msg.getChannelId();
-        log.info("New connection request: {}", channelId);
-
-        // 连接到目标服务
-        Bootstrap bootstrap = new Bootstrap();
-        bootstrap.group(workerGroup)
-                .channel(NioSocketChannel.class)
-                .option(ChannelOption.SO_KEEPALIVE, true)
-                .option(ChannelOption.TCP_NODELAY, true)
-                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 5000)  // 5秒超时
-                .handler(new ChannelInitializer<SocketChannel>() {
-                    @Override
-                    protected void initChannel(SocketChannel ch) throws Exception {
-                        ch.pipeline().addLast(new ProxyClientHandler(serverChannel, channelId));
-                    }
-                });
-
-        String proxyHost = config.getProxy().getHost();
-        int proxyPort = config.getProxy().getPort();
-
-        bootstrap.connect(proxyHost, proxyPort).addListener((ChannelFutureListener) future -> {
+        int streamId = msg.getStreamId();
+        if (udpSessions != null) {
+            udpSessions.open(streamId);
+            log.debug("New UDP session: {}", streamId);
+            return;
+        }
+        boolean optimistic = Message.OPTIMISTIC.equals(msg.getMetadata());
+        AgentTunnel tunnel = tunnelFor(msg);
+        if (tunnel == null) {
+            // 乐观连接时Server据此重置流
+            log.error("Connection request for unknown tunnel: {}, stream: {}", msg.getTunnelName(), streamId);
+            session.write(Message.connectAck(streamId, false));
+            return;
+        }
+        log.info("New connection request: {}, tunnel={}, optimistic={}", streamId, tunnel.getName(), optimistic);
+        if (httpStreams != null && httpStreams.open(streamId, tunnel.getName())) {
+            // 不为流单独建连，请求到达时再借用目标连接，直接确认
+            if (!optimistic) {
+                session.write(Message.connectAck(streamId, true));
+            }
+            return;
+        }
+        TargetConnector targetConnector = tunnel.getConnector();
+
+        // 先登记流，乐观连接时连接目标期间到达的DATA由handler缓存
+        ProxyClientHandler proxyHandler = new ProxyClientHandler(session, connectionManager, streamId);
+        connectionManager.addConnection(streamId, proxyHandler);
+
+        // 连接到目标服务，开启连接池时优先复用预连接，多个目标时失败换下一个重试
+        // 开启loopAffinity时目标连接放在链路的事件循环上
+        EventLoop loop = config.isLoopAffinity() ? serverChannel.eventLoop() : null;
+        targetConnector.connect(proxyHandler, loop).addListener((FutureListener<Channel>) future -> {
             if (future.isSuccess()) {
-                connectionManager.addConnection(channelId, future.channel());
-                log.info("Connected to proxy target: {}:{} for channel: {}", proxyHost, proxyPort, channelId);
+                if (!proxyHandler.onConnected()) {
+                    // 连接期间Server已关闭该流
+                    future.getNow().close();
+                    return;
+                }
+                log.info("Connected to proxy target: {} for stream: {}", targetConnector.getTarget(future.getNow()), streamId);
 
-                // 发送连接成功确认
-                Message ackMsg = Message.connectAck(channelId, true);
-                serverChannel.writeAndFlush(ackMsg);
+                // 发送连接成功确认，乐观连接不需要
+                if (!optimistic) {
+                    Message ackMsg = Message.connectAck(streamId, true);
+                    session.write(ackMsg);
+                }
             } else {
-                log.error("Failed to connect to proxy target: {}:{}", proxyHost, proxyPort, future.cause());
-
-                // 发送连接失败确认
-                Message ackMsg = Message.connectAck(channelId, false);
-                serverChannel.writeAndFlush(ackMsg);
+                log.error("Failed to connect to proxy target: {}", targetConnector.getTarget(), future.cause());
+                if (connectionManager.connectionClosed(streamId, proxyHandler)) {
+                    proxyHandler.close();
+                    // 发送连接失败确认，乐观连接时Server据此重置流
+                    Message ackMsg = Message.connectAck(streamId, false);
+                    session.write(ackMsg);
+                }
             }
         });
     }
 
+    // 单个隧道时连接都属于它；多个隧道时按CONNECT携带的隧道名分发
+    private AgentTunnel tunnelFor(Message msg) {
+        if (tunnels.size() == 1) {
+            return tunnels.get(0);
+        }
+        return msg.getTunnelName() != null ? tunnelsByName.get(msg.getTunnelName()) : null;
+    }
 
     private void handleData(Message msg) {
-        String channelId = msg.getChannelId();
-        Channel proxyChannel = connectionManager.getConnection(channelId);
-
-        if (proxyChannel != null && proxyChannel.isActive()) {
-            // 写入数据并等待完成
-            proxyChannel.writeAndFlush(Unpooled.wrappedBuffer(msg.getData())).addListener(future -> {
-                if (future.isSuccess()) {
-                    log.debug("Forward data to proxy target: channelId={}, size={}", channelId, msg.getData().length);
-                } else {
-                    log.error("Failed to forward data to proxy target: channelId={}", channelId, future.cause());
-                    connectionManager.removeConnection(channelId);
-                    Message disconnectMsg = Message.disconnect(channelId);
-                    serverChannel.writeAndFlush(disconnectMsg);
-                }
-            });
+        int streamId = msg.getStreamId();
+        if (udpSessions != null) {
+            udpSessions.forward(streamId, msg.getData().retain());
+            return;
+        }
+        ProxyClientHandler proxyHandler = connectionManager.getConnection(streamId);
+
+        if (proxyHandler != null) {
+            // 负载是入站帧的切片，retain后交给handler写给目标服务，消息处理完后由SimpleChannelInboundHandler释放一次
+            proxyHandler.forward(msg.getData().retain());
+        } else if (httpStreams != null) {
+            // 长连接复用的HTTP流，流不存在时由它通知Server关闭
+            httpStreams.forward(streamId, msg.getData().retain());
         } else {
-            log.warn("Proxy channel not found or inactive: {}", channelId);
+            log.warn("Proxy channel not found: {}", streamId);
             // 通知Server关闭连接
-            Message disconnectMsg = Message.disconnect(channelId);
-            serverChannel.writeAndFlush(disconnectMsg);
+            Message disconnectMsg = Message.disconnect(streamId);
+            session.write(disconnectMsg);
+        }
+    }
+
+    private void handleDatagramBatch(Message msg) {
+        if (udpSessions != null && msg.getData() != null) {
+            udpSessions.forwardBatch(msg.getData());
         }
     }
 
     private void handleDisconnect(Message msg) {
-        String channelId = msg.getChannelId();
-        connectionManager.removeConnection(channelId);
-        log.info("Connection closed by server: {}", channelId);
+        int streamId = msg.getStreamId();
+        if (udpSessions != null) {
+            udpSessions.remove(streamId);
+            return;
+        }
+        connectionManager.removeConnection(streamId);
+        if (httpStreams != null) {
+            httpStreams.remove(streamId);
+        }
+        log.info("Connection closed by server: {}", streamId);
+    }
+
+    private void handleWindowUpdate(Message msg) {
+        ProxyClientHandler proxyHandler = connectionManager.getConnection(msg.getStreamId());
+        if (proxyHandler != null) {
+            proxyHandler.onWindowUpdate(Integer.parseInt(msg.getMetadata()));
+        } else if (httpStreams != null) {
+            httpStreams.onWindowUpdate(msg.getStreamId(), Integer.parseInt(msg.getMetadata()));
+        }
     }
 
     private void startHeartbeat() {
-        serverChannel.eventLoop().scheduleAtFixedRate(() -> {
+        int interval = config.resolveHeartbeatIntervalSeconds();
+        heartbeatTask = serverChannel.eventLoop().scheduleAtFixedRate(() -> {
             if (serverChannel.isActive()) {
+                // 心跳携带Agent侧统计，服务端通过管理API展示
                 Message heartbeat = Message.heartbeat();
+                heartbeat.setMetadata(collectStats());
+                heartbeatSentNanos = System.nanoTime();
                 serverChannel.writeAndFlush(heartbeat);
-                log.debug("Sent heartbeat");
+                log.debug("Sent heartbeat: {}", heartbeat.getMetadata());
+                session.flushAck();
             }
-        }, 10, 10, TimeUnit.SECONDS);
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    private void onHeartbeatAck() {
+        if (heartbeatSentNanos == 0) {
+            return;
+        }
+        long sample = Math.max(1, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - heartbeatSentNanos));
+        heartbeatSentNanos = 0;
+        // 指数加权平均，权重1/8
+        rttMicros = rttMicros == 0 ? sample : rttMicros + (sample - rttMicros) / 8;
+        log.debug("Received heartbeat ack, rtt={}us, smoothed={}us", sample, rttMicros);
+    }
+
+    private String collectStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("activeStreams", activeStreams());
+        stats.put("crossThreadWrites", connectionManager.getCrossThreadWrites());
+        if (rttMicros > 0) {
+            stats.put("rttMicros", rttMicros);
+        }
+        WriteBatchHandler batch = serverChannel.pipeline().get(WriteBatchHandler.class);
+        if (batch != null) {
+            Map<String, Object> batchStats = new LinkedHashMap<>();
+            batchStats.put("frames", batch.getFrames());
+            batchStats.put("flushes", batch.getFlushes());
+            batchStats.put("framesPerFlush", batch.getFramesPerFlush());
+            stats.put("writeBatch", batchStats);
+        }
+        if (tunnels.size() == 1) {
+            putTunnelStats(stats, tunnels.get(0));
+        } else {
+            Map<String, Object> tunnelStats = new LinkedHashMap<>();
+            for (AgentTunnel tunnel : tunnels) {
+                Map<String, Object> each = new LinkedHashMap<>();
+                putTunnelStats(each, tunnel);
+                tunnelStats.put(tunnel.getName(), each);
+            }
+            stats.put("tunnels", tunnelStats);
+        }
+        if (udpRelay != null) {
+            Map<String, Object> udpStats = udpRelay.getStats();
+            DatagramBatcher batcher = udpSessions != null ? udpSessions.getBatcher() : null;
+            if (batcher != null) {
+                udpStats.put("datagramsPerBatch", batcher.getDatagramsPerBatch());
+            }
+            stats.put("udp", udpStats);
+        }
+        MessageCodec codec = serverChannel.pipeline().get(MessageCodec.class);
+        if (codec != null && codec.getCompression() != null) {
+            Map<String, Object> compressionStats = codec.getCompressionStats().toMap();
+            compressionStats.put("algorithm", codec.getCompression());
+            stats.put("compression", compressionStats);
+        }
+        if (session.isResumable()) {
+            stats.put("session", session.getStats());
+        }
+        try {
+            return objectMapper.writeValueAsString(stats);
+        } catch (JsonProcessingException e) {
+            log.warn("Failed to serialize agent stats", e);
+            return null;
+        }
+    }
+
+    private void putTunnelStats(Map<String, Object> stats, AgentTunnel tunnel) {
+        if (tunnel.getConnector() != null) {
+            stats.put("target", tunnel.getConnector().getStats());
+        }
+        Map<String, Object> httpStats = httpStreams != null ? httpStreams.getStats(tunnel.getName()) : null;
+        if (httpStats != null) {
+            stats.put("http", httpStats);
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        // 链路出站缓冲区超过高水位时暂停读取所有目标连接，回落到低水位后恢复
+        if (session != null && session.getChannel() == ctx.channel()) {
+            notifyLinkWritability(ctx.channel().isWritable());
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    private void notifyLinkWritability(boolean writable) {
+        for (ProxyClientHandler proxyHandler : connectionManager.values()) {
+            proxyHandler.onLinkWritabilityChanged(writable);
+        }
+        if (httpStreams != null) {
+            httpStreams.onLinkWritabilityChanged(writable);
+        }
     }
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         log.warn("Disconnected from FRP Server");
-        connectionManager.closeAll();
+        if (heartbeatTask != null) {
+            heartbeatTask.cancel(false);
+        }
+        if (udpSessions != null) {
+            udpSessions.closeAll();
+        }
+        LinkSession current = session;
+        HttpStreamManager currentHttpStreams = httpStreams;
+        if (current == null) {
+            // 还没注册成功就断开，等待恢复的会话原样交给下一次连接
+            log.debug("Disconnected before register, suspended session kept: {}", suspended != null);
+        } else if (current.isResumable()) {
+            // 流保留到宽限期结束，期间暂停读取目标服务，由下一次连接恢复
+            long timeoutMillis = TimeUnit.SECONDS.toMillis(config.getResume().getTimeoutSeconds());
+            if (current.detach(ctx.channel(), timeoutMillis, () -> {
+                current.close();
+                connectionManager.closeAll();
+                if (currentHttpStreams != null) {
+                    currentHttpStreams.closeAll();
+                }
+            })) {
+                notifyLinkWritability(false);
+            }
+        } else {
+            current.close();
+            connectionManager.closeAll();
+            if (currentHttpStreams != null) {
+                currentHttpStreams.closeAll();
+            }
+        }
         super.channelInactive(ctx);
     }
 
+    /**
+     * 通知服务端这条链路不再接收新连接，链路未注册时返回false
+     */
+    public boolean drain() {
+        Channel ch = serverChannel;
+        if (session == null || ch == null || !ch.isActive()) {
+            return false;
+        }
+        ch.writeAndFlush(Message.drain());
+        return true;
+    }
+
+    public int activeStreams() {
+        return udpSessions != null ? udpSessions.size()
+                : connectionManager.size() + (httpStreams != null ? httpStreams.size() : 0);
+    }
+
+    /**
+     * Agent停止时结束会话，关闭等待恢复的流
+     */
+    public void close() {
+        LinkSession current = session != null ? session : suspended;
+        if (current != null) {
+            current.close();
+        }
+        HttpStreamManager currentHttpStreams = httpStreams != null ? httpStreams : suspendedHttpStreams;
+        if (currentHttpStreams != null) {
+            currentHttpStreams.closeAll();
+        }
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
-        log.error("Exception in server connection handler", cause);
+        if (cause instanceof ReadTimeoutException) {
+            log.warn("Server link heartbeat timeout: {}", ctx.channel().remoteAddress());
+        } else {
+            log.error("Exception in server connection handler", cause);
+        }
         ctx.close();
     }
 }
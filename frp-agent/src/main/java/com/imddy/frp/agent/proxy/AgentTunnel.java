@@ -0,0 +1,58 @@
+package com.imddy.frp.agent.proxy;
+
+import com.imddy.frp.agent.config.AgentConfig;
+import com.imddy.frp.common.protocol.ProxyProtocol;
+import com.imddy.frp.common.transport.Transport;
+import io.netty.channel.EventLoopGroup;
+import lombok.Getter;
+
+/**
+ * Agent服务的一个隧道：UDP隧道按会话转发，其他类型通过TargetConnector连接目标服务。
+ * 一个Agent进程可以服务多个隧道，它们共用到服务端的链路
+ */
+@Getter
+public class AgentTunnel {
+    private final AgentConfig config;
+    // 非UDP隧道非空
+    private final TargetConnector connector;
+    // UDP隧道非空
+    private final UdpRelay udpRelay;
+
+    public AgentTunnel(AgentConfig config, EventLoopGroup workerGroup, Transport transport) {
+        this.config = config;
+        if (config.getProtocolType() == ProxyProtocol.UDP) {
+            this.connector = null;
+            this.udpRelay = new UdpRelay(config, workerGroup, transport);
+        } else {
+            this.connector = new TargetConnector(config, workerGroup, transport);
+            this.udpRelay = null;
+        }
+    }
+
+    public String getName() {
+        return config.getTunnelName();
+    }
+
+    /**
+     * HTTP隧道开启了长连接复用，请求复用连接池中的目标连接
+     */
+    public boolean isHttpKeepAlive() {
+        return config.getProtocolType() == ProxyProtocol.HTTP && config.getHttp().isKeepAlive();
+    }
+
+    public void start() {
+        if (udpRelay != null) {
+            udpRelay.start();
+        } else {
+            connector.start();
+        }
+    }
+
+    public void close() {
+        if (udpRelay != null) {
+            udpRelay.close();
+        } else {
+            connector.close();
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package com.imddy.frp.agent.proxy;
+
+import com.imddy.frp.agent.config.AgentConfig;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.ScheduledFuture;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Agent转发的一组目标服务：按权重选活跃连接最少的一个，定时TCP探测健康状态，
+ * 连续连接失败的目标暂时摘除。没有可用目标时退回到所有目标中选择，不拒绝连接。
+ */
+@Slf4j
+public class BackendSet {
+    private final List<Endpoint> endpoints = new ArrayList<>();
+    // 每个目标按权重出现若干次，连接数相同时从这里轮转选起点，空闲时按权重分配
+    private final int[] ring;
+    private final AgentConfig.HealthCheck healthCheck;
+    private final AgentConfig.Outlier outlier;
+    private final AtomicInteger next = new AtomicInteger();
+    private final LongAdder panics = new LongAdder();
+    private ScheduledFuture<?> healthCheckTask;
+
+    public BackendSet(AgentConfig.Proxy config) {
+        for (AgentConfig.Backend backend : config.resolveBackends()) {
+            endpoints.add(new Endpoint(backend.getHost(), backend.getPort(), Math.max(1, backend.getWeight())));
+        }
+        List<Integer> slots = new ArrayList<>();
+        for (int i = 0; i < endpoints.size(); i++) {
+            for (int w = 0; w < endpoints.get(i).weight; w++) {
+                slots.add(i);
+            }
+        }
+        this.ring = slots.stream().mapToInt(Integer::intValue).toArray();
+        this.healthCheck = config.getHealthCheck();
+        this.outlier = config.getOutlier();
+    }
+
+    public void start(Bootstrap bootstrap, EventLoopGroup group) {
+        if (endpoints.size() > 1 && healthCheck != null && healthCheck.isEnabled()) {
+            // 探测只建连不收发，ChannelInitializer可共享，所有探测连接共用一个
+            Bootstrap probe = bootstrap.clone()
+                    .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) healthCheck.getTimeoutMillis())
+                    .handler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel ch) {
+                        }
+                    });
+            healthCheckTask = group.next().scheduleAtFixedRate(() -> check(probe),
+                    healthCheck.getIntervalMillis(), healthCheck.getIntervalMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public int size() {
+        return endpoints.size();
+    }
+
+    public Endpoint first() {
+        return endpoints.get(0);
+    }
+
+    /**
+     * 选择一个目标，跳过已经尝试过的；所有目标都试过时返回null
+     */
+    public Endpoint select(Collection<Endpoint> exclude) {
+        if (endpoints.size() == 1) {
+            Endpoint only = endpoints.get(0);
+            return exclude.contains(only) ? null : only;
+        }
+        long now = System.nanoTime();
+        Endpoint best = pick(exclude, now, true);
+        if (best == null) {
+            // 没有健康的目标，与其拒绝连接不如在剩下的目标里碰运气
+            best = pick(exclude, now, false);
+            if (best != null) {
+                panics.increment();
+            }
+        }
+        return best;
+    }
+
+    // 加权最少连接：比较 active / weight，相同时取加权轮转起点之后的第一个
+    private Endpoint pick(Collection<Endpoint> exclude, long now, boolean availableOnly) {
+        int size = endpoints.size();
+        int start = ring[Math.floorMod(next.getAndIncrement(), ring.length)];
+        Endpoint best = null;
+        for (int i = 0; i < size; i++) {
+            Endpoint endpoint = endpoints.get((start + i) % size);
+            if (exclude.contains(endpoint) || (availableOnly && !endpoint.isAvailable(now))) {
+                continue;
+            }
+            if (best == null || (long) endpoint.active.get() * best.weight < (long) best.active.get() * endpoint.weight) {
+                best = endpoint;
+            }
+        }
+        return best;
+    }
+
+    private void check(Bootstrap probe) {
+        for (Endpoint endpoint : endpoints) {
+            probe.connect(endpoint.host, endpoint.port).addListener((ChannelFuture future) -> {
+                if (future.isSuccess()) {
+                    future.channel().close();
+                }
+                endpoint.onCheck(future.isSuccess());
+            });
+        }
+    }
+
+    private int ejectedCount(long now) {
+        int count = 0;
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.isEjected(now)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public List<Map<String, Object>> getStats() {
+        long now = System.nanoTime();
+        List<Map<String, Object>> stats = new ArrayList<>();
+        for (Endpoint endpoint : endpoints) {
+            stats.add(endpoint.getStats(now));
+        }
+        return stats;
+    }
+
+    public long getPanics() {
+        return panics.sum();
+    }
+
+    public void close() {
+        if (healthCheckTask != null) {
+            healthCheckTask.cancel(false);
+        }
+    }
+
+    /**
+     * 一个目标服务的连接数和健康状态
+     */
+    public class Endpoint {
+        private final String host;
+        private final int port;
+        private final int weight;
+        private final AtomicInteger active = new AtomicInteger();
+        private final LongAdder connects = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private volatile boolean healthy = true;
+        private volatile long ejectedUntil;
+        private int consecutiveFailures;
+        private int ejections;
+        private int checkFailures;
+        private int checkSuccesses;
+
+        Endpoint(String host, int port, int weight) {
+            this.host = host;
+            this.port = port;
+            this.weight = weight;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        boolean isAvailable(long now) {
+            return healthy && !isEjected(now);
+        }
+
+        public boolean isAvailable() {
+            return endpoints.size() == 1 || isAvailable(System.nanoTime());
+        }
+
+        private boolean isEjected(long now) {
+            return ejectedUntil != 0 && now - ejectedUntil < 0;
+        }
+
+        /**
+         * 连接成功，连接关闭时释放活跃计数
+         */
+        void onConnected(Channel channel) {
+            active.incrementAndGet();
+            connects.increment();
+            synchronized (this) {
+                consecutiveFailures = 0;
+            }
+            channel.closeFuture().addListener(f -> active.decrementAndGet());
+        }
+
+        synchronized void onConnectFailed() {
+            failures.increment();
+            consecutiveFailures++;
+            int threshold = outlier != null ? outlier.getConsecutiveFailures() : 0;
+            if (threshold <= 0 || consecutiveFailures < threshold || endpoints.size() == 1) {
+                return;
+            }
+            long now = System.nanoTime();
+            if (isEjected(now)) {
+                return;
+            }
+            if ((ejectedCount(now) + 1) * 100 > outlier.getMaxEjectionPercent() * endpoints.size()) {
+                log.debug("Backend not ejected, too many ejected already: {}", this);
+                return;
+            }
+            ejections++;
+            long millis = outlier.getEjectionMillis() * Math.min(ejections, 10);
+            ejectedUntil = now + TimeUnit.MILLISECONDS.toNanos(millis);
+            consecutiveFailures = 0;
+            log.warn("Backend ejected after {} consecutive connect failures: {}, for {}ms", threshold, this, millis);
+        }
+
+        private synchronized void onCheck(boolean success) {
+            if (success) {
+                checkFailures = 0;
+                if (!healthy && ++checkSuccesses >= healthCheck.getHealthyThreshold()) {
+                    healthy = true;
+                    // 探测恢复后提前结束摘除
+                    ejectedUntil = 0;
+                    log.info("Backend healthy again: {}", this);
+                }
+            } else {
+                checkSuccesses = 0;
+                if (healthy && ++checkFailures >= healthCheck.getUnhealthyThreshold()) {
+                    healthy = false;
+                    log.warn("Backend unhealthy after {} failed checks: {}", checkFailures, this);
+                }
+            }
+        }
+
+        Map<String, Object> getStats(long now) {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("address", toString());
+            stats.put("weight", weight);
+            stats.put("active", active.get());
+            stats.put("healthy", healthy);
+            stats.put("ejected", isEjected(now));
+            stats.put("connects", connects.sum());
+            stats.put("failures", failures.sum());
+            return stats;
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.imddy.frp.agent.proxy;
+
+import com.imddy.frp.agent.config.AgentConfig;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ScheduledFuture;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单条服务端链路到目标服务的HTTP长连接池。连接在链路的事件循环上建立，池的状态只在该线程中访问。
+ * 流每发一个请求借用一条连接，响应完整返回后归还；连接数达到上限时请求按到达顺序排队，
+ * 因此到目标的连接数只取决于并发请求数，与公网客户端连接的建立和断开无关。
+ */
+@Slf4j
+public class HttpBackendPool {
+    private final TargetConnector connector;
+    private final AgentConfig.Http config;
+    private final EventLoop eventLoop;
+    // 后进先出，优先复用最近用过的连接，多余的连接自然空闲超时
+    private final Deque<Backend> idle = new ArrayDeque<>();
+    private final Queue<HttpStream> waiters = new ArrayDeque<>();
+    private final ScheduledFuture<?> evictTask;
+    // 已建立和正在建立的连接数，升级后脱离连接池的连接不计入
+    private int connections;
+    private boolean closed;
+
+    private long requests;
+    private long reused;
+    private long dials;
+    private long evicted;
+
+    public HttpBackendPool(TargetConnector connector, AgentConfig.Http config, EventLoop eventLoop) {
+        this.connector = connector;
+        this.config = config;
+        this.eventLoop = eventLoop;
+        long interval = Math.max(100, config.getIdleTimeoutMillis() / 2);
+        this.evictTask = eventLoop.scheduleAtFixedRate(this::evictIdle, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 为流的下一个请求借用连接，结果通过HttpStream.onBackend或onBackendFailed回调，可能在本方法内同步回调
+     */
+    void acquire(HttpStream stream) {
+        requests++;
+        Backend backend;
+        while ((backend = idle.pollLast()) != null) {
+            if (backend.channel.isActive()) {
+                reused++;
+                assign(backend, stream);
+                return;
+            }
+        }
+        if (connections < config.getMaxConnections()) {
+            dial(stream);
+        } else {
+            waiters.offer(stream);
+        }
+    }
+
+    /**
+     * 流关闭时放弃排队
+     */
+    void cancel(HttpStream stream) {
+        waiters.remove(stream);
+    }
+
+    /**
+     * 归还连接。响应不完整、目标要求关闭或连接已断开时不能复用，直接关闭
+     */
+    void release(Backend backend, boolean reusable) {
+        backend.owner = null;
+        if (!reusable || closed || !backend.channel.isActive()) {
+            backend.channel.close();
+            return;
+        }
+        backend.channel.config().setAutoRead(true);
+        HttpStream waiter = waiters.poll();
+        if (waiter != null) {
+            reused++;
+            assign(backend, waiter);
+        } else {
+            backend.idleSince = System.nanoTime();
+            idle.offerLast(backend);
+        }
+    }
+
+    /**
+     * 协议升级（101）后连接归流独占，不再回到连接池，空出的名额可以新建连接
+     */
+    void detach(Backend backend) {
+        if (!backend.detached) {
+            backend.detached = true;
+            connections--;
+            dialForWaiter();
+        }
+    }
+
+    private void assign(Backend backend, HttpStream stream) {
+        backend.owner = stream;
+        stream.onBackend(backend);
+    }
+
+    private void dial(HttpStream stream) {
+        connections++;
+        dials++;
+        Backend backend = new Backend();
+        connector.connect(eventLoop, new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) throws Exception {
+                ch.pipeline().addLast(new HttpClientCodec());
+                ch.pipeline().addLast(backend);
+            }
+        }).addListener(future -> {
+            if (future.isSuccess()) {
+                assign(backend, stream);
+            } else {
+                connections--;
+                log.error("Failed to connect to HTTP target: {}", connector.getTarget(), future.cause());
+                stream.onBackendFailed();
+            }
+        });
+    }
+
+    private void dialForWaiter() {
+        if (!closed && !waiters.isEmpty() && connections < config.getMaxConnections()) {
+            dial(waiters.poll());
+        }
+    }
+
+    private void onClosed(Backend backend) {
+        if (idle.remove(backend)) {
+            evicted++;
+        }
+        if (!backend.detached) {
+            connections--;
+        }
+        dialForWaiter();
+    }
+
+    private void evictIdle() {
+        long deadline = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(config.getIdleTimeoutMillis());
+        // 队头是最久未用的连接
+        Backend backend;
+        while ((backend = idle.peekFirst()) != null && backend.idleSince < deadline) {
+            idle.pollFirst();
+            evicted++;
+            backend.channel.close();
+        }
+    }
+
+    String getTarget() {
+        return connector.getTarget();
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("connections", connections);
+        stats.put("idle", idle.size());
+        stats.put("waiting", waiters.size());
+        stats.put("requests", requests);
+        stats.put("reused", reused);
+        stats.put("reuseRate", requests == 0 ? 0 : (double) reused / requests);
+        stats.put("dials", dials);
+        stats.put("evicted", evicted);
+        return stats;
+    }
+
+    public void close() {
+        closed = true;
+        evictTask.cancel(false);
+        waiters.clear();
+        Backend backend;
+        while ((backend = idle.pollFirst()) != null) {
+            backend.channel.close();
+        }
+    }
+
+    /**
+     * 目标连接末端的handler，把解析出的响应交给当前借用连接的流
+     */
+    final class Backend extends ChannelInboundHandlerAdapter {
+        private Channel channel;
+        private HttpStream owner;
+        private long idleSince;
+        private boolean detached;
+
+        Channel channel() {
+            return channel;
+        }
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+            this.channel = ctx.channel();
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (owner != null) {
+                owner.onResponse(msg);
+            } else {
+                // 空闲连接上不应该收到数据，无法对应到请求，只能关闭
+                ReferenceCountUtil.release(msg);
+                ctx.close();
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            HttpStream stream = owner;
+            owner = null;
+            onClosed(this);
+            if (stream != null) {
+                stream.onBackendClosed(this);
+            }
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            log.debug("Exception on HTTP target connection", cause);
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,405 @@
+package com.imddy.frp.agent.proxy;
+
+import com.imddy.frp.common.protocol.Message;
+import com.imddy.frp.common.session.LinkSession;
+import com.imddy.frp.common.stream.StreamWindow;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.util.AsciiString;
+import io.netty.util.ReferenceCountUtil;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * HTTP隧道长连接复用模式下的一个流（一条公网客户端连接）。
+ * 请求按边界解析后逐个向连接池借用目标连接发送，响应完整返回后连接归还连接池，下一个请求再重新借用；
+ * 同一流上的请求严格按顺序处理，保证管线化请求的响应顺序。
+ * 逐跳头（Connection、Keep-Alive）只作用于客户端一侧，到目标的连接始终按HTTP/1.1长连接使用。
+ * 协议升级（101）后目标连接脱离连接池，流变成透明转发。只在所属服务端链路的事件循环中访问。
+ */
+@Slf4j
+public class HttpStream {
+    // HttpHeaderNames.KEEP_ALIVE已废弃，逐跳头名称自己定义
+    private static final AsciiString KEEP_ALIVE = AsciiString.cached("keep-alive");
+    private static final AsciiString PROXY_CONNECTION = AsciiString.cached("proxy-connection");
+
+    private final int streamId;
+    private final HttpStreamManager manager;
+    private final HttpBackendPool pool;
+    private final LinkSession session;
+    private final StreamWindow window = new StreamWindow();
+    // 解析请求、编码响应；请求逐个处理，按当前请求的方法判断响应是否有消息体（HEAD）
+    private final EmbeddedChannel codec = new EmbeddedChannel(new HttpRequestDecoder(), new HttpResponseEncoder() {
+        @Override
+        protected boolean isContentAlwaysEmpty(HttpResponse msg) {
+            return HttpMethod.HEAD.equals(method) || super.isContentAlwaysEmpty(msg);
+        }
+    });
+    // 已解析但还没写给目标的请求消息（等待连接或等待上一个响应完成）
+    private final Queue<Object> pending = new ArrayDeque<>();
+    private HttpBackendPool.Backend backend;
+    private boolean acquiring;
+    // 当前请求已完整写给目标
+    private boolean requestDone;
+    // 当前请求的信息，决定响应如何回给客户端
+    private HttpMethod method;
+    private HttpVersion clientVersion;
+    private boolean clientKeepAlive;
+    // 当前最终响应结束后目标连接能否复用、客户端连接是否需要关闭
+    private boolean backendReusable;
+    private boolean closeAfterResponse;
+    private boolean informational;
+    private boolean responseStarted;
+    private boolean upgraded;
+    private boolean linkWritable;
+    private boolean closed;
+    // 已收到但还没写给目标的请求字节，写出后向服务端归还窗口
+    private int undelivered;
+
+    HttpStream(int streamId, HttpStreamManager manager, HttpBackendPool pool, LinkSession session) {
+        this.streamId = streamId;
+        this.manager = manager;
+        this.pool = pool;
+        this.session = session;
+        this.linkWritable = session.isWritable();
+    }
+
+    public int getStreamId() {
+        return streamId;
+    }
+
+    /**
+     * 服务端发来的请求字节，data的所有权转移给本方法
+     */
+    void forward(ByteBuf data) {
+        if (closed) {
+            data.release();
+            return;
+        }
+        undelivered += data.readableBytes();
+        codec.writeInbound(data);
+        Object msg;
+        while ((msg = codec.readInbound()) != null) {
+            pending.offer(msg);
+        }
+        pump();
+    }
+
+    // 把排队的请求消息写给目标：没有连接时先借用，当前请求写完后等响应结束再处理下一个
+    private void pump() {
+        ChannelFuture last = null;
+        while (!closed && !pending.isEmpty()) {
+            Object msg = pending.peek();
+            if (backend == null) {
+                if (acquiring) {
+                    return;
+                }
+                if (!(msg instanceof HttpRequest)) {
+                    // 被拒绝请求的剩余消息体
+                    ReferenceCountUtil.release(pending.poll());
+                    continue;
+                }
+                if (((HttpRequest) msg).decoderResult().isFailure()) {
+                    respondAndClose(HttpResponseStatus.BAD_REQUEST);
+                    return;
+                }
+                acquiring = true;
+                pool.acquire(this);
+                return;
+            }
+            if (requestDone && !upgraded) {
+                // 目标连接上不做管线化，下一个请求等当前响应结束
+                break;
+            }
+            pending.poll();
+            if (msg instanceof HttpRequest) {
+                prepareRequest((HttpRequest) msg);
+            }
+            if (msg instanceof LastHttpContent) {
+                requestDone = true;
+            }
+            last = backend.channel().write(msg);
+        }
+        if (last != null) {
+            backend.channel().flush();
+            if (pending.isEmpty() && undelivered > 0) {
+                int size = undelivered;
+                undelivered = 0;
+                last.addListener(future -> {
+                    if (future.isSuccess()) {
+                        // 请求已交给目标Socket，向服务端归还窗口
+                        int increment = window.onDelivered(size);
+                        if (increment > 0) {
+                            session.write(Message.windowUpdate(streamId, increment));
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    private void prepareRequest(HttpRequest request) {
+        HttpHeaders headers = request.headers();
+        method = request.method();
+        clientVersion = request.protocolVersion();
+        clientKeepAlive = HttpUtil.isKeepAlive(request);
+        responseStarted = false;
+        informational = false;
+        if (!headers.contains(HttpHeaderNames.UPGRADE)) {
+            removeHopByHopHeaders(headers);
+        }
+        if (!headers.contains(HttpHeaderNames.HOST)) {
+            headers.set(HttpHeaderNames.HOST, pool.getTarget());
+        }
+        request.setProtocolVersion(HttpVersion.HTTP_1_1);
+    }
+
+    private static void removeHopByHopHeaders(HttpHeaders headers) {
+        for (String value : headers.getAll(HttpHeaderNames.CONNECTION)) {
+            for (String token : value.split(",")) {
+                headers.remove(token.trim());
+            }
+        }
+        headers.remove(HttpHeaderNames.CONNECTION);
+        headers.remove(KEEP_ALIVE);
+        headers.remove(PROXY_CONNECTION);
+    }
+
+    /**
+     * 连接池分配了目标连接
+     */
+    void onBackend(HttpBackendPool.Backend backend) {
+        acquiring = false;
+        if (closed) {
+            pool.release(backend, true);
+            return;
+        }
+        this.backend = backend;
+        requestDone = false;
+        updateBackendRead();
+        pump();
+    }
+
+    /**
+     * 连接池无法建立到目标的连接
+     */
+    void onBackendFailed() {
+        acquiring = false;
+        if (!closed) {
+            respondAndClose(HttpResponseStatus.BAD_GATEWAY);
+        }
+    }
+
+    /**
+     * 目标连接上解析出的响应消息，编码后发回服务端
+     */
+    void onResponse(Object msg) {
+        if (closed) {
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        if (upgraded && msg instanceof ByteBuf) {
+            sendToServer((ByteBuf) msg);
+            return;
+        }
+        responseStarted = true;
+        boolean switching = false;
+        if (msg instanceof HttpResponse) {
+            HttpResponse response = (HttpResponse) msg;
+            int code = response.status().code();
+            switching = code == HttpResponseStatus.SWITCHING_PROTOCOLS.code();
+            informational = code >= 100 && code < 200 && !switching;
+            if (switching) {
+                upgraded = true;
+                pool.detach(backend);
+            } else if (!informational) {
+                prepareResponse(response);
+            }
+        }
+        boolean last = msg instanceof LastHttpContent;
+        // 目标在响应中途断开时解码器给出失败的结尾，客户端收到的响应不完整
+        boolean truncated = last && ((LastHttpContent) msg).decoderResult().isFailure();
+        codec.writeOutbound(msg);
+        ByteBuf encoded = drainOutbound();
+        if (encoded != null) {
+            sendToServer(encoded);
+        }
+        if (upgraded) {
+            if (last && codec.pipeline().get(HttpRequestDecoder.class) != null) {
+                // 之后双方都是其他协议，两侧都去掉HTTP编解码，解析器中缓存的字节作为ByteBuf传出来
+                if (backend.channel().pipeline().get(HttpClientCodec.class) != null) {
+                    backend.channel().pipeline().remove(HttpClientCodec.class);
+                }
+                codec.pipeline().remove(HttpRequestDecoder.class);
+                Object buffered;
+                while ((buffered = codec.readInbound()) != null) {
+                    pending.offer(buffered);
+                }
+                pump();
+            }
+            return;
+        }
+        if (last && !informational) {
+            if (truncated) {
+                closeAfterResponse = true;
+                backendReusable = false;
+            }
+            onResponseComplete();
+        }
+    }
+
+    private void prepareResponse(HttpResponse response) {
+        int code = response.status().code();
+        // 以关闭连接结束的响应不能复用目标连接，也只能以关闭客户端连接结束
+        boolean delimited = HttpUtil.isContentLengthSet(response) || HttpUtil.isTransferEncodingChunked(response)
+                || code == 204 || code == 304 || HttpMethod.HEAD.equals(method);
+        backendReusable = delimited && HttpUtil.isKeepAlive(response);
+        closeAfterResponse = !delimited || !clientKeepAlive;
+        removeHopByHopHeaders(response.headers());
+        if (HttpVersion.HTTP_1_0.equals(clientVersion) && HttpUtil.isTransferEncodingChunked(response)) {
+            // HTTP/1.0客户端不认识chunked，改为以关闭连接结束
+            HttpUtil.setTransferEncodingChunked(response, false);
+            closeAfterResponse = true;
+        }
+        if (closeAfterResponse) {
+            response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+        } else if (HttpVersion.HTTP_1_0.equals(clientVersion)) {
+            response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+        }
+    }
+
+    private void onResponseComplete() {
+        HttpBackendPool.Backend b = backend;
+        backend = null;
+        if (!requestDone) {
+            // 请求还没发完目标就给出了响应，连接状态不确定，不再复用，剩余的请求体也无处可去
+            closeAfterResponse = true;
+            backendReusable = false;
+        }
+        pool.release(b, backendReusable);
+        if (closeAfterResponse) {
+            manager.evict(this);
+        } else {
+            pump();
+        }
+    }
+
+    /**
+     * 目标连接在使用中断开
+     */
+    void onBackendClosed(HttpBackendPool.Backend b) {
+        if (b != backend || closed) {
+            return;
+        }
+        backend = null;
+        if (upgraded || responseStarted) {
+            // 升级后的连接或响应已经开始，客户端也必须看到连接关闭
+            manager.evict(this);
+        } else {
+            respondAndClose(HttpResponseStatus.BAD_GATEWAY);
+        }
+    }
+
+    private void sendToServer(ByteBuf data) {
+        int size = data.readableBytes();
+        if (size == 0) {
+            data.release();
+            return;
+        }
+        session.write(Message.data(streamId, data));
+        if (!window.consume(size) || !session.isWritable()) {
+            // 发送窗口耗尽，暂停读取目标连接，等待WINDOW_UPDATE；链路不可写时等待可写事件
+            updateBackendRead();
+        }
+    }
+
+    // 编码器可能输出多段（头部、内容切片、chunk结尾），合并成一个DATA帧
+    private ByteBuf drainOutbound() {
+        ByteBuf first = codec.readOutbound();
+        if (first == null) {
+            return null;
+        }
+        ByteBuf next = codec.readOutbound();
+        if (next == null) {
+            return first;
+        }
+        CompositeByteBuf composite = ByteBufAllocator.DEFAULT.compositeBuffer();
+        composite.addComponent(true, first);
+        do {
+            composite.addComponent(true, next);
+        } while ((next = codec.readOutbound()) != null);
+        return composite;
+    }
+
+    private void respondAndClose(HttpResponseStatus status) {
+        byte[] body = (status.code() + " " + status.reasonPhrase() + "\n").getBytes(StandardCharsets.UTF_8);
+        String head = "HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "Connection: close\r\n\r\n";
+        sendToServer(Unpooled.wrappedBuffer(head.getBytes(StandardCharsets.US_ASCII), body));
+        manager.evict(this);
+    }
+
+    // 收到服务端的WINDOW_UPDATE
+    void onWindowUpdate(int increment) {
+        if (window.release(increment)) {
+            updateBackendRead();
+        }
+    }
+
+    // 服务端链路可写状态变化
+    void onLinkWritabilityChanged(boolean writable) {
+        linkWritable = writable;
+        updateBackendRead();
+    }
+
+    // 只有发送窗口有余量且服务端链路可写时才读取目标连接
+    private void updateBackendRead() {
+        HttpBackendPool.Backend b = backend;
+        if (b == null || !b.channel().isActive()) {
+            return;
+        }
+        // 会话的重传缓冲积压时链路立即变为不可写，可写事件稍后才到，这里直接检查，避免一轮读取冲过上限
+        boolean autoRead = window.isOpen() && linkWritable && session.isWritable();
+        if (b.channel().config().isAutoRead() != autoRead) {
+            b.channel().config().setAutoRead(autoRead);
+        }
+    }
+
+    /**
+     * 关闭流：放弃排队，响应未完成的目标连接不能复用
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        Object msg;
+        while ((msg = pending.poll()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
+        codec.finishAndReleaseAll();
+        if (acquiring) {
+            acquiring = false;
+            pool.cancel(this);
+        }
+        if (backend != null) {
+            HttpBackendPool.Backend b = backend;
+            backend = null;
+            if (upgraded) {
+                b.channel().close();
+            } else {
+                pool.release(b, false);
+            }
+        }
+    }
+}
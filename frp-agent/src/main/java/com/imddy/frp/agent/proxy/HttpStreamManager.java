@@ -0,0 +1,120 @@
+package com.imddy.frp.agent.proxy;
+
+import com.imddy.frp.common.protocol.Message;
+import com.imddy.frp.common.session.LinkSession;
+import com.imddy.frp.common.stream.StreamTable;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.EventLoop;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 单条服务端链路上的HTTP流表和目标长连接池，流ID由服务端分配。
+ * 链路上每个开启长连接复用的HTTP隧道一个连接池，流表共用。
+ * 所有方法都在链路的事件循环中调用，链路重连后的新连接也固定在这个事件循环上
+ */
+@Slf4j
+public class HttpStreamManager {
+    private final StreamTable<HttpStream> streams = new StreamTable<>();
+    private final LinkSession session;
+    // 隧道名 -> 连接池
+    private final Map<String, HttpBackendPool> pools = new HashMap<>();
+
+    public HttpStreamManager(List<AgentTunnel> tunnels, LinkSession session, EventLoop eventLoop) {
+        this.session = session;
+        for (AgentTunnel tunnel : tunnels) {
+            if (tunnel.isHttpKeepAlive()) {
+                pools.put(tunnel.getName(), new HttpBackendPool(tunnel.getConnector(),
+                        tunnel.getConfig().getHttp(), eventLoop));
+            }
+        }
+    }
+
+    /**
+     * 服务端新流：只登记，第一个请求到达时才向连接池借用连接；隧道没有开启长连接复用时返回false
+     */
+    public boolean open(int streamId, String tunnelName) {
+        HttpBackendPool pool = pools.get(tunnelName);
+        if (pool == null) {
+            return false;
+        }
+        HttpStream previous = streams.remove(streamId);
+        if (previous != null) {
+            previous.close();
+        }
+        streams.put(streamId, new HttpStream(streamId, this, pool, session));
+        return true;
+    }
+
+    /**
+     * 负载转交给流，流不存在时通知服务端关闭
+     */
+    public void forward(int streamId, ByteBuf data) {
+        HttpStream stream = streams.get(streamId);
+        if (stream != null) {
+            stream.forward(data);
+        } else {
+            data.release();
+            session.write(Message.disconnect(streamId));
+        }
+    }
+
+    /**
+     * 服务端关闭流
+     */
+    public void remove(int streamId) {
+        HttpStream stream = streams.remove(streamId);
+        if (stream != null) {
+            stream.close();
+        }
+    }
+
+    /**
+     * Agent侧结束流（响应要求关闭连接或目标不可用），通知服务端
+     */
+    void evict(HttpStream stream) {
+        if (streams.remove(stream.getStreamId(), stream)) {
+            stream.close();
+            if (session.isOpen()) {
+                session.write(Message.disconnect(stream.getStreamId()));
+            }
+        }
+    }
+
+    public void onWindowUpdate(int streamId, int increment) {
+        HttpStream stream = streams.get(streamId);
+        if (stream != null) {
+            stream.onWindowUpdate(increment);
+        }
+    }
+
+    public void onLinkWritabilityChanged(boolean writable) {
+        for (HttpStream stream : streams.values()) {
+            stream.onLinkWritabilityChanged(writable);
+        }
+    }
+
+    public int size() {
+        return streams.size();
+    }
+
+    /**
+     * 隧道的连接池统计，隧道没有开启长连接复用时返回null
+     */
+    public Map<String, Object> getStats(String tunnelName) {
+        HttpBackendPool pool = pools.get(tunnelName);
+        return pool != null ? pool.getStats() : null;
+    }
+
+    public void closeAll() {
+        for (HttpStream stream : streams.drain()) {
+            stream.close();
+        }
+        for (HttpBackendPool pool : pools.values()) {
+            pool.close();
+        }
+    }
+}
@@ -1,35 +1,65 @@
 package com.imddy.frp.agent.proxy;
 
-import io.netty.channel.Channel;
+import com.imddy.frp.agent.handler.ProxyClientHandler;
+import com.imddy.frp.common.stream.StreamTable;
 import lombok.extern.slf4j.Slf4j;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * 单条服务端链路上的目标连接表，流ID由服务端分配
+ */
 @Slf4j
 public class ProxyConnectionManager {
-    private final Map<String, Channel> connections = new ConcurrentHashMap<>();
+    private final StreamTable<ProxyClientHandler> connections = new StreamTable<>();
+    // 目标连接与服务端链路不在同一事件循环时，两个方向的写出都要跨线程提交任务
+    private final LongAdder crossThreadWrites = new LongAdder();
 
-    public void addConnection(String channelId, Channel channel) {
-        connections.put(channelId, channel);
-        log.info("Added proxy connection: {}", channelId);
+    public void addConnection(int streamId, ProxyClientHandler handler) {
+        connections.put(streamId, handler);
+        log.info("Added proxy connection: {}", streamId);
     }
 
-    public Channel getConnection(String channelId) {
-        return connections.get(channelId);
+    public ProxyClientHandler getConnection(int streamId) {
+        return connections.get(streamId);
     }
 
-    public void removeConnection(String channelId) {
-        Channel channel = connections.remove(channelId);
-        if (channel != null) {
-            channel.close();
-            log.info("Removed proxy connection: {}", channelId);
+    public void removeConnection(int streamId) {
+        ProxyClientHandler handler = connections.remove(streamId);
+        if (handler != null) {
+            handler.close();
+            log.info("Removed proxy connection: {}", streamId);
         }
     }
 
+    /**
+     * 目标连接自行关闭时从表中摘除，不再主动close
+     */
+    public boolean connectionClosed(int streamId, ProxyClientHandler handler) {
+        return connections.remove(streamId, handler);
+    }
+
+    public List<ProxyClientHandler> values() {
+        return connections.values();
+    }
+
+    public int size() {
+        return connections.size();
+    }
+
+    public void onCrossThreadWrite() {
+        crossThreadWrites.increment();
+    }
+
+    public long getCrossThreadWrites() {
+        return crossThreadWrites.sum();
+    }
+
     public void closeAll() {
-        connections.values().forEach(Channel::close);
-        connections.clear();
+        for (ProxyClientHandler handler : connections.drain()) {
+            handler.close();
+        }
         log.info("Closed all proxy connections");
     }
 }
@@ -0,0 +1,262 @@
+package com.imddy.frp.agent.proxy;
+
+import com.imddy.frp.agent.config.AgentConfig;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.ScheduledFuture;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 预先建立的目标服务空闲连接池，CONNECT时直接取用，省去一次到目标的TCP握手。
+ * 空闲连接上如果目标先发了数据（例如MySQL、SSH的握手包），会被缓存下来，交接给流时按顺序重放；
+ * 超过TTL、已断开或缓存超过上限的连接会被关闭，定时任务负责淘汰并补齐到minIdle。
+ */
+@Slf4j
+public class TargetConnectionPool {
+    private static final int MAX_BUFFERED_BYTES = 64 * 1024;
+
+    private final TargetConnector connector;
+    private final AgentConfig.Pool config;
+    private final EventLoopGroup group;
+    private final Deque<IdleGuard> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder savedNanos = new LongAdder();
+    // 取到的空闲连接不在调用方指定的事件循环上
+    private final LongAdder crossLoopHits = new LongAdder();
+    private volatile boolean closed;
+    private ScheduledFuture<?> maintainTask;
+
+    public TargetConnectionPool(TargetConnector connector, AgentConfig.Pool config, EventLoopGroup group) {
+        this.connector = connector;
+        this.config = config;
+        this.group = group;
+    }
+
+    public void start() {
+        maintainTask = group.scheduleAtFixedRate(this::maintain,
+                config.getCheckIntervalMillis(), config.getCheckIntervalMillis(), TimeUnit.MILLISECONDS);
+        fill(null);
+        log.info("Target connection pool started: target={}, minIdle={}, maxIdle={}, idleTtl={}ms",
+                connector.getTarget(), config.getMinIdle(), config.getMaxIdle(), config.getIdleTtlMillis());
+    }
+
+    /**
+     * 取出一条可用的空闲连接，没有时返回null。优先取preferred事件循环上的空闲连接，没有时取其他的（省掉握手比同线程更重要），
+     * 补充的预连接建在preferred上，之后的请求更容易取到同一线程的连接
+     */
+    public Channel acquire(EventLoop preferred) {
+        if (preferred != null) {
+            for (IdleGuard guard : idle) {
+                Channel ch = guard.channel;
+                if (ch != null && ch.eventLoop() == preferred && idle.remove(guard)) {
+                    idleCount.decrementAndGet();
+                    if (guard.isUsable()) {
+                        return hit(guard, preferred);
+                    }
+                    evict(guard);
+                }
+            }
+        }
+        IdleGuard guard;
+        while ((guard = idle.pollFirst()) != null) {
+            idleCount.decrementAndGet();
+            if (guard.isUsable()) {
+                if (preferred != null && guard.channel.eventLoop() != preferred) {
+                    crossLoopHits.increment();
+                }
+                return hit(guard, preferred);
+            }
+            evict(guard);
+        }
+        misses.increment();
+        fill(preferred);
+        return null;
+    }
+
+    private Channel hit(IdleGuard guard, EventLoop preferred) {
+        hits.increment();
+        savedNanos.add(connector.getAverageDialNanos());
+        fill(preferred);
+        return guard.channel;
+    }
+
+    /**
+     * 在连接的EventLoop上把空闲连接交接给流的handler，并重放空闲期间收到的数据
+     */
+    boolean handOver(Channel channel, ChannelHandler handler) {
+        ChannelPipeline pipeline = channel.pipeline();
+        IdleGuard guard = pipeline.get(IdleGuard.class);
+        if (guard == null || !channel.isActive()) {
+            channel.close();
+            return false;
+        }
+        guard.handedOver = true;
+        pipeline.remove(guard);
+        pipeline.addLast(handler);
+        if (!guard.buffered.isEmpty()) {
+            ByteBuf buf;
+            while ((buf = guard.buffered.poll()) != null) {
+                pipeline.fireChannelRead(buf);
+            }
+            pipeline.fireChannelReadComplete();
+        }
+        return true;
+    }
+
+    private void maintain() {
+        long now = System.nanoTime();
+        long ttlNanos = TimeUnit.MILLISECONDS.toNanos(config.getIdleTtlMillis());
+        for (IdleGuard guard : idle) {
+            if (!guard.isUsable() || now - guard.createdAt > ttlNanos) {
+                if (idle.remove(guard)) {
+                    idleCount.decrementAndGet();
+                    evict(guard);
+                }
+            }
+        }
+        fill(null);
+    }
+
+    // 补齐到minIdle，group为null时新连接建在任意事件循环上
+    private void fill(EventLoopGroup group) {
+        if (closed) {
+            return;
+        }
+        while (idleCount.get() + pending.get() < config.getMinIdle()) {
+            pending.incrementAndGet();
+            IdleGuard guard = new IdleGuard();
+            connector.dial(guard, group).addListener(future -> {
+                pending.decrementAndGet();
+                if (!future.isSuccess()) {
+                    log.debug("Failed to pre-connect target: {}", connector.getTarget(), future.cause());
+                    return;
+                }
+                if (closed || idleCount.get() >= config.getMaxIdle()) {
+                    guard.channel.close();
+                    return;
+                }
+                guard.createdAt = System.nanoTime();
+                idle.offerLast(guard);
+                idleCount.incrementAndGet();
+            });
+        }
+    }
+
+    private void evict(IdleGuard guard) {
+        evicted.increment();
+        if (guard.channel != null) {
+            guard.channel.close();
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        long hitCount = hits.sum();
+        long missCount = misses.sum();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("idle", idleCount.get());
+        stats.put("hits", hitCount);
+        stats.put("misses", missCount);
+        stats.put("hitRate", hitCount + missCount == 0 ? 0 : (double) hitCount / (hitCount + missCount));
+        stats.put("evicted", evicted.sum());
+        stats.put("savedHandshakeMillis", TimeUnit.NANOSECONDS.toMillis(savedNanos.sum()));
+        stats.put("crossLoopHits", crossLoopHits.sum());
+        return stats;
+    }
+
+    public void close() {
+        closed = true;
+        if (maintainTask != null) {
+            maintainTask.cancel(false);
+        }
+        IdleGuard guard;
+        while ((guard = idle.pollFirst()) != null) {
+            idleCount.decrementAndGet();
+            guard.channel.close();
+        }
+    }
+
+    /**
+     * 空闲连接上的占位handler：缓存目标主动发来的数据，连接断开时从池中移除
+     */
+    private class IdleGuard extends ChannelInboundHandlerAdapter {
+        private final Queue<ByteBuf> buffered = new ArrayDeque<>();
+        private volatile Channel channel;
+        private volatile boolean handedOver;
+        private volatile int bufferedBytes;
+        private volatile long createdAt = System.nanoTime();
+
+        boolean isUsable() {
+            return channel != null && channel.isActive() && bufferedBytes <= MAX_BUFFERED_BYTES
+                    && connector.isAvailable(channel);
+        }
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+            this.channel = ctx.channel();
+        }
+
+        @Override
+        public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+            if (!handedOver) {
+                releaseBuffered();
+            }
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (msg instanceof ByteBuf) {
+                ByteBuf buf = (ByteBuf) msg;
+                bufferedBytes += buf.readableBytes();
+                buffered.offer(buf);
+                if (bufferedBytes > MAX_BUFFERED_BYTES) {
+                    ctx.close();
+                }
+            } else {
+                ctx.fireChannelRead(msg);
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            if (idle.remove(this)) {
+                idleCount.decrementAndGet();
+                evicted.increment();
+            }
+            releaseBuffered();
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            log.debug("Exception on idle target connection", cause);
+            ctx.close();
+        }
+
+        private void releaseBuffered() {
+            ByteBuf buf;
+            while ((buf = buffered.poll()) != null) {
+                buf.release();
+            }
+        }
+    }
+}
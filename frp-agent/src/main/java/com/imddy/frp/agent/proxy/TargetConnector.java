@@ -0,0 +1,205 @@
+package com.imddy.frp.agent.proxy;
+
+import com.imddy.frp.agent.config.AgentConfig;
+import com.imddy.frp.common.transport.Transport;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import lombok.extern.slf4j.Slf4j;
+
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 负责建立到目标服务的连接。开启连接池时优先使用预先建立好的空闲连接，否则直接拨号。
+ * 配置了多个目标时每次拨号选一个，连接失败换下一个目标重试。
+ */
+@Slf4j
+public class TargetConnector {
+    private static final AttributeKey<BackendSet.Endpoint> ENDPOINT = AttributeKey.valueOf("frp.target.endpoint");
+
+    private final AgentConfig config;
+    private final Bootstrap bootstrap;
+    private final TargetConnectionPool pool;
+    private final BackendSet backends;
+    private final int maxConnectAttempts;
+
+    private final LongAdder dials = new LongAdder();
+    private final LongAdder dialNanos = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+
+    public TargetConnector(AgentConfig config, EventLoopGroup workerGroup, Transport transport) {
+        this.config = config;
+        this.bootstrap = transport.configure(new Bootstrap());
+        this.bootstrap.group(workerGroup)
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 5000);  // 5秒超时
+        this.backends = new BackendSet(config.getProxy());
+        this.maxConnectAttempts = Math.max(1, config.getProxy().getMaxConnectAttempts());
+        AgentConfig.Pool poolConfig = config.getPool();
+        this.pool = poolConfig != null && poolConfig.isEnabled()
+                ? new TargetConnectionPool(this, poolConfig, workerGroup) : null;
+    }
+
+    public void start() {
+        backends.start(bootstrap, bootstrap.config().group());
+        if (pool != null) {
+            pool.start();
+        }
+    }
+
+    /**
+     * 获取一条已连接且装好handler的目标连接。preferred不为null时优先取该事件循环上的空闲连接，拨号也在该事件循环上进行，
+     * 目标连接与服务端链路在同一线程中读写
+     */
+    public Future<Channel> connect(ChannelHandler handler, EventLoop preferred) {
+        EventLoopGroup group = preferred != null ? preferred : bootstrap.config().group();
+        if (pool != null) {
+            Channel pooled = pool.acquire(preferred);
+            if (pooled != null) {
+                Promise<Channel> promise = pooled.eventLoop().newPromise();
+                pooled.eventLoop().execute(() -> {
+                    if (pool.handOver(pooled, handler)) {
+                        promise.setSuccess(pooled);
+                    } else {
+                        // 空闲连接在交接前断开，退回到直接拨号
+                        connect(group, handler, promise, new ArrayList<>(), null);
+                    }
+                });
+                return promise;
+            }
+        }
+        return connect(group, handler);
+    }
+
+    /**
+     * 在指定的事件循环上拨号，连接的所有事件都在该线程中处理；handler在连接成功后才装入
+     */
+    public Future<Channel> connect(EventLoopGroup group, ChannelHandler handler) {
+        Promise<Channel> promise = group.next().newPromise();
+        connect(group, handler, promise, new ArrayList<>(), null);
+        return promise;
+    }
+
+    // 连接失败时换一个没试过的目标，直到成功、目标都试过或达到最大尝试次数。
+    // handler不可共享，不能装到失败的连接上，所以在连接成功的回调里装入，该回调先于channelActive执行
+    private void connect(EventLoopGroup group, ChannelHandler handler, Promise<Channel> promise,
+                         List<BackendSet.Endpoint> tried, Throwable cause) {
+        BackendSet.Endpoint endpoint = tried.size() < maxConnectAttempts ? backends.select(tried) : null;
+        if (endpoint == null) {
+            promise.setFailure(cause != null ? cause : new ConnectException("No target available"));
+            return;
+        }
+        if (!tried.isEmpty()) {
+            retries.increment();
+            log.warn("Failed to connect to target: {}, retry on: {}", tried.get(tried.size() - 1), endpoint);
+        }
+        tried.add(endpoint);
+        dial(group, null, endpoint).addListener((ChannelFuture future) -> {
+            if (future.isSuccess()) {
+                future.channel().pipeline().addLast(handler);
+                promise.setSuccess(future.channel());
+            } else {
+                connect(group, handler, promise, tried, future.cause());
+            }
+        });
+    }
+
+    /**
+     * 直接拨号一次，不重试，供连接池预连接；group为null时在任意事件循环上
+     */
+    ChannelFuture dial(ChannelHandler handler, EventLoopGroup group) {
+        return dial(group != null ? group : bootstrap.config().group(), handler, backends.select(List.of()));
+    }
+
+    /**
+     * 拨号到选定的目标，统计握手耗时和目标的连接数
+     */
+    private ChannelFuture dial(EventLoopGroup group, ChannelHandler handler, BackendSet.Endpoint endpoint) {
+        long start = System.nanoTime();
+        Bootstrap b = bootstrap.clone(group).handler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel ch) throws Exception {
+                ch.attr(ENDPOINT).set(endpoint);
+                if (handler != null) {
+                    ch.pipeline().addLast(handler);
+                }
+            }
+        });
+        ChannelFuture future = b.connect(endpoint.getHost(), endpoint.getPort());
+        future.addListener(f -> {
+            if (f.isSuccess()) {
+                dials.increment();
+                dialNanos.add(System.nanoTime() - start);
+                endpoint.onConnected(future.channel());
+            } else {
+                endpoint.onConnectFailed();
+            }
+        });
+        return future;
+    }
+
+    /**
+     * 连接所属的目标仍然可用，空闲连接交出前检查，目标被摘除后不再复用它的预连接
+     */
+    boolean isAvailable(Channel channel) {
+        BackendSet.Endpoint endpoint = channel.attr(ENDPOINT).get();
+        return endpoint == null || endpoint.isAvailable();
+    }
+
+    /**
+     * 连接实际所属的目标
+     */
+    public String getTarget(Channel channel) {
+        BackendSet.Endpoint endpoint = channel.attr(ENDPOINT).get();
+        return endpoint != null ? endpoint.toString() : getTarget();
+    }
+
+    /**
+     * 主目标，多个目标时为第一个，用于日志和缺省的HTTP Host
+     */
+    public String getTarget() {
+        return backends.first().toString();
+    }
+
+    public long getAverageDialNanos() {
+        long count = dials.sum();
+        return count == 0 ? 0 : dialNanos.sum() / count;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("dials", dials.sum());
+        stats.put("avgDialMicros", getAverageDialNanos() / 1000);
+        if (backends.size() > 1) {
+            stats.put("retries", retries.sum());
+            stats.put("panics", backends.getPanics());
+            stats.put("backends", backends.getStats());
+        }
+        if (pool != null) {
+            stats.put("pool", pool.getStats());
+        }
+        return stats;
+    }
+
+    public void close() {
+        backends.close();
+        if (pool != null) {
+            pool.close();
+        }
+    }
+}
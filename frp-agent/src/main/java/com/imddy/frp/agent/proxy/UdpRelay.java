@@ -0,0 +1,231 @@
+package com.imddy.frp.agent.proxy;
+
+import com.imddy.frp.agent.config.AgentConfig;
+import com.imddy.frp.common.config.UdpConfig;
+import com.imddy.frp.common.transport.Transport;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.AttributeKey;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import lombok.extern.slf4j.Slf4j;
+
+import java.net.InetSocketAddress;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * UDP隧道在Agent端的转发器，所有链路共享。每个会话独占一个已connect到目标的DatagramChannel，
+ * 目标的回包只会从这个Socket进来，据此找到会话；Socket预先绑定一批放在池里，新会话直接取用。
+ * 用过的Socket不回收：复用源端口会让目标把新客户端当成上一个会话的延续。
+ */
+@Slf4j
+public class UdpRelay {
+    static final AttributeKey<UdpSession> SESSION = AttributeKey.valueOf("frp.udpSession");
+
+    private final UdpConfig config;
+    private final InetSocketAddress target;
+    private final Bootstrap bootstrap;
+    private final HashedWheelTimer timer =
+            new HashedWheelTimer(new DefaultThreadFactory("frp-udp-timer", true), 100, TimeUnit.MILLISECONDS);
+    private final Deque<Channel> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicInteger sessions = new AtomicInteger();
+
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder packetsOut = new LongAdder();
+    private final LongAdder packetsIn = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean closed;
+
+    public UdpRelay(AgentConfig config, EventLoopGroup workerGroup, Transport transport) {
+        this.config = config.getUdp();
+        // UDP不做目标选择，多个目标时固定转发给第一个
+        AgentConfig.Backend backend = config.getProxy().resolveBackends().get(0);
+        this.target = InetSocketAddress.createUnresolved(backend.getHost(), backend.getPort());
+        this.bootstrap = transport.configureSessionDatagram(new Bootstrap(), this.config);
+        this.bootstrap.group(workerGroup)
+                .handler(new ReplyHandler());
+    }
+
+    public void start() {
+        fill();
+        log.info("UDP relay started: target={}, maxSessions={}, idleTimeout={}ms, channelPool={}",
+                getTarget(), config.getMaxSessions(), config.getIdleTimeoutMillis(), config.getChannelPoolSize());
+    }
+
+    /**
+     * 占用一个会话名额，达到maxSessions时返回false
+     */
+    boolean tryReserve() {
+        while (true) {
+            int current = sessions.get();
+            if (current >= config.getMaxSessions()) {
+                rejected.increment();
+                return false;
+            }
+            if (sessions.compareAndSet(current, current + 1)) {
+                opened.increment();
+                return true;
+            }
+        }
+    }
+
+    void onSessionClosed(boolean idleEvicted) {
+        sessions.decrementAndGet();
+        if (idleEvicted) {
+            evicted.increment();
+        }
+    }
+
+    /**
+     * 取一个已connect到目标的Socket，池为空时现场绑定
+     */
+    Future<Channel> acquire() {
+        Channel channel;
+        while ((channel = idle.pollFirst()) != null) {
+            idleCount.decrementAndGet();
+            if (channel.isActive()) {
+                hits.increment();
+                fill();
+                Promise<Channel> promise = channel.eventLoop().newPromise();
+                return promise.setSuccess(channel);
+            }
+        }
+        misses.increment();
+        fill();
+        Promise<Channel> promise = bootstrap.config().group().next().newPromise();
+        bind().addListener((ChannelFuture future) -> {
+            if (future.isSuccess()) {
+                promise.setSuccess(future.channel());
+            } else {
+                promise.setFailure(future.cause());
+            }
+        });
+        return promise;
+    }
+
+    private ChannelFuture bind() {
+        // 每次解析，目标是域名时跟随DNS变化
+        return bootstrap.connect(target.getHostString(), target.getPort());
+    }
+
+    private void fill() {
+        if (closed) {
+            return;
+        }
+        while (idleCount.get() + pending.get() < config.getChannelPoolSize()) {
+            pending.incrementAndGet();
+            bind().addListener((ChannelFuture future) -> {
+                pending.decrementAndGet();
+                if (!future.isSuccess()) {
+                    log.debug("Failed to pre-bind UDP socket: {}", getTarget(), future.cause());
+                    return;
+                }
+                if (closed) {
+                    future.channel().close();
+                    return;
+                }
+                idle.offerLast(future.channel());
+                idleCount.incrementAndGet();
+            });
+        }
+    }
+
+    Timeout newTimeout(TimerTask task, long delayMillis) {
+        return timer.newTimeout(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    UdpConfig getConfig() {
+        return config;
+    }
+
+    void onPacketOut() {
+        packetsOut.increment();
+    }
+
+    void onPacketDropped() {
+        dropped.increment();
+    }
+
+    public String getTarget() {
+        return target.getHostString() + ":" + target.getPort();
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("sessions", sessions.get());
+        stats.put("opened", opened.sum());
+        stats.put("rejected", rejected.sum());
+        stats.put("idleEvicted", evicted.sum());
+        stats.put("pooledSockets", idleCount.get());
+        stats.put("poolHits", hits.sum());
+        stats.put("poolMisses", misses.sum());
+        stats.put("packetsOut", packetsOut.sum());
+        stats.put("packetsIn", packetsIn.sum());
+        stats.put("dropped", dropped.sum());
+        return stats;
+    }
+
+    public void close() {
+        closed = true;
+        Channel channel;
+        while ((channel = idle.pollFirst()) != null) {
+            idleCount.decrementAndGet();
+            channel.close();
+        }
+        timer.stop();
+    }
+
+    /**
+     * 目标回包按Socket找到所属会话，还在池里的Socket上收到的报文直接丢弃
+     */
+    @ChannelHandler.Sharable
+    private class ReplyHandler extends SimpleChannelInboundHandler<DatagramPacket> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) throws Exception {
+            UdpSession session = ctx.channel().attr(SESSION).get();
+            if (session == null) {
+                dropped.increment();
+                return;
+            }
+            packetsIn.increment();
+            // packet会被SimpleChannelInboundHandler释放，负载需要额外retain一次
+            session.onReply(packet.content().retain());
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            if (idle.remove(ctx.channel())) {
+                idleCount.decrementAndGet();
+            }
+            super.channelInactive(ctx);
+        }
+
+        // 目标端口不可达等ICMP错误不关闭Socket，UDP上它们只代表某个报文没送到
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            log.debug("UDP socket error: {}", getTarget(), cause);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.imddy.frp.agent.proxy;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Agent端的一个UDP会话，对应服务端的一个客户端地址。
+ * Socket就绪前到达的报文按上限缓存，就绪后直接写出；回包经会话表发回服务端。
+ */
+@Slf4j
+public class UdpSession implements TimerTask {
+    private final int streamId;
+    private final UdpRelay relay;
+    private final UdpSessionManager manager;
+    private final Queue<ByteBuf> pendingData = new ArrayDeque<>();
+    private Channel channel;
+    private boolean closed;
+    private volatile long lastActiveNanos = System.nanoTime();
+    private volatile Timeout timeout;
+
+    UdpSession(int streamId, UdpRelay relay, UdpSessionManager manager) {
+        this.streamId = streamId;
+        this.relay = relay;
+        this.manager = manager;
+    }
+
+    public int getStreamId() {
+        return streamId;
+    }
+
+    void start() {
+        timeout = relay.newTimeout(this, relay.getConfig().getIdleTimeoutMillis());
+    }
+
+    /**
+     * Socket就绪，绑定到会话并写出缓存的报文；会话已关闭时返回false
+     */
+    boolean onBound(Channel channel) {
+        channel.attr(UdpRelay.SESSION).set(this);
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            this.channel = channel;
+            ByteBuf buf;
+            while ((buf = pendingData.poll()) != null) {
+                channel.write(buf, channel.voidPromise());
+                relay.onPacketOut();
+            }
+        }
+        channel.flush();
+        // 目标Socket意外关闭时结束会话
+        channel.closeFuture().addListener(future -> manager.evict(this, false));
+        return true;
+    }
+
+    /**
+     * 服务端发来的报文写给目标，写入后需要调用flush
+     */
+    public void forward(ByteBuf data) {
+        lastActiveNanos = System.nanoTime();
+        Channel ch;
+        synchronized (this) {
+            if (closed) {
+                data.release();
+                return;
+            }
+            ch = channel;
+            if (ch == null) {
+                if (pendingData.size() >= relay.getConfig().getMaxPendingPackets()) {
+                    data.release();
+                    relay.onPacketDropped();
+                    return;
+                }
+                pendingData.offer(data);
+                return;
+            }
+        }
+        ch.write(data, ch.voidPromise());
+        relay.onPacketOut();
+    }
+
+    public void flush() {
+        Channel ch;
+        synchronized (this) {
+            ch = channel;
+        }
+        if (ch != null) {
+            ch.flush();
+        }
+    }
+
+    void onReply(ByteBuf content) {
+        lastActiveNanos = System.nanoTime();
+        manager.reply(streamId, content);
+    }
+
+    public void close() {
+        Channel ch;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            ch = channel;
+            ByteBuf buf;
+            while ((buf = pendingData.poll()) != null) {
+                buf.release();
+            }
+        }
+        Timeout t = timeout;
+        if (t != null) {
+            t.cancel();
+        }
+        if (ch != null) {
+            ch.close();
+        }
+    }
+
+    // 空闲检查：未到期时按剩余时间重新排期，避免每个报文都重设定时器
+    @Override
+    public void run(Timeout t) {
+        long idleMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastActiveNanos);
+        long remaining = relay.getConfig().getIdleTimeoutMillis() - idleMillis;
+        if (remaining > 0) {
+            synchronized (this) {
+                if (!closed) {
+                    timeout = relay.newTimeout(this, remaining);
+                }
+            }
+            return;
+        }
+        log.debug("UDP session idle evicted: streamId={}", streamId);
+        manager.evict(this, true);
+    }
+}
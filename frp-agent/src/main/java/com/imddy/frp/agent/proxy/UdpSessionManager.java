@@ -0,0 +1,159 @@
+package com.imddy.frp.agent.proxy;
+
+import com.imddy.frp.common.codec.DatagramBatcher;
+import com.imddy.frp.common.protocol.Message;
+import com.imddy.frp.common.stream.StreamTable;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.util.concurrent.FutureListener;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 单条服务端链路上的UDP会话表，流ID由服务端分配
+ */
+@Slf4j
+public class UdpSessionManager {
+    private final StreamTable<UdpSession> sessions = new StreamTable<>();
+    private final UdpRelay relay;
+    private final Channel serverChannel;
+    // 与服务端协商启用合并帧后非空，回包经它合并
+    private volatile DatagramBatcher batcher;
+
+    public UdpSessionManager(UdpRelay relay, Channel serverChannel) {
+        this.relay = relay;
+        this.serverChannel = serverChannel;
+    }
+
+    /**
+     * 服务端新会话：登记后异步取Socket，期间到达的报文由会话缓存。只有失败时才回复CONNECT_ACK
+     */
+    public void open(int streamId) {
+        if (!relay.tryReserve()) {
+            log.warn("UDP session limit reached, reject stream: {}", streamId);
+            serverChannel.writeAndFlush(Message.connectAck(streamId, false));
+            return;
+        }
+        UdpSession session = new UdpSession(streamId, relay, this);
+        UdpSession previous = sessions.remove(streamId);
+        if (previous != null) {
+            closeSession(previous, false);
+        }
+        sessions.put(streamId, session);
+        session.start();
+
+        relay.acquire().addListener((FutureListener<Channel>) future -> {
+            if (future.isSuccess()) {
+                if (!session.onBound(future.getNow())) {
+                    // 取Socket期间会话已关闭
+                    future.getNow().close();
+                }
+            } else {
+                log.error("Failed to bind UDP socket to target: {}", relay.getTarget(), future.cause());
+                if (sessions.remove(streamId, session)) {
+                    closeSession(session, false);
+                    serverChannel.writeAndFlush(Message.connectAck(streamId, false));
+                }
+            }
+        });
+    }
+
+    /**
+     * 负载转交给会话，会话不存在时通知服务端丢弃它那一侧的会话
+     */
+    public void forward(int streamId, ByteBuf data) {
+        UdpSession session = sessions.get(streamId);
+        if (session != null) {
+            session.forward(data);
+            session.flush();
+        } else {
+            data.release();
+            serverChannel.writeAndFlush(Message.disconnect(streamId));
+        }
+    }
+
+    /**
+     * 拆开合并帧，报文全部写出后每个会话只flush一次
+     */
+    public void forwardBatch(ByteBuf frame) {
+        List<UdpSession> touched = new ArrayList<>();
+        DatagramBatcher.forEach(frame, (streamId, payload) -> {
+            UdpSession session = sessions.get(streamId);
+            if (session != null) {
+                session.forward(payload.retain());
+                if (!touched.contains(session)) {
+                    touched.add(session);
+                }
+            } else {
+                serverChannel.writeAndFlush(Message.disconnect(streamId));
+            }
+        });
+        for (UdpSession session : touched) {
+            session.flush();
+        }
+    }
+
+    public void enableBatching(int maxBatchBytes, long maxDelayMicros) {
+        batcher = new DatagramBatcher(serverChannel, maxBatchBytes, maxDelayMicros);
+    }
+
+    public DatagramBatcher getBatcher() {
+        return batcher;
+    }
+
+    /**
+     * 目标的回包发回服务端，content的所有权转移
+     */
+    void reply(int streamId, ByteBuf content) {
+        DatagramBatcher b = batcher;
+        if (b != null) {
+            b.add(streamId, content);
+        } else if (serverChannel.isActive()) {
+            serverChannel.writeAndFlush(Message.data(streamId, content));
+        } else {
+            content.release();
+        }
+    }
+
+    /**
+     * 服务端关闭会话
+     */
+    public void remove(int streamId) {
+        UdpSession session = sessions.remove(streamId);
+        if (session != null) {
+            closeSession(session, false);
+        }
+    }
+
+    /**
+     * Agent侧结束会话（空闲超时或Socket关闭），通知服务端
+     */
+    void evict(UdpSession session, boolean idle) {
+        if (sessions.remove(session.getStreamId(), session)) {
+            closeSession(session, idle);
+            if (serverChannel.isActive()) {
+                serverChannel.writeAndFlush(Message.disconnect(session.getStreamId()));
+            }
+        }
+    }
+
+    private void closeSession(UdpSession session, boolean idle) {
+        session.close();
+        relay.onSessionClosed(idle);
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    public void closeAll() {
+        for (UdpSession session : sessions.drain()) {
+            closeSession(session, false);
+        }
+        if (batcher != null) {
+            batcher.close();
+        }
+    }
+}
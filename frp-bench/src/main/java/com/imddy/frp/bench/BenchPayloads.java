@@ -0,0 +1,27 @@
+package com.imddy.frp.bench;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 基准测试用的负载：类似日志/SQL结果集的文本，可以被压缩
+ */
+final class BenchPayloads {
+
+    private BenchPayloads() {
+    }
+
+    static ByteBuf text(int size) {
+        ByteBuf buf = PooledByteBufAllocator.DEFAULT.directBuffer(size);
+        int row = 0;
+        while (buf.writableBytes() > 0) {
+            byte[] line = ("2026-10-18 12:00:00.000 INFO row=" + row + " user=u" + (row % 97)
+                    + " status=ok latency=" + (row * 7 % 1000) + "ms\n").getBytes(StandardCharsets.UTF_8);
+            buf.writeBytes(line, 0, Math.min(line.length, buf.writableBytes()));
+            row++;
+        }
+        return buf;
+    }
+}
@@ -0,0 +1,89 @@
+package com.imddy.frp.bench;
+
+import com.imddy.frp.common.codec.MessageCodec;
+import com.imddy.frp.common.protocol.Message;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.LengthFieldPrepender;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 与FrpServer/FrpAgent相同的链路pipeline：LengthFieldBasedFrameDecoder + LengthFieldPrepender + MessageCodec
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramePipelineBenchmark {
+    // 一次socket读到的帧数
+    private static final int BATCH = 16;
+
+    @Param({"64", "1024", "16384"})
+    private int payloadSize;
+
+    private EmbeddedChannel channel;
+    private ByteBuf payload;
+    // BATCH个完整帧拼在一起，模拟一次读到多帧
+    private ByteBuf wire;
+
+    @Setup
+    public void setup() {
+        channel = new EmbeddedChannel(
+                new LengthFieldBasedFrameDecoder(1024 * 1024, 0, 4, 0, 4),
+                new LengthFieldPrepender(4),
+                new MessageCodec());
+        payload = BenchPayloads.text(payloadSize);
+
+        wire = channel.alloc().directBuffer();
+        for (int i = 0; i < BATCH; i++) {
+            channel.writeOutbound(Message.data(i + 1, payload.retainedDuplicate()));
+            ByteBuf buf;
+            while ((buf = channel.readOutbound()) != null) {
+                wire.writeBytes(buf);
+                buf.release();
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        payload.release();
+        wire.release();
+        channel.finishAndReleaseAll();
+    }
+
+    /**
+     * 单帧编码后再解码回来
+     */
+    @Benchmark
+    public void roundTrip(Blackhole bh) {
+        channel.writeOutbound(Message.data(7, payload.retainedDuplicate()));
+        ByteBuf buf;
+        while ((buf = channel.readOutbound()) != null) {
+            channel.writeInbound(buf);
+        }
+        Message msg = channel.readInbound();
+        bh.consume(msg);
+        msg.release();
+    }
+
+    /**
+     * 一次读入BATCH帧并全部解码，结果按帧数归一化
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void decodeBatch(Blackhole bh) {
+        channel.writeInbound(wire.retainedDuplicate());
+        Message msg;
+        while ((msg = channel.readInbound()) != null) {
+            bh.consume(msg);
+            msg.release();
+        }
+    }
+}
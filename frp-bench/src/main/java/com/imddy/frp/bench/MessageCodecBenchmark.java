@@ -0,0 +1,118 @@
+package com.imddy.frp.bench;
+
+import com.imddy.frp.common.codec.MessageCodec;
+import com.imddy.frp.common.compress.CompressionStats;
+import com.imddy.frp.common.config.CompressionConfig;
+import com.imddy.frp.common.protocol.Message;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 直接调用MessageCodec的encode/decode，不经过pipeline。payloadSize为0时测的是WINDOW_UPDATE这类控制帧
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageCodecBenchmark {
+
+    @Param({"0", "64", "1024", "16384", "65536"})
+    private int payloadSize;
+
+    @Param({"none", "deflate"})
+    private String compression;
+
+    private ExposedCodec codec;
+    private EmbeddedChannel channel;
+    private ChannelHandlerContext ctx;
+    private ByteBuf payload;
+    private ByteBuf encoded;
+    private final List<Object> out = new ArrayList<>();
+
+    @Setup
+    public void setup() throws Exception {
+        CompressionConfig config = new CompressionConfig();
+        config.setEnabled(true);
+        codec = new ExposedCodec(config);
+        channel = new EmbeddedChannel(codec);
+        ctx = channel.pipeline().context(codec);
+        if (!"none".equals(compression)) {
+            codec.enableCompression(compression);
+        }
+        payload = BenchPayloads.text(payloadSize);
+
+        // 预先编码一帧作为decode的输入
+        Message msg = newMessage();
+        codec.encode(ctx, msg, out);
+        msg.release();
+        ByteBuf frame = (ByteBuf) out.get(0);
+        encoded = channel.alloc().directBuffer(frame.readableBytes()).writeBytes(frame);
+        frame.release();
+        out.clear();
+    }
+
+    @TearDown
+    public void tearDown() {
+        payload.release();
+        encoded.release();
+        channel.finishAndReleaseAll();
+    }
+
+    private Message newMessage() {
+        return payloadSize == 0
+                ? Message.windowUpdate(7, 128 * 1024)
+                : Message.data(7, payload.retainedDuplicate());
+    }
+
+    @Benchmark
+    public void encode(Blackhole bh) throws Exception {
+        Message msg = newMessage();
+        codec.encode(ctx, msg, out);
+        // pipeline中由MessageToMessageEncoder在encode后释放消息
+        msg.release();
+        for (Object frame : out) {
+            bh.consume(frame);
+            ReferenceCountUtil.release(frame);
+        }
+        out.clear();
+    }
+
+    @Benchmark
+    public void decode(Blackhole bh) throws Exception {
+        codec.decode(ctx, encoded.duplicate(), out);
+        for (Object msg : out) {
+            bh.consume(msg);
+            ReferenceCountUtil.release(msg);
+        }
+        out.clear();
+    }
+
+    /**
+     * 暴露protected的encode/decode
+     */
+    static class ExposedCodec extends MessageCodec {
+        ExposedCodec(CompressionConfig config) {
+            super(config, new CompressionStats());
+        }
+
+        @Override
+        public void encode(ChannelHandlerContext ctx, Message msg, List<Object> out) throws Exception {
+            super.encode(ctx, msg, out);
+        }
+
+        @Override
+        public void decode(ChannelHandlerContext ctx, ByteBuf buf, List<Object> out) throws Exception {
+            super.decode(ctx, buf, out);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.imddy.frp.bench;
+
+import com.imddy.frp.common.protocol.MessageType;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 每帧解码都会调用MessageType.fromCode
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageTypeBenchmark {
+    private int[] codes;
+    private int index;
+
+    @Setup
+    public void setup() {
+        MessageType[] types = MessageType.values();
+        codes = new int[types.length];
+        for (int i = 0; i < types.length; i++) {
+            codes[i] = types[i].getCode();
+        }
+    }
+
+    @Benchmark
+    public MessageType fromCode() {
+        int code = codes[index];
+        index = index + 1 == codes.length ? 0 : index + 1;
+        return MessageType.fromCode(code);
+    }
+
+    /**
+     * 数据路径上最常见的DATA帧
+     */
+    @Benchmark
+    public MessageType fromCodeData() {
+        return MessageType.fromCode(MessageType.DATA.getCode());
+    }
+}
@@ -0,0 +1,145 @@
+package com.imddy.frp.bench;
+
+import com.imddy.frp.common.session.LinkSession;
+import com.imddy.frp.common.stream.StreamWindow;
+import com.imddy.frp.server.config.ServerConfig;
+import com.imddy.frp.server.tunnel.AgentLink;
+import com.imddy.frp.server.tunnel.TunnelManager;
+import com.imddy.frp.server.tunnel.TunnelStream;
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 多个事件循环线程同时做隧道查找、链路选择和流表读写时的开销
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class TunnelRoutingBenchmark {
+
+    @Param({"16"})
+    private int tunnelCount;
+
+    @Param({"4"})
+    private int linksPerTunnel;
+
+    @Param({"256"})
+    private int streamsPerLink;
+
+    private TunnelManager tunnelManager;
+    private String[] tunnelNames;
+    private final List<EmbeddedChannel> channels = new ArrayList<>();
+
+    @Setup
+    public void setup() {
+        tunnelManager = new TunnelManager();
+        tunnelNames = new String[tunnelCount];
+        for (int i = 0; i < tunnelCount; i++) {
+            ServerConfig.TunnelConfig config = new ServerConfig.TunnelConfig();
+            config.setName("tunnel-" + i);
+            config.setType("tcp");
+            config.setOpenPort(20000 + i);
+            config.setAgentPort(30000 + i);
+            tunnelManager.registerTunnel(config);
+            tunnelNames[i] = config.getName();
+
+            for (int l = 0; l < linksPerTunnel; l++) {
+                EmbeddedChannel channel = new EmbeddedChannel();
+                channels.add(channel);
+                LinkSession session = new LinkSession(0);
+                session.start(channel, null);
+                AgentLink link = tunnelManager.agentConnected(config.getName(), "agent-" + l, channel, session);
+                for (int s = 0; s < streamsPerLink; s++) {
+                    link.getStreams().register(new BenchStream(link));
+                }
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (EmbeddedChannel channel : channels) {
+            channel.finishAndReleaseAll();
+        }
+    }
+
+    /**
+     * AgentServerHandler收到帧后的路径：按名字找隧道，再在链路流表中按流ID查找
+     */
+    @Benchmark
+    public TunnelStream lookupStream() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        TunnelManager.TunnelInfo tunnel = tunnelManager.getTunnel(tunnelNames[random.nextInt(tunnelCount)]);
+        AgentLink link = tunnel.getLinks().getLinks().get(random.nextInt(linksPerTunnel));
+        return link.getStreams().get(1 + random.nextInt(streamsPerLink));
+    }
+
+    /**
+     * ClientProxyHandler.channelActive的路径：选择负载最低的链路
+     */
+    @Benchmark
+    public AgentLink selectLink() {
+        TunnelManager.TunnelInfo tunnel =
+                tunnelManager.getTunnel(tunnelNames[ThreadLocalRandom.current().nextInt(tunnelCount)]);
+        return tunnel.getLinks().select();
+    }
+
+    /**
+     * 新建和关闭流：流表的分配和删除
+     */
+    @Benchmark
+    public boolean openCloseStream() {
+        TunnelManager.TunnelInfo tunnel =
+                tunnelManager.getTunnel(tunnelNames[ThreadLocalRandom.current().nextInt(tunnelCount)]);
+        AgentLink link = tunnel.getLinks().select();
+        BenchStream stream = new BenchStream(link);
+        int streamId = link.getStreams().register(stream);
+        return link.getStreams().remove(streamId, stream);
+    }
+
+    static class BenchStream implements TunnelStream {
+        private final AgentLink link;
+        private final StreamWindow window = new StreamWindow();
+
+        BenchStream(AgentLink link) {
+            this.link = link;
+        }
+
+        @Override
+        public Channel getChannel() {
+            return link.getChannel();
+        }
+
+        @Override
+        public AgentLink getLink() {
+            return link;
+        }
+
+        @Override
+        public StreamWindow getWindow() {
+            return window;
+        }
+
+        @Override
+        public void onAgentConnected(boolean success) {
+        }
+
+        @Override
+        public void onWindowUpdate(int increment) {
+        }
+
+        @Override
+        public void onLinkWritabilityChanged(boolean writable) {
+        }
+    }
+}
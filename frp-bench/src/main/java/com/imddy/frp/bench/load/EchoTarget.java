@@ -0,0 +1,98 @@
+package com.imddy.frp.bench.load;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.*;
+
+import java.net.InetSocketAddress;
+
+/**
+ * 被代理的目标服务：tcp/udp原样回显，http返回payloadSize字节的响应体
+ */
+public class EchoTarget {
+    private final LoadOptions options;
+    private final EventLoopGroup group = new NioEventLoopGroup();
+    private Channel channel;
+
+    public EchoTarget(LoadOptions options) {
+        this.options = options;
+    }
+
+    public int start() throws InterruptedException {
+        switch (options.getMode()) {
+            case "udp":
+                channel = new Bootstrap().group(group)
+                        .channel(NioDatagramChannel.class)
+                        .handler(new SimpleChannelInboundHandler<DatagramPacket>() {
+                            @Override
+                            protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) {
+                                ctx.writeAndFlush(new DatagramPacket(packet.content().retain(), packet.sender()));
+                            }
+                        })
+                        .bind(0).sync().channel();
+                break;
+            case "http":
+                ByteBuf body = Unpooled.unreleasableBuffer(
+                        Unpooled.directBuffer(options.getPayloadSize()).writeZero(options.getPayloadSize()));
+                channel = serverBootstrap(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new HttpServerCodec());
+                        ch.pipeline().addLast(new HttpObjectAggregator(65536));
+                        ch.pipeline().addLast(new SimpleChannelInboundHandler<FullHttpRequest>() {
+                            @Override
+                            protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+                                FullHttpResponse response = new DefaultFullHttpResponse(
+                                        HttpVersion.HTTP_1_1, HttpResponseStatus.OK, body.duplicate());
+                                response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/octet-stream");
+                                response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, body.readableBytes());
+                                ctx.writeAndFlush(response);
+                            }
+                        });
+                    }
+                });
+                break;
+            default:
+                channel = serverBootstrap(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new ChannelInboundHandlerAdapter() {
+                            @Override
+                            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                                ctx.write(msg);
+                            }
+
+                            @Override
+                            public void channelReadComplete(ChannelHandlerContext ctx) {
+                                ctx.flush();
+                            }
+                        });
+                    }
+                });
+        }
+        return ((InetSocketAddress) channel.localAddress()).getPort();
+    }
+
+    private Channel serverBootstrap(ChannelInitializer<SocketChannel> initializer) throws InterruptedException {
+        return new ServerBootstrap().group(group)
+                .channel(NioServerSocketChannel.class)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childHandler(initializer)
+                .bind(0).sync().channel();
+    }
+
+    public void stop() {
+        if (channel != null) {
+            channel.close();
+        }
+        group.shutdownGracefully();
+    }
+}
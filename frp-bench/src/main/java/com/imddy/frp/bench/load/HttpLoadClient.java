@@ -0,0 +1,106 @@
+package com.imddy.frp.bench.load;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.*;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * keep-alive连接上顺序发送GET请求，目标返回payloadSize字节的响应体
+ */
+public class HttpLoadClient extends LoadClient {
+
+    public HttpLoadClient(LoadOptions options, LoadStats stats, EventLoopGroup group, String host, int port) {
+        super(options, stats, group, host, port);
+    }
+
+    @Override
+    protected void open() {
+        long connectStart = System.nanoTime();
+        new Bootstrap().group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new HttpClientCodec());
+                        ch.pipeline().addLast(new HttpObjectAggregator(options.getPayloadSize() + 65536));
+                        ch.pipeline().addLast(new ResponseHandler(connectStart));
+                    }
+                })
+                .connect(host, port)
+                .addListener((ChannelFutureListener) future -> {
+                    if (!future.isSuccess()) {
+                        stats.onError();
+                        if (running) {
+                            group.schedule(this::open, 100, TimeUnit.MILLISECONDS);
+                        }
+                        return;
+                    }
+                    stats.onConnect();
+                    future.channel().closeFuture().addListener(f -> {
+                        if (running) {
+                            open();
+                        }
+                    });
+                });
+    }
+
+    private class ResponseHandler extends SimpleChannelInboundHandler<FullHttpResponse> {
+        private final long connectStart;
+        private long sentAt;
+        private int completed;
+        private boolean outstanding;
+
+        ResponseHandler(long connectStart) {
+            this.connectStart = connectStart;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            send(ctx);
+        }
+
+        private void send(ChannelHandlerContext ctx) {
+            FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/bench");
+            request.headers().set(HttpHeaderNames.HOST, host + ":" + port);
+            request.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+            sentAt = System.nanoTime();
+            outstanding = true;
+            ctx.writeAndFlush(request);
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse response) {
+            long now = System.nanoTime();
+            outstanding = false;
+            if (!response.status().equals(HttpResponseStatus.OK)) {
+                stats.onError();
+            }
+            stats.onResponse(now - sentAt, response.content().readableBytes());
+            if (completed++ == 0) {
+                stats.onFirstResponse(now - connectStart);
+            }
+            if (shouldClose(completed)) {
+                ctx.close();
+            } else {
+                send(ctx);
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            if (outstanding && running) {
+                stats.onError();
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.imddy.frp.bench.load;
+
+import io.netty.channel.EventLoopGroup;
+
+/**
+ * 压测客户端：保持options.connections条并发连接（会话），连接关闭后在压测期间自动重建
+ */
+public abstract class LoadClient {
+    protected final LoadOptions options;
+    protected final LoadStats stats;
+    protected final EventLoopGroup group;
+    protected final String host;
+    protected final int port;
+    protected volatile boolean running = true;
+
+    protected LoadClient(LoadOptions options, LoadStats stats, EventLoopGroup group, String host, int port) {
+        this.options = options;
+        this.stats = stats;
+        this.group = group;
+        this.host = host;
+        this.port = port;
+    }
+
+    public void start() {
+        for (int i = 0; i < options.getConnections(); i++) {
+            open();
+        }
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    /**
+     * 打开一条连接，关闭后如果仍在压测则重新打开
+     */
+    protected abstract void open();
+
+    // 当前连接是否应该在完成一次请求后断开
+    protected boolean shouldClose(int completedRequests) {
+        return !running || (options.getRequestsPerConnection() > 0
+                && completedRequests >= options.getRequestsPerConnection());
+    }
+
+    public static LoadClient create(LoadOptions options, LoadStats stats, EventLoopGroup group, String host, int port) {
+        switch (options.getMode()) {
+            case "http":
+                return new HttpLoadClient(options, stats, group, host, port);
+            case "udp":
+                return new UdpLoadClient(options, stats, group, host, port);
+            case "tcp":
+                return new TcpLoadClient(options, stats, group, host, port);
+            default:
+                throw new IllegalArgumentException("Unsupported mode: " + options.getMode());
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.imddy.frp.bench.load;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.imddy.frp.agent.FrpAgent;
+import com.imddy.frp.agent.config.AgentConfig;
+import com.imddy.frp.server.FrpServer;
+import com.imddy.frp.server.config.ServerConfig;
+import com.imddy.frp.server.tunnel.TunnelManager;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 端到端压测：在同一个JVM中启动目标服务、FrpServer和FrpAgent，客户端经隧道的openPort访问目标，
+ * 输出吞吐、连接速率和延迟分位数（JSON），便于不同版本、不同配置之间对比。
+ * <p>
+ * java -cp frp-bench.jar com.imddy.frp.bench.load.LoadGenerator mode=tcp connections=64 payloadSize=16384
+ */
+public class LoadGenerator {
+    private static final String TUNNEL_NAME = "load";
+    private static final String HOST = "127.0.0.1";
+
+    private final LoadOptions options;
+    private final ObjectMapper objectMapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+    public LoadGenerator(LoadOptions options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> overrides = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                System.err.println("Invalid argument, expected key=value: " + arg);
+                System.exit(2);
+            }
+            overrides.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        LoadOptions options = new ObjectMapper().convertValue(overrides, LoadOptions.class);
+        setLogLevel(Level.toLevel(options.getLogLevel(), Level.WARN));
+
+        new LoadGenerator(options).run();
+        System.exit(0);
+    }
+
+    // 服务端和Agent默认按INFO打印每条连接，压测时会影响结果
+    private static void setLogLevel(Level level) {
+        LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+        for (ch.qos.logback.classic.Logger logger : context.getLoggerList()) {
+            if (logger.getLevel() != null) {
+                logger.setLevel(level);
+            }
+        }
+        context.getLogger(Logger.ROOT_LOGGER_NAME).setLevel(level);
+    }
+
+    public Map<String, Object> run() throws Exception {
+        EchoTarget target = new EchoTarget(options);
+        int targetPort = target.start();
+        int openPort = freePort();
+
+        int agentPort = freePort();
+
+        ServerConfig serverConfig = serverConfig(openPort, agentPort, freePort());
+        FrpServer server = new FrpServer(serverConfig);
+        server.start();
+        FrpAgent agent = new FrpAgent(agentConfig(agentPort, targetPort));
+        agent.start();
+        EventLoopGroup clientGroup = new NioEventLoopGroup();
+        RegistrationLoad idleTunnels = null;
+        try {
+            awaitLinks(server.getTunnelManager());
+
+            // 其余隧道在同一个Agent端口上注册，压测期间保持在线
+            Map<String, Object> registration = null;
+            if (options.getTunnels() > 1) {
+                idleTunnels = new RegistrationLoad(clientGroup, HOST, agentPort, serverConfig.getHeartbeatTimeoutSeconds());
+                registration = idleTunnels.register(idleTunnelNames());
+            }
+
+            LoadStats stats = new LoadStats();
+            LoadClient client = LoadClient.create(options, stats, clientGroup, HOST, openPort);
+            client.start();
+            Thread.sleep(options.getWarmupSeconds() * 1000L);
+            stats.reset();
+            Thread.sleep(options.getDurationSeconds() * 1000L);
+            Map<String, Object> snapshot = stats.snapshot();
+            client.stop();
+
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("options", options);
+            if (registration != null) {
+                result.put("registration", registration);
+            }
+            result.put("result", snapshot);
+            String json = objectMapper.writeValueAsString(result);
+            System.out.println(json);
+            if (options.getOut() != null && !options.getOut().isEmpty()) {
+                objectMapper.writeValue(new File(options.getOut()), result);
+            }
+            return result;
+        } finally {
+            if (idleTunnels != null) {
+                idleTunnels.close();
+            }
+            clientGroup.shutdownGracefully();
+            agent.stop();
+            server.stop();
+            target.stop();
+        }
+    }
+
+    private ServerConfig serverConfig(int openPort, int agentPort, int managementPort) {
+        ServerConfig config = new ServerConfig();
+        ServerConfig.Management management = new ServerConfig.Management();
+        management.setPort(managementPort);
+        config.setManagement(management);
+
+        ServerConfig.TunnelConfig tunnel = new ServerConfig.TunnelConfig();
+        tunnel.setName(TUNNEL_NAME);
+        tunnel.setType(options.getMode());
+        tunnel.setOpenPort(openPort);
+        tunnel.setOptimisticConnect(options.isOptimisticConnect());
+        tunnel.getUdp().setBatchEnabled(options.isDatagramBatch());
+        if (options.getTunnels() > 1) {
+            // 只监听一个Agent端口；其余隧道是只走vhost的http隧道，不监听openPort
+            config.setAgentPort(agentPort);
+            List<ServerConfig.TunnelConfig> tunnels = new ArrayList<>();
+            tunnels.add(tunnel);
+            for (String name : idleTunnelNames()) {
+                ServerConfig.TunnelConfig idle = new ServerConfig.TunnelConfig();
+                idle.setName(name);
+                idle.setType("http");
+                idle.setDomains(List.of(name + ".bench.local"));
+                tunnels.add(idle);
+            }
+            config.setTunnels(tunnels);
+        } else {
+            tunnel.setAgentPort(agentPort);
+            config.setTunnels(List.of(tunnel));
+        }
+
+        config.getCompression().setEnabled(options.isCompression());
+        config.getTransport().setType(options.getTransport());
+        config.setLoopAffinity(options.isLoopAffinity());
+        return config;
+    }
+
+    private List<String> idleTunnelNames() {
+        List<String> names = new ArrayList<>();
+        for (int i = 1; i < options.getTunnels(); i++) {
+            names.add("idle-" + i);
+        }
+        return names;
+    }
+
+    private AgentConfig agentConfig(int agentPort, int targetPort) {
+        AgentConfig config = new AgentConfig();
+        config.setType(options.getMode());
+        config.setTunnelName(TUNNEL_NAME);
+
+        AgentConfig.FrpTunnel frpTunnel = new AgentConfig.FrpTunnel();
+        frpTunnel.setHost(HOST);
+        frpTunnel.setPort(agentPort);
+        config.setFrpTunnel(frpTunnel);
+
+        AgentConfig.Proxy proxy = new AgentConfig.Proxy();
+        proxy.setHost(HOST);
+        proxy.setPort(targetPort);
+        config.setProxy(proxy);
+
+        config.setConnections(options.getAgentLinks());
+        config.getPool().setEnabled(options.isPool());
+        config.setLoopAffinity(options.isLoopAffinity());
+        config.getUdp().setBatchEnabled(options.isDatagramBatch());
+        config.getCompression().setEnabled(options.isCompression());
+        config.getTransport().setType(options.getTransport());
+        return config;
+    }
+
+    private void awaitLinks(TunnelManager tunnelManager) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        TunnelManager.TunnelInfo tunnel = tunnelManager.getTunnel(TUNNEL_NAME);
+        while (tunnel.getLinks().size() < options.getAgentLinks()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Agent did not connect within 10 seconds");
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.imddy.frp.bench.load;
+
+import lombok.Data;
+
+/**
+ * 压测参数，命令行以key=value形式覆盖
+ */
+@Data
+public class LoadOptions {
+    // tcp | http | udp
+    private String mode = "tcp";
+    // 并发客户端连接数（udp为并发会话数）
+    private int connections = 32;
+    // 每次请求的负载字节数，tcp/udp原样回显，http为响应体大小
+    private int payloadSize = 1024;
+    // 每条连接发送多少个请求后断开重连，0表示不重连
+    private int requestsPerConnection = 0;
+    private int warmupSeconds = 3;
+    private int durationSeconds = 10;
+    // udp请求超时视为丢包
+    private int udpTimeoutMillis = 1000;
+
+    // 被测隧道的配置
+    private int agentLinks = 1;
+    // 服务端隧道总数，大于1时所有隧道共用一个Agent端口，压测隧道之外的隧道各注册一条空闲链路
+    private int tunnels = 1;
+    private boolean optimisticConnect = false;
+    private boolean compression = false;
+    private boolean pool = false;
+    // 服务端和Agent都开启loopAffinity
+    private boolean loopAffinity = false;
+    // udp隧道是否合并报文
+    private boolean datagramBatch = true;
+    private String transport = "auto";
+
+    // 结果JSON输出文件，为空时只打印到标准输出
+    private String out;
+    private String logLevel = "WARN";
+}
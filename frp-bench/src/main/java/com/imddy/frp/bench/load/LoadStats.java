@@ -0,0 +1,91 @@
+package com.imddy.frp.bench.load;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 压测统计。预热结束时reset，之后的数据才计入结果
+ */
+public class LoadStats {
+    // 请求往返延迟
+    private final Recorder latency = new Recorder(3);
+    // 从发起连接到收到第一个完整响应，包含隧道建立流的开销
+    private final Recorder firstResponse = new Recorder(3);
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder connects = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private volatile long startNanos = System.nanoTime();
+
+    public void onResponse(long latencyNanos, long transferredBytes) {
+        latency.recordValue(TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+        requests.increment();
+        bytes.add(transferredBytes);
+    }
+
+    public void onFirstResponse(long nanos) {
+        firstResponse.recordValue(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    public void onConnect() {
+        connects.increment();
+    }
+
+    public void onError() {
+        errors.increment();
+    }
+
+    public void onTimeout() {
+        timeouts.increment();
+    }
+
+    public void reset() {
+        latency.reset();
+        firstResponse.reset();
+        requests.reset();
+        bytes.reset();
+        connects.reset();
+        errors.reset();
+        timeouts.reset();
+        startNanos = System.nanoTime();
+    }
+
+    public Map<String, Object> snapshot() {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("seconds", round(seconds));
+        result.put("requests", requests.sum());
+        result.put("requestsPerSec", round(requests.sum() / seconds));
+        result.put("bytes", bytes.sum());
+        result.put("mbPerSec", round(bytes.sum() / seconds / (1024 * 1024)));
+        result.put("connects", connects.sum());
+        result.put("connectsPerSec", round(connects.sum() / seconds));
+        result.put("errors", errors.sum());
+        result.put("timeouts", timeouts.sum());
+        result.put("latencyMicros", percentiles(latency.getIntervalHistogram()));
+        result.put("firstResponseMicros", percentiles(firstResponse.getIntervalHistogram()));
+        return result;
+    }
+
+    private static Map<String, Object> percentiles(Histogram histogram) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("count", histogram.getTotalCount());
+        result.put("mean", round(histogram.getMean()));
+        result.put("p50", histogram.getValueAtPercentile(50));
+        result.put("p90", histogram.getValueAtPercentile(90));
+        result.put("p99", histogram.getValueAtPercentile(99));
+        result.put("p999", histogram.getValueAtPercentile(99.9));
+        result.put("max", histogram.getMaxValue());
+        return result;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100) / 100.0;
+    }
+}
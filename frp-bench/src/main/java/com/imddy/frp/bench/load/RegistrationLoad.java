@@ -0,0 +1,181 @@
+package com.imddy.frp.bench.load;
+
+import com.imddy.frp.common.codec.MessageCodec;
+import com.imddy.frp.common.protocol.Message;
+import com.imddy.frp.common.protocol.MessageType;
+import com.imddy.frp.common.protocol.ProxyProtocol;
+import com.imddy.frp.common.protocol.RegisterOptions;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.LengthFieldPrepender;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.HdrHistogram.Histogram;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 在共享Agent端口上为每个隧道建立一条链路并注册，统计注册延迟。
+ * 链路保持到压测结束并定时发送心跳，模拟大量隧道同时在线
+ */
+public class RegistrationLoad {
+    // 同时进行中的注册数
+    private static final int CONCURRENCY = 256;
+
+    private final EventLoopGroup group;
+    private final String host;
+    private final int port;
+    // 与Agent的默认值一样取服务端心跳超时的三分之一
+    private final int heartbeatIntervalSeconds;
+    private final ChannelGroup channels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+    private final Histogram latency = new Histogram(3);
+    private final LongAdder failures = new LongAdder();
+
+    public RegistrationLoad(EventLoopGroup group, String host, int port, int heartbeatTimeoutSeconds) {
+        this.group = group;
+        this.host = host;
+        this.port = port;
+        this.heartbeatIntervalSeconds = heartbeatTimeoutSeconds > 0 ? Math.max(1, heartbeatTimeoutSeconds / 3) : 10;
+    }
+
+    /**
+     * 注册所有隧道，全部完成（成功或失败）后返回统计
+     */
+    public Map<String, Object> register(List<String> tunnelNames) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(tunnelNames.size());
+        AtomicInteger next = new AtomicInteger();
+        long start = System.nanoTime();
+        for (int i = 0; i < Math.min(CONCURRENCY, tunnelNames.size()); i++) {
+            registerNext(tunnelNames, next, done);
+        }
+        done.await(5, TimeUnit.MINUTES);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("tunnels", tunnelNames.size());
+        result.put("registered", latency.getTotalCount());
+        result.put("failures", failures.sum());
+        result.put("seconds", Math.round(seconds * 100) / 100.0);
+        result.put("registrationsPerSec", Math.round(latency.getTotalCount() / seconds));
+        Map<String, Object> micros = new LinkedHashMap<>();
+        micros.put("p50", latency.getValueAtPercentile(50));
+        micros.put("p99", latency.getValueAtPercentile(99));
+        micros.put("max", latency.getMaxValue());
+        result.put("latencyMicros", micros);
+        return result;
+    }
+
+    private void registerNext(List<String> tunnelNames, AtomicInteger next, CountDownLatch done) {
+        int index = next.getAndIncrement();
+        if (index >= tunnelNames.size()) {
+            return;
+        }
+        // 完成一个再发起下一个，进行中的注册数不超过CONCURRENCY
+        Runnable onDone = () -> {
+            done.countDown();
+            registerNext(tunnelNames, next, done);
+        };
+        long start = System.nanoTime();
+        new Bootstrap().group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new LengthFieldBasedFrameDecoder(1024 * 1024, 0, 4, 0, 4));
+                        ch.pipeline().addLast(new LengthFieldPrepender(4));
+                        ch.pipeline().addLast(new MessageCodec());
+                        ch.pipeline().addLast(new RegisterHandler(tunnelNames.get(index), start, onDone));
+                    }
+                })
+                .connect(host, port)
+                .addListener((ChannelFutureListener) future -> {
+                    if (!future.isSuccess()) {
+                        failures.increment();
+                        onDone.run();
+                    }
+                });
+    }
+
+    public void close() {
+        channels.close().awaitUninterruptibly();
+    }
+
+    private class RegisterHandler extends SimpleChannelInboundHandler<Message> {
+        private final String tunnelName;
+        private final long start;
+        private Runnable onDone;
+
+        RegisterHandler(String tunnelName, long start, Runnable onDone) {
+            this.tunnelName = tunnelName;
+            this.start = start;
+            this.onDone = onDone;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            RegisterOptions options = new RegisterOptions();
+            options.setAgentId("bench");
+            ctx.writeAndFlush(Message.register(tunnelName, ProxyProtocol.HTTP, options));
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, Message msg) {
+            if (msg.getType() == MessageType.REGISTER_SUCCESS) {
+                synchronized (latency) {
+                    latency.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                }
+                Channel channel = ctx.channel();
+                channels.add(channel);
+                // 与Agent默认相同，每heartbeatTimeoutSeconds的三分之一发一次心跳，避免服务端按心跳超时断开
+                ScheduledFuture<?> heartbeat = ctx.executor().scheduleAtFixedRate(
+                        () -> channel.writeAndFlush(new Message(MessageType.HEARTBEAT)),
+                        heartbeatIntervalSeconds, heartbeatIntervalSeconds, TimeUnit.SECONDS);
+                channel.closeFuture().addListener(f -> heartbeat.cancel(false));
+                complete();
+            } else if (msg.getType() == MessageType.REGISTER_FAIL) {
+                failures.increment();
+                ctx.close();
+                complete();
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            if (onDone != null) {
+                failures.increment();
+                complete();
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+
+        private void complete() {
+            if (onDone != null) {
+                Runnable callback = onDone;
+                onDone = null;
+                callback.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.imddy.frp.bench.load;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 发送payloadSize字节，等待完整回显后再发下一个请求
+ */
+public class TcpLoadClient extends LoadClient {
+    private final ByteBuf payload;
+
+    public TcpLoadClient(LoadOptions options, LoadStats stats, EventLoopGroup group, String host, int port) {
+        super(options, stats, group, host, port);
+        this.payload = Unpooled.unreleasableBuffer(
+                Unpooled.directBuffer(options.getPayloadSize()).writeZero(options.getPayloadSize()));
+    }
+
+    @Override
+    protected void open() {
+        long connectStart = System.nanoTime();
+        new Bootstrap().group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .handler(new EchoHandler(connectStart))
+                .connect(host, port)
+                .addListener((ChannelFutureListener) future -> {
+                    if (!future.isSuccess()) {
+                        stats.onError();
+                        if (running) {
+                            group.schedule(this::open, 100, TimeUnit.MILLISECONDS);
+                        }
+                        return;
+                    }
+                    stats.onConnect();
+                    future.channel().closeFuture().addListener(f -> {
+                        if (running) {
+                            open();
+                        }
+                    });
+                });
+    }
+
+    private class EchoHandler extends ChannelInboundHandlerAdapter {
+        private final long connectStart;
+        private long sentAt;
+        private int received;
+        private int completed;
+        private boolean outstanding;
+
+        EchoHandler(long connectStart) {
+            this.connectStart = connectStart;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            send(ctx);
+        }
+
+        private void send(ChannelHandlerContext ctx) {
+            sentAt = System.nanoTime();
+            received = 0;
+            outstanding = true;
+            ctx.writeAndFlush(payload.duplicate());
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ByteBuf buf = (ByteBuf) msg;
+            received += buf.readableBytes();
+            buf.release();
+            if (received < options.getPayloadSize()) {
+                return;
+            }
+            long now = System.nanoTime();
+            outstanding = false;
+            stats.onResponse(now - sentAt, 2L * options.getPayloadSize());
+            if (completed++ == 0) {
+                stats.onFirstResponse(now - connectStart);
+            }
+            if (shouldClose(completed)) {
+                ctx.close();
+            } else {
+                send(ctx);
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            // 请求还没收到完整响应就被关闭，通常是隧道或目标出错
+            if (outstanding && running) {
+                stats.onError();
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+}
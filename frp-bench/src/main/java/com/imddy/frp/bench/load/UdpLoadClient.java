@@ -0,0 +1,112 @@
+package com.imddy.frp.bench.load;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.*;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 每个会话绑定一个本地端口，发送带序号的数据报并等待回显，超时记为丢包。
+ * 断开重连时换一个本地端口，服务端会看到一个新的发送方
+ */
+public class UdpLoadClient extends LoadClient {
+    // 负载前8字节为序号
+    private static final int SEQ_BYTES = 8;
+
+    private final InetSocketAddress target;
+
+    public UdpLoadClient(LoadOptions options, LoadStats stats, EventLoopGroup group, String host, int port) {
+        super(options, stats, group, host, port);
+        this.target = new InetSocketAddress(host, port);
+    }
+
+    @Override
+    protected void open() {
+        long openStart = System.nanoTime();
+        new Bootstrap().group(group)
+                .channel(NioDatagramChannel.class)
+                .handler(new SessionHandler(openStart))
+                .bind(0)
+                .addListener((ChannelFutureListener) future -> {
+                    if (!future.isSuccess()) {
+                        stats.onError();
+                        return;
+                    }
+                    stats.onConnect();
+                    future.channel().closeFuture().addListener(f -> {
+                        if (running) {
+                            open();
+                        }
+                    });
+                });
+    }
+
+    private class SessionHandler extends SimpleChannelInboundHandler<DatagramPacket> {
+        private final long openStart;
+        private long seq;
+        private long sentAt;
+        private int completed;
+        private ScheduledFuture<?> timeout;
+
+        SessionHandler(long openStart) {
+            this.openStart = openStart;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            send(ctx);
+        }
+
+        private void send(ChannelHandlerContext ctx) {
+            int size = Math.max(SEQ_BYTES, options.getPayloadSize());
+            ByteBuf buf = ctx.alloc().directBuffer(size);
+            buf.writeLong(++seq).writeZero(size - SEQ_BYTES);
+            sentAt = System.nanoTime();
+            ctx.writeAndFlush(new DatagramPacket(buf, target));
+            long expected = seq;
+            timeout = ctx.executor().schedule(() -> {
+                if (seq == expected) {
+                    stats.onTimeout();
+                    next(ctx);
+                }
+            }, options.getUdpTimeoutMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) {
+            ByteBuf content = packet.content();
+            // 超时后才到达的旧响应直接丢弃
+            if (content.readableBytes() < SEQ_BYTES || content.getLong(content.readerIndex()) != seq) {
+                return;
+            }
+            timeout.cancel(false);
+            long now = System.nanoTime();
+            stats.onResponse(now - sentAt, 2L * content.readableBytes());
+            if (completed == 0) {
+                stats.onFirstResponse(now - openStart);
+            }
+            next(ctx);
+        }
+
+        private void next(ChannelHandlerContext ctx) {
+            completed++;
+            if (shouldClose(completed)) {
+                ctx.close();
+            } else {
+                send(ctx);
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.imddy.frp.common.codec;
+
+import com.imddy.frp.common.protocol.Message;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 把发往同一条链路的UDP报文合并成DATAGRAM_BATCH帧。
+ * 帧负载是若干条[4字节流ID][2字节长度][报文]，流ID对应一个UDP会话（即一个客户端地址）。
+ * 负载达到maxBatchBytes时立即发出，否则最多等待maxDelay；调用方在一轮读取结束时也可以主动flush。
+ * 多个线程可以同时add，合并缓冲区由锁保护。
+ */
+public class DatagramBatcher {
+    public static final int ENTRY_HEADER = 6;
+
+    private final Channel link;
+    private final int maxBatchBytes;
+    private final long maxDelayNanos;
+    private final Runnable flushTask = this::onFlushTimer;
+
+    private final LongAdder datagrams = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+
+    private ByteBuf batch;
+    private boolean flushScheduled;
+
+    public DatagramBatcher(Channel link, int maxBatchBytes, long maxDelayMicros) {
+        this.link = link;
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+    }
+
+    /**
+     * 追加一个报文，data的所有权转移给batcher
+     */
+    public void add(int streamId, ByteBuf data) {
+        int size = data.readableBytes();
+        ByteBuf full = null;
+        ByteBuf ready = null;
+        boolean schedule = false;
+        synchronized (this) {
+            if (batch != null && batch.readableBytes() + ENTRY_HEADER + size > maxBatchBytes) {
+                full = batch;
+                batch = null;
+            }
+            if (batch == null) {
+                batch = link.alloc().ioBuffer(Math.max(maxBatchBytes, ENTRY_HEADER + size));
+            }
+            batch.writeInt(streamId);
+            batch.writeShort(size);
+            batch.writeBytes(data, data.readerIndex(), size);
+            if (batch.readableBytes() >= maxBatchBytes) {
+                ready = batch;
+                batch = null;
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                schedule = true;
+            }
+        }
+        data.release();
+        datagrams.increment();
+        if (full != null) {
+            send(full);
+        }
+        if (ready != null) {
+            send(ready);
+        }
+        if (schedule) {
+            link.eventLoop().schedule(flushTask, maxDelayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * 立即发出已合并的报文
+     */
+    public void flush() {
+        ByteBuf ready;
+        synchronized (this) {
+            ready = batch;
+            batch = null;
+        }
+        if (ready != null) {
+            send(ready);
+        }
+    }
+
+    private void onFlushTimer() {
+        synchronized (this) {
+            flushScheduled = false;
+        }
+        flush();
+    }
+
+    private void send(ByteBuf ready) {
+        batches.increment();
+        if (link.isActive()) {
+            link.writeAndFlush(Message.datagramBatch(ready));
+        } else {
+            ready.release();
+        }
+    }
+
+    /**
+     * 释放未发出的报文，链路关闭时调用
+     */
+    public void close() {
+        ByteBuf pending;
+        synchronized (this) {
+            pending = batch;
+            batch = null;
+        }
+        if (pending != null) {
+            pending.release();
+        }
+    }
+
+    public long getDatagrams() {
+        return datagrams.sum();
+    }
+
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    public double getDatagramsPerBatch() {
+        long count = batches.sum();
+        return count == 0 ? 0 : (double) datagrams.sum() / count;
+    }
+
+    /**
+     * 拆开DATAGRAM_BATCH帧，payload是帧负载的切片，只在回调期间有效，需要保留时自行retain
+     */
+    public static void forEach(ByteBuf frame, DatagramHandler handler) {
+        int index = frame.readerIndex();
+        int end = frame.writerIndex();
+        while (index + ENTRY_HEADER <= end) {
+            int streamId = frame.getInt(index);
+            int size = frame.getUnsignedShort(index + 4);
+            index += ENTRY_HEADER;
+            if (index + size > end) {
+                throw new IllegalArgumentException("Truncated datagram batch");
+            }
+            handler.onDatagram(streamId, frame.slice(index, size));
+            index += size;
+        }
+    }
+
+    @FunctionalInterface
+    public interface DatagramHandler {
+        void onDatagram(int streamId, ByteBuf payload);
+    }
+}
@@ -1,9 +1,17 @@
 package com.imddy.frp.common.codec;
 
+import com.imddy.frp.common.compress.Compressibility;
+import com.imddy.frp.common.compress.CompressionStats;
+import com.imddy.frp.common.compress.PayloadCompressor;
+import com.imddy.frp.common.compress.PayloadCompressors;
+import com.imddy.frp.common.config.CompressionConfig;
 import com.imddy.frp.common.protocol.Message;
 import com.imddy.frp.common.protocol.MessageType;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.DecoderException;
 import io.netty.handler.codec.MessageToMessageCodec;
 import lombok.extern.slf4j.Slf4j;
 
@@ -13,35 +21,102 @@ import java.util.List;
 @Slf4j
 public class MessageCodec extends MessageToMessageCodec<ByteBuf, Message> {
     private static final short MAGIC_NUMBER = (short) 0xCAFE;
+    // 类型字节最高位：DATA负载已压缩，负载前是4字节的原始长度
+    private static final int COMPRESSED_FLAG = 0x80;
+    // 解压后的负载上限，与链路的最大帧长度一致
+    private static final int MAX_DATA_LENGTH = 1024 * 1024;
+
+    private final CompressionConfig compressionConfig;
+    private CompressionStats compressionStats;
+    private PayloadCompressor compressor;
+
+    public MessageCodec() {
+        this(null, null);
+    }
+
+    public MessageCodec(CompressionConfig compressionConfig, CompressionStats compressionStats) {
+        // 没有配置时按默认参数压缩，协商出算法后仍可启用
+        this.compressionConfig = compressionConfig != null ? compressionConfig : new CompressionConfig();
+        this.compressionStats = compressionStats != null ? compressionStats : new CompressionStats();
+    }
+
+    /**
+     * 注册协商出压缩算法后调用，之后的DATA帧按需压缩。必须在链路的事件循环中调用
+     */
+    public void enableCompression(String algorithm) {
+        if (compressor != null) {
+            compressor.close();
+        }
+        compressor = PayloadCompressors.create(algorithm, compressionConfig);
+        log.info("Payload compression enabled: {}", algorithm);
+    }
+
+    /**
+     * 同上，并把压缩统计计入指定的对象。共享Agent端口上的链路注册前不知道隧道，注册时才绑定隧道的统计
+     */
+    public void enableCompression(String algorithm, CompressionStats stats) {
+        this.compressionStats = stats;
+        enableCompression(algorithm);
+    }
+
+    public String getCompression() {
+        return compressor != null ? compressor.getName() : null;
+    }
+
+    public CompressionStats getCompressionStats() {
+        return compressionStats;
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        if (compressor != null) {
+            compressor.close();
+            compressor = null;
+        }
+        super.handlerRemoved(ctx);
+    }
 
     @Override
     protected void encode(ChannelHandlerContext ctx, Message msg, List<Object> out) throws Exception {
-        ByteBuf buf = ctx.alloc().buffer();
+        int dataLen = msg.dataLength();
+        boolean payload = msg.getType() == MessageType.DATA || msg.getType() == MessageType.DATAGRAM_BATCH;
+        ByteBuf compressed = compressor != null && payload && dataLen > 0
+                ? tryCompress(ctx, msg.getData()) : null;
+
+        ByteBuf buf = ctx.alloc().ioBuffer();
 
         // Magic Number
         buf.writeShort(MAGIC_NUMBER);
 
         // Message Type
-        buf.writeByte(msg.getType().getCode());
+        buf.writeByte(msg.getType().getCode() | (compressed != null ? COMPRESSED_FLAG : 0));
 
         // Tunnel Name
         writeString(buf, msg.getTunnelName());
 
-        // Channel ID
-        writeString(buf, msg.getChannelId());
+        // Stream ID
+        buf.writeInt(msg.getStreamId());
 
         // Metadata
         writeString(buf, msg.getMetadata());
 
-        // Data
-        if (msg.getData() != null && msg.getData().length > 0) {
-            buf.writeInt(msg.getData().length);
-            buf.writeBytes(msg.getData());
+        // Data：头部之后直接拼接负载，不做内存拷贝
+        if (compressed != null) {
+            buf.writeInt(4 + compressed.readableBytes());
+            buf.writeInt(dataLen);
+            CompositeByteBuf frame = ctx.alloc().compositeDirectBuffer(2);
+            frame.addComponents(true, buf, compressed);
+            out.add(frame);
+            return;
+        }
+        buf.writeInt(dataLen);
+        if (dataLen > 0) {
+            CompositeByteBuf frame = ctx.alloc().compositeDirectBuffer(2);
+            frame.addComponents(true, buf, msg.getData().retain());
+            out.add(frame);
         } else {
-            buf.writeInt(0);
+            out.add(buf);
         }
-
-        out.add(buf);
     }
 
     @Override
@@ -61,31 +136,79 @@ public class MessageCodec extends MessageToMessageCodec<ByteBuf, Message> {
         }
 
         // Message Type
-        byte typeCode = buf.readByte();
-        MessageType type = MessageType.fromCode(typeCode);
+        int typeCode = buf.readUnsignedByte();
+        boolean compressed = (typeCode & COMPRESSED_FLAG) != 0;
+        MessageType type = MessageType.fromCode(typeCode & ~COMPRESSED_FLAG);
 
         Message message = new Message(type);
 
         // Tunnel Name
         message.setTunnelName(readString(buf));
 
-        // Channel ID
-        message.setChannelId(readString(buf));
+        // Stream ID
+        require(buf, 4, "stream id");
+        message.setStreamId(buf.readInt());
 
         // Metadata
         message.setMetadata(readString(buf));
 
-        // Data
+        // Data：保留入站帧的切片，避免拷贝到byte[]；空DATA帧（例如空UDP报文）给空缓冲区，处理方不必判空
+        require(buf, 4, "data length");
         int dataLen = buf.readInt();
-        if (dataLen > 0) {
-            byte[] data = new byte[dataLen];
-            buf.readBytes(data);
-            message.setData(data);
+        if (dataLen < 0 || dataLen > buf.readableBytes()) {
+            throw new DecoderException("Invalid data length: " + dataLen + ", remaining: " + buf.readableBytes());
+        }
+        if (compressed) {
+            message.setData(decompress(ctx, buf, dataLen));
+        } else if (dataLen > 0) {
+            message.setData(buf.readRetainedSlice(dataLen));
+        } else if (type == MessageType.DATA) {
+            message.setData(Unpooled.EMPTY_BUFFER);
         }
 
         out.add(message);
     }
 
+    // 返回压缩后的负载；太小、疑似已压缩或压缩收益不足时返回null，按原样发送
+    private ByteBuf tryCompress(ChannelHandlerContext ctx, ByteBuf data) {
+        int size = data.readableBytes();
+        if (size < compressionConfig.getMinSize()) {
+            compressionStats.onSkipped(size, true);
+            return null;
+        }
+        if (compressionConfig.isDetectIncompressible() && Compressibility.isLikelyIncompressible(data)) {
+            compressionStats.onSkipped(size, false);
+            return null;
+        }
+        long start = System.nanoTime();
+        ByteBuf compressed = compressor.compress(ctx.alloc(), data, (int) (size * compressionConfig.getMaxRatio()));
+        long nanos = System.nanoTime() - start;
+        if (compressed == null) {
+            compressionStats.onAbandoned(size, nanos);
+        } else {
+            compressionStats.onCompressed(size, compressed.readableBytes(), nanos);
+        }
+        return compressed;
+    }
+
+    private ByteBuf decompress(ChannelHandlerContext ctx, ByteBuf buf, int dataLen) throws Exception {
+        if (compressor == null) {
+            throw new DecoderException("Received compressed frame but compression was not negotiated");
+        }
+        // 负载前是4字节的原始长度
+        if (dataLen < 4) {
+            throw new DecoderException("Invalid data length of compressed frame: " + dataLen);
+        }
+        int originalLength = buf.readInt();
+        if (originalLength <= 0 || originalLength > MAX_DATA_LENGTH) {
+            throw new DecoderException("Invalid original length of compressed frame: " + originalLength);
+        }
+        long start = System.nanoTime();
+        ByteBuf data = compressor.decompress(ctx.alloc(), buf.readSlice(dataLen - 4), originalLength);
+        compressionStats.onDecompressed(System.nanoTime() - start);
+        return data;
+    }
+
     private void writeString(ByteBuf buf, String str) {
         if (str == null || str.isEmpty()) {
             buf.writeShort(0);
@@ -96,11 +219,23 @@ public class MessageCodec extends MessageToMessageCodec<ByteBuf, Message> {
         }
     }
 
+    // 帧已由LengthFieldBasedFrameDecoder完整切出，长度不足说明对端发来的帧格式错误
+    private static void require(ByteBuf buf, int length, String field) {
+        if (buf.readableBytes() < length) {
+            throw new DecoderException("Truncated frame at " + field + ": need " + length
+                    + " bytes, remaining: " + buf.readableBytes());
+        }
+    }
+
     private String readString(ByteBuf buf) {
+        require(buf, 2, "string length");
         short len = buf.readShort();
         if (len <= 0) {
             return null;
         }
+        if (len > buf.readableBytes()) {
+            throw new DecoderException("Invalid string length: " + len + ", remaining: " + buf.readableBytes());
+        }
         byte[] bytes = new byte[len];
         buf.readBytes(bytes);
         return new String(bytes, StandardCharsets.UTF_8);
@@ -0,0 +1,146 @@
+package com.imddy.frp.common.codec;
+
+import com.imddy.frp.common.config.BatchConfig;
+import com.imddy.frp.common.protocol.Message;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Agent链路的写批处理。所有流的帧先写入出站缓冲区，flush被合并为：
+ * 读循环中推迟到channelReadComplete，其他情况推迟到本轮事件循环末尾（或最长延迟），
+ * 待刷新负载字节超过阈值时立即flush。写入顺序不变，因此单个流内的帧顺序得到保证。
+ * 需要放在MessageCodec之后，每个Message计一帧；放在LengthFieldPrepender之前会把长度前缀也算成一帧。
+ */
+public class WriteBatchHandler extends ChannelDuplexHandler {
+    private final int maxPendingBytes;
+    private final long maxDelayNanos;
+
+    private final LongAdder frames = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+
+    private ChannelHandlerContext ctx;
+    private boolean readInProgress;
+    private boolean flushAfterRead;
+    private boolean flushScheduled;
+    private Future<?> scheduledFlush;
+    private int pendingFrames;
+    private long pendingBytes;
+    private final Runnable flushTask = () -> {
+        flushScheduled = false;
+        scheduledFlush = null;
+        flushNow();
+    };
+
+    public WriteBatchHandler(BatchConfig config) {
+        this.maxPendingBytes = config.getMaxPendingBytes();
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(config.getMaxDelayMicros());
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof Message) {
+            pendingBytes += ((Message) msg).dataLength();
+            pendingFrames++;
+            frames.increment();
+        }
+        ctx.write(msg, promise);
+        if (pendingBytes >= maxPendingBytes) {
+            flushNow();
+        }
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        if (readInProgress) {
+            flushAfterRead = true;
+        } else if (pendingBytes >= maxPendingBytes) {
+            flushNow();
+        } else if (!flushScheduled) {
+            flushScheduled = true;
+            if (maxDelayNanos > 0) {
+                scheduledFlush = ctx.executor().schedule(flushTask, maxDelayNanos, TimeUnit.NANOSECONDS);
+            } else {
+                ctx.executor().execute(flushTask);
+            }
+        }
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        readInProgress = true;
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        readInProgress = false;
+        if (flushAfterRead) {
+            flushNow();
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (!ctx.channel().isWritable()) {
+            // 出站缓冲区已满，立即flush让数据尽快写出
+            flushNow();
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void disconnect(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        flushNow();
+        ctx.disconnect(promise);
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        flushNow();
+        ctx.close(promise);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        flushNow();
+    }
+
+    private void flushNow() {
+        flushAfterRead = false;
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+            flushScheduled = false;
+        }
+        if (pendingFrames > 0) {
+            flushes.increment();
+        }
+        pendingFrames = 0;
+        pendingBytes = 0;
+        ctx.flush();
+    }
+
+    public long getFrames() {
+        return frames.sum();
+    }
+
+    public long getFlushes() {
+        return flushes.sum();
+    }
+
+    public double getFramesPerFlush() {
+        long flushCount = flushes.sum();
+        return flushCount == 0 ? 0 : (double) frames.sum() / flushCount;
+    }
+}
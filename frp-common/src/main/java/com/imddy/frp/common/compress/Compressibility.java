@@ -0,0 +1,60 @@
+package com.imddy.frp.common.compress;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * 廉价地判断负载是否已经压缩或加密，避免在这类数据上白白消耗CPU
+ */
+public final class Compressibility {
+    // 采样字节数
+    private static final int SAMPLE_SIZE = 512;
+    // 采样熵超过该值（bit/byte）视为不可压缩，文本通常在4~5之间
+    private static final double ENTROPY_THRESHOLD = 7.0;
+
+    private Compressibility() {
+    }
+
+    public static boolean isLikelyIncompressible(ByteBuf buf) {
+        return hasCompressedMagic(buf) || sampleEntropy(buf) > ENTROPY_THRESHOLD;
+    }
+
+    // 常见压缩格式和TLS记录的头部
+    private static boolean hasCompressedMagic(ByteBuf buf) {
+        if (buf.readableBytes() < 4) {
+            return false;
+        }
+        int i = buf.readerIndex();
+        int b0 = buf.getUnsignedByte(i);
+        int b1 = buf.getUnsignedByte(i + 1);
+        int b2 = buf.getUnsignedByte(i + 2);
+        int b3 = buf.getUnsignedByte(i + 3);
+        return (b0 == 0x1f && b1 == 0x8b)                                   // gzip
+                || (b0 == 'P' && b1 == 'K' && b2 == 3 && b3 == 4)            // zip/jar/docx
+                || (b0 == 0x89 && b1 == 'P' && b2 == 'N' && b3 == 'G')       // png
+                || (b0 == 0xff && b1 == 0xd8 && b2 == 0xff)                  // jpeg
+                || (b0 == 0x28 && b1 == 0xb5 && b2 == 0x2f && b3 == 0xfd)    // zstd
+                || (b0 == 0xfd && b1 == '7' && b2 == 'z' && b3 == 'X')       // xz
+                || (b0 == 'B' && b1 == 'Z' && b2 == 'h')                     // bzip2
+                || (b0 >= 0x14 && b0 <= 0x17 && b1 == 0x03 && b2 <= 0x04);   // TLS记录
+    }
+
+    private static double sampleEntropy(ByteBuf buf) {
+        int len = Math.min(buf.readableBytes(), SAMPLE_SIZE);
+        if (len == 0) {
+            return 0;
+        }
+        int[] counts = new int[256];
+        int start = buf.readerIndex();
+        for (int i = 0; i < len; i++) {
+            counts[buf.getUnsignedByte(start + i)]++;
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / len;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2);
+    }
+}
@@ -0,0 +1,79 @@
+package com.imddy.frp.common.compress;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 压缩统计，可以被同一隧道的多条链路共享
+ */
+public class CompressionStats {
+    // 编码方向：DATA负载原始字节数和实际写到链路上的字节数
+    private final LongAdder rawBytes = new LongAdder();
+    private final LongAdder wireBytes = new LongAdder();
+    private final LongAdder compressedFrames = new LongAdder();
+    private final LongAdder skippedSmall = new LongAdder();
+    private final LongAdder skippedIncompressible = new LongAdder();
+    private final LongAdder abandoned = new LongAdder();
+    private final LongAdder compressNanos = new LongAdder();
+    // 解码方向
+    private final LongAdder decompressedFrames = new LongAdder();
+    private final LongAdder decompressNanos = new LongAdder();
+
+    public void onCompressed(int raw, int wire, long nanos) {
+        rawBytes.add(raw);
+        wireBytes.add(wire);
+        compressedFrames.increment();
+        compressNanos.add(nanos);
+    }
+
+    public void onAbandoned(int raw, long nanos) {
+        rawBytes.add(raw);
+        wireBytes.add(raw);
+        abandoned.increment();
+        compressNanos.add(nanos);
+    }
+
+    public void onSkipped(int raw, boolean small) {
+        rawBytes.add(raw);
+        wireBytes.add(raw);
+        if (small) {
+            skippedSmall.increment();
+        } else {
+            skippedIncompressible.increment();
+        }
+    }
+
+    public void onDecompressed(long nanos) {
+        decompressedFrames.increment();
+        decompressNanos.add(nanos);
+    }
+
+    public long getRawBytes() {
+        return rawBytes.sum();
+    }
+
+    public long getWireBytes() {
+        return wireBytes.sum();
+    }
+
+    public double getRatio() {
+        long raw = rawBytes.sum();
+        return raw == 0 ? 1.0 : (double) wireBytes.sum() / raw;
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("rawBytes", rawBytes.sum());
+        stats.put("wireBytes", wireBytes.sum());
+        stats.put("ratio", getRatio());
+        stats.put("compressedFrames", compressedFrames.sum());
+        stats.put("skippedSmall", skippedSmall.sum());
+        stats.put("skippedIncompressible", skippedIncompressible.sum());
+        stats.put("abandoned", abandoned.sum());
+        stats.put("compressCpuMillis", compressNanos.sum() / 1_000_000);
+        stats.put("decompressedFrames", decompressedFrames.sum());
+        stats.put("decompressCpuMillis", decompressNanos.sum() / 1_000_000);
+        return stats;
+    }
+}
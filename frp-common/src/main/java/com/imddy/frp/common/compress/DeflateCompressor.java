@@ -0,0 +1,77 @@
+package com.imddy.frp.common.compress;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.DecoderException;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 基于java.util.zip的raw deflate，不带zlib头和校验，帧的完整性由TCP保证
+ */
+public class DeflateCompressor implements PayloadCompressor {
+    public static final String NAME = "deflate";
+
+    private final Deflater deflater;
+    private final Inflater inflater = new Inflater(true);
+
+    public DeflateCompressor(int level) {
+        this.deflater = new Deflater(level, true);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public ByteBuf compress(ByteBufAllocator alloc, ByteBuf src, int maxLength) {
+        ByteBuf out = alloc.directBuffer(maxLength);
+        ByteBuffer dst = out.nioBuffer(0, maxLength);
+        deflater.reset();
+        deflater.setInput(src.nioBuffer());
+        deflater.finish();
+        while (!deflater.finished()) {
+            deflater.deflate(dst);
+            if (!dst.hasRemaining() && !deflater.finished()) {
+                // 输出已超过上限，压缩收益不够，提前放弃
+                out.release();
+                return null;
+            }
+        }
+        out.writerIndex(dst.position());
+        return out;
+    }
+
+    @Override
+    public ByteBuf decompress(ByteBufAllocator alloc, ByteBuf src, int originalLength) throws Exception {
+        ByteBuf out = alloc.directBuffer(originalLength);
+        try {
+            ByteBuffer dst = out.nioBuffer(0, originalLength);
+            inflater.reset();
+            inflater.setInput(src.nioBuffer());
+            while (dst.hasRemaining() && !inflater.finished()) {
+                if (inflater.inflate(dst) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+            }
+            if (dst.position() != originalLength) {
+                throw new DecoderException("Corrupted compressed frame, expected " + originalLength
+                        + " bytes but got " + dst.position());
+            }
+            out.writerIndex(originalLength);
+            return out;
+        } catch (Exception e) {
+            out.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        deflater.end();
+        inflater.end();
+    }
+}
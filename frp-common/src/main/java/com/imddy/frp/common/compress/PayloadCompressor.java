@@ -0,0 +1,27 @@
+package com.imddy.frp.common.compress;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+/**
+ * DATA帧负载压缩算法。实例只在所属链路的事件循环中使用，不需要线程安全
+ */
+public interface PayloadCompressor {
+
+    String getName();
+
+    /**
+     * 压缩src的可读字节，不改变src的读索引。结果超过maxLength时放弃并返回null
+     */
+    ByteBuf compress(ByteBufAllocator alloc, ByteBuf src, int maxLength);
+
+    /**
+     * 解压src的可读字节，结果长度必须等于originalLength
+     */
+    ByteBuf decompress(ByteBufAllocator alloc, ByteBuf src, int originalLength) throws Exception;
+
+    /**
+     * 释放原生资源
+     */
+    void close();
+}
@@ -0,0 +1,68 @@
+package com.imddy.frp.common.compress;
+
+import com.imddy.frp.common.config.CompressionConfig;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * 压缩算法注册表，新增算法时在这里注册工厂即可参与协商
+ */
+public final class PayloadCompressors {
+    private static final Map<String, Function<CompressionConfig, PayloadCompressor>> FACTORIES =
+            new ConcurrentHashMap<>();
+
+    static {
+        register(DeflateCompressor.NAME, config -> new DeflateCompressor(config.getLevel()));
+    }
+
+    private PayloadCompressors() {
+    }
+
+    public static void register(String name, Function<CompressionConfig, PayloadCompressor> factory) {
+        FACTORIES.put(name.toLowerCase(), factory);
+    }
+
+    public static boolean isSupported(String name) {
+        return name != null && FACTORIES.containsKey(name.toLowerCase());
+    }
+
+    public static PayloadCompressor create(String name, CompressionConfig config) {
+        Function<CompressionConfig, PayloadCompressor> factory = FACTORIES.get(name.toLowerCase());
+        if (factory == null) {
+            throw new IllegalArgumentException("Unsupported compression: " + name);
+        }
+        return factory.apply(config);
+    }
+
+    /**
+     * 本端可提议的算法，逗号分隔；未开启或没有可用算法时返回null
+     */
+    public static String offer(CompressionConfig config) {
+        if (config == null || !config.isEnabled()) {
+            return null;
+        }
+        String offered = String.join(",", config.getAlgorithms().stream()
+                .filter(PayloadCompressors::isSupported).toList());
+        return offered.isEmpty() ? null : offered;
+    }
+
+    /**
+     * 按对端提议的顺序选择第一个本端也允许的算法，没有则返回null
+     */
+    public static String negotiate(String offered, CompressionConfig config) {
+        if (offered == null || config == null || !config.isEnabled()) {
+            return null;
+        }
+        List<String> allowed = config.getAlgorithms();
+        for (String name : offered.split(",")) {
+            String candidate = name.trim().toLowerCase();
+            if (allowed.contains(candidate) && isSupported(candidate)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,15 @@
+package com.imddy.frp.common.config;
+
+import lombok.Data;
+
+/**
+ * Agent链路的写批处理配置
+ */
+@Data
+public class BatchConfig {
+    private boolean enabled = true;
+    // 待刷新帧的负载字节数达到该值时立即flush
+    private int maxPendingBytes = 64 * 1024;
+    // 最长延迟刷新时间，0表示在当前事件循环轮次结束时刷新
+    private long maxDelayMicros = 0;
+}
@@ -0,0 +1,24 @@
+package com.imddy.frp.common.config;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Agent链路的负载压缩配置，注册时协商算法，只压缩DATA帧
+ */
+@Data
+public class CompressionConfig {
+    private boolean enabled = false;
+    // 支持的算法，Agent按顺序提议，Server选择第一个双方都支持的
+    private List<String> algorithms = new ArrayList<>(List.of("deflate"));
+    // 压缩级别，1最快
+    private int level = 1;
+    // 小于该字节数的帧不压缩
+    private int minSize = 256;
+    // 压缩后不超过原始大小的该比例才发送压缩结果，否则放弃
+    private double maxRatio = 0.9;
+    // 采样检测已压缩/加密的数据（压缩格式魔数、高熵），直接跳过
+    private boolean detectIncompressible = true;
+}
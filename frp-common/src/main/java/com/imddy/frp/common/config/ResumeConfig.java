@@ -0,0 +1,16 @@
+package com.imddy.frp.common.config;
+
+import lombok.Data;
+
+/**
+ * Agent链路的会话恢复配置，双方都开启时生效（UDP隧道除外）
+ */
+@Data
+public class ResumeConfig {
+    private boolean enabled = false;
+    // 链路断开后流保留的时间，超时未恢复则关闭
+    private long timeoutSeconds = 30;
+    // 对端尚未确认的帧最多保留的字节数：达到一半时链路暂停写入，超过后在对端确认之前会话不可恢复。
+    // 暂停后每个流最多再写入一次读取的数据；对端每64KB确认一次，该值过小时链路要等心跳时的确认才能继续写入
+    private long maxUnackedBytes = 8L * 1024 * 1024;
+}
@@ -0,0 +1,16 @@
+package com.imddy.frp.common.config;
+
+import lombok.Data;
+
+/**
+ * 网络传输层配置
+ */
+@Data
+public class TransportConfig {
+    // auto | io_uring | epoll | nio，auto按io_uring、epoll、nio的顺序选择可用的实现
+    private String type = "auto";
+    // 仅原生传输有效
+    private boolean tcpFastOpen = false;
+    // 仅原生传输有效，监听端口开启SO_REUSEPORT
+    private boolean reusePort = false;
+}
@@ -0,0 +1,32 @@
+package com.imddy.frp.common.config;
+
+import lombok.Data;
+
+/**
+ * UDP隧道的会话配置
+ */
+@Data
+public class UdpConfig {
+    // 会话空闲超时，超过后释放会话和到目标的Socket
+    private long idleTimeoutMillis = 60000;
+    // 最大会话数，达到上限后新发送方的报文被丢弃
+    private int maxSessions = 10000;
+    // 会话建立前最多缓存的报文数，超出的报文被丢弃
+    private int maxPendingPackets = 64;
+    // Agent端预先绑定的空闲Socket数，新会话直接取用
+    private int channelPoolSize = 16;
+    // 单个报文的最大长度，决定每次读取分配的缓冲区大小，超出的部分会被截断
+    private int maxDatagramSize = 65535;
+    // 共享监听Socket的收发缓冲区（SO_RCVBUF/SO_SNDBUF），高包率时避免内核丢包，实际上限受系统参数约束
+    private int socketBufferBytes = 1024 * 1024;
+    // Agent端每个会话到目标的Socket的收发缓冲区，只承载一个发送方的流量，会话数多时按此值累计占用内核内存
+    private int sessionSocketBufferBytes = 64 * 1024;
+    // 把多个报文合并成一个DATAGRAM_BATCH帧发送，双方都开启时在注册阶段启用
+    private boolean batchEnabled = true;
+    // 单个合并帧的负载上限
+    private int maxBatchBytes = 16 * 1024;
+    // 报文在合并帧中最多等待的时间
+    private long maxBatchDelayMicros = 200;
+    // 共享监听Socket在epoll下一次recvmmsg最多读取的报文数，1表示逐个读取；会话Socket总是逐个读取
+    private int recvBatchSize = 16;
+}
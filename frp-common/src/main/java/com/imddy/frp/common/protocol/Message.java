@@ -1,16 +1,30 @@
 package com.imddy.frp.common.protocol;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.netty.buffer.ByteBuf;
+import io.netty.util.ReferenceCounted;
 import lombok.Data;
 import java.io.Serializable;
 
+/**
+ * 隧道消息。DATA消息的负载是引用计数的ByteBuf，消息本身的引用计数委托给负载，
+ * 这样编码器和SimpleChannelInboundHandler在处理完消息后会自动释放负载。
+ */
 @Data
-public class Message implements Serializable {
+public class Message implements Serializable, ReferenceCounted {
     private static final long serialVersionUID = 1L;
 
+    // CONNECT的metadata：乐观连接，Agent不回成功确认，Server紧跟着发送DATA
+    public static final String OPTIMISTIC = "optimistic";
+    // 构造REGISTER的JSON metadata
+    private static final ObjectMapper JSON = new ObjectMapper();
+
     private MessageType type;
     private String tunnelName;
-    private String channelId;
-    private byte[] data;
+    private int streamId;
+    private transient ByteBuf data;
     private String metadata;
 
     public Message() {
@@ -21,9 +35,40 @@ public class Message implements Serializable {
     }
 
     public static Message register(String tunnelName, ProxyProtocol protocol) {
+        return register(tunnelName, protocol, null);
+    }
+
+    /**
+     * options为null时只登记协议
+     */
+    public static Message register(String tunnelName, ProxyProtocol protocol, RegisterOptions options) {
+        ObjectNode metadata = JSON.createObjectNode();
+        metadata.put("protocol", protocol.getName());
+        if (options != null) {
+            if (options.getCompression() != null) {
+                metadata.put("compression", options.getCompression());
+            }
+            if (options.isDatagramBatch()) {
+                metadata.put("datagramBatch", true);
+            }
+            if (options.getAgentId() != null) {
+                metadata.put("agentId", options.getAgentId());
+            }
+            if (options.isResume()) {
+                metadata.put("resume", true);
+                if (options.getSession() != null) {
+                    metadata.put("session", options.getSession());
+                    metadata.put("received", options.getReceived());
+                }
+            }
+            if (options.getTunnels() != null && !options.getTunnels().isEmpty()) {
+                ArrayNode tunnels = metadata.putArray("tunnels");
+                options.getTunnels().forEach(tunnels::add);
+            }
+        }
         Message message = new Message(MessageType.REGISTER);
         message.setTunnelName(tunnelName);
-        message.setMetadata("{\"protocol\":\"" + protocol.getName() + "\"}");
+        message.setMetadata(metadata.toString());
         return message;
     }
 
@@ -31,31 +76,124 @@ public class Message implements Serializable {
         return new Message(MessageType.HEARTBEAT);
     }
 
-    public static Message connect(String tunnelName, String channelId) {
+    public static Message drain() {
+        return new Message(MessageType.DRAIN);
+    }
+
+    public static Message connect(String tunnelName, int streamId) {
         Message message = new Message(MessageType.CONNECT);
         message.setTunnelName(tunnelName);
-        message.setChannelId(channelId);
+        message.setStreamId(streamId);
+        return message;
+    }
+
+    /**
+     * 乐观连接：Agent连接目标期间先缓存DATA，只在连接失败时回复CONNECT_ACK(failed)重置流
+     */
+    public static Message connect(String tunnelName, int streamId, boolean optimistic) {
+        Message message = connect(tunnelName, streamId);
+        if (optimistic) {
+            message.setMetadata(OPTIMISTIC);
+        }
         return message;
     }
 
     // 新增：连接确认消息
-    public static Message connectAck(String channelId, boolean success) {
+    public static Message connectAck(int streamId, boolean success) {
         Message message = new Message(MessageType.CONNECT_ACK);
-        message.setChannelId(channelId);
+        message.setStreamId(streamId);
         message.setMetadata(success ? "success" : "failed");
         return message;
     }
 
-    public static Message disconnect(String channelId) {
+    public static Message disconnect(int streamId) {
         Message message = new Message(MessageType.DISCONNECT);
-        message.setChannelId(channelId);
+        message.setStreamId(streamId);
         return message;
     }
 
-    public static Message data(String channelId, byte[] data) {
+    /**
+     * 创建DATA消息，data的所有权转移给消息，由消息写出或释放时负责release
+     */
+    public static Message data(int streamId, ByteBuf data) {
         Message message = new Message(MessageType.DATA);
-        message.setChannelId(channelId);
+        message.setStreamId(streamId);
         message.setData(data);
         return message;
     }
+
+    /**
+     * 创建DATAGRAM_BATCH消息，负载由DatagramBatcher打包，所有权转移给消息
+     */
+    public static Message datagramBatch(ByteBuf batch) {
+        Message message = new Message(MessageType.DATAGRAM_BATCH);
+        message.setData(batch);
+        return message;
+    }
+
+    // 会话恢复：确认已收到的有序帧数，发送方据此释放重传缓冲
+    public static Message sessionAck(long received) {
+        Message message = new Message(MessageType.SESSION_ACK);
+        message.setMetadata(String.valueOf(received));
+        return message;
+    }
+
+    // 流控：归还increment字节的发送窗口
+    public static Message windowUpdate(int streamId, int increment) {
+        Message message = new Message(MessageType.WINDOW_UPDATE);
+        message.setStreamId(streamId);
+        message.setMetadata(String.valueOf(increment));
+        return message;
+    }
+
+    public int dataLength() {
+        return data != null ? data.readableBytes() : 0;
+    }
+
+    @Override
+    public int refCnt() {
+        return data != null ? data.refCnt() : 1;
+    }
+
+    @Override
+    public Message retain() {
+        if (data != null) {
+            data.retain();
+        }
+        return this;
+    }
+
+    @Override
+    public Message retain(int increment) {
+        if (data != null) {
+            data.retain(increment);
+        }
+        return this;
+    }
+
+    @Override
+    public Message touch() {
+        if (data != null) {
+            data.touch();
+        }
+        return this;
+    }
+
+    @Override
+    public Message touch(Object hint) {
+        if (data != null) {
+            data.touch(hint);
+        }
+        return this;
+    }
+
+    @Override
+    public boolean release() {
+        return data == null || data.release();
+    }
+
+    @Override
+    public boolean release(int decrement) {
+        return data == null || data.release(decrement);
+    }
 }
@@ -7,12 +7,16 @@ public enum MessageType {
     REGISTER_FAIL(3),      // 注册失败
     HEARTBEAT(4),          // 心跳
     HEARTBEAT_ACK(5),      // 心跳响应
+    SESSION_ACK(6),        // 会话确认：已收到的有序帧数
+    DRAIN(7),              // 排空：Agent准备停止，不再接收新连接
 
     // 数据传输
     CONNECT(10),           // 新连接通知
     CONNECT_ACK(11),       // 连接确认（新增）
     DISCONNECT(12),        // 断开连接
     DATA(13),              // 数据传输
+    WINDOW_UPDATE(14),     // 流控窗口更新
+    DATAGRAM_BATCH(15),    // 多个UDP报文合并的帧
 
     // 管理消息
     QUERY_STATUS(20),      // 查询状态
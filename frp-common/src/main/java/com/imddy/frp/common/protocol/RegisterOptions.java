@@ -0,0 +1,26 @@
+package com.imddy.frp.common.protocol;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Agent在REGISTER中提议的可选能力，编码为消息的JSON metadata，Server在REGISTER_SUCCESS中回复协商结果
+ */
+@Data
+public class RegisterOptions {
+    // 提议的压缩算法（逗号分隔），null表示不压缩
+    private String compression;
+    // 支持DATAGRAM_BATCH帧
+    private boolean datagramBatch;
+    // 标识Agent实例，同一隧道可以有多个Agent
+    private String agentId;
+    // 支持会话恢复
+    private boolean resume;
+    // 请求恢复的会话token，received为Agent已收到的有序帧数
+    private String session;
+    private long received;
+    // 同一条链路上一起注册的其他隧道，它们的流共用链路，以CONNECT中的隧道名区分
+    private List<String> tunnels = new ArrayList<>();
+}
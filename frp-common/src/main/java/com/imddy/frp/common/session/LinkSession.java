@@ -0,0 +1,422 @@
+package com.imddy.frp.common.session;
+
+import com.imddy.frp.common.protocol.Message;
+import com.imddy.frp.common.protocol.MessageType;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.util.concurrent.ScheduledFuture;
+import lombok.extern.slf4j.Slf4j;
+
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * 一条Agent链路的会话。开启恢复时链路断开后流不随之关闭，在宽限期内由Agent用新连接接上：
+ * 双方按顺序对有序帧（CONNECT、CONNECT_ACK、DISCONNECT、DATA、WINDOW_UPDATE）计数，发送方保留对端尚未确认的帧，
+ * 接收方每收到一定数量的帧或字节、以及每次心跳时用SESSION_ACK回复已收到的帧数。
+ * 重连时双方交换已收到的帧数，发送方从对端收到的位置之后按原顺序重传，所以帧上不需要携带序号。
+ * 未确认的字节达到上限的一半时把连接置为不可写（自定义可写位），流随之暂停读取，确认后降到四分之一再恢复。
+ * 断开期间或对端长时间不确认时仍可能超过上限，此时丢弃重传缓冲，对端确认越过这一位置之前会话不可恢复，
+ * 所以恢复是尽力而为的。
+ * 未开启恢复（token为null）时写操作直接交给当前连接，与没有会话时相同。
+ */
+@Slf4j
+public class LinkSession {
+    // 收到这么多帧或字节后回复一次确认
+    private static final int ACK_FRAMES = 64;
+    private static final int ACK_BYTES = 64 * 1024;
+    // 重传缓冲中每帧除负载外的估计开销
+    private static final int FRAME_OVERHEAD = 64;
+    // 重传缓冲积压时使用的连接自定义可写位
+    private static final int WRITABILITY_INDEX = 1;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final long maxUnackedBytes;
+    private final long highWaterMark;
+    private final long lowWaterMark;
+    private volatile String token;
+    // 当前连接，断开期间为null
+    private volatile Channel channel;
+    private volatile boolean closed;
+
+    // 发送侧，由this保护
+    private long sent;
+    private final ArrayDeque<Message> unacked = new ArrayDeque<>();
+    private long unackedBytes;
+    // 重传缓冲积压，当前连接被置为不可写
+    private boolean throttled;
+    private ScheduledFuture<?> expiry;
+    // 每次接上新连接加一，过期的宽限期定时器据此失效
+    private long generation;
+
+    // 接收侧，计数和处理在同一把锁内完成，恢复时读到的计数与已处理的帧一致
+    private final Object receiveLock = new Object();
+    private long received;
+    private long ackedReceived;
+    private int bytesSinceAck;
+
+    private final LongAdder resumes = new LongAdder();
+    private final LongAdder overflows = new LongAdder();
+    private final LongAdder throttles = new LongAdder();
+
+    public LinkSession(long maxUnackedBytes) {
+        this.maxUnackedBytes = maxUnackedBytes;
+        this.highWaterMark = maxUnackedBytes / 2;
+        this.lowWaterMark = maxUnackedBytes / 4;
+    }
+
+    public static String newToken() {
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        return HexFormat.of().formatHex(bytes);
+    }
+
+    public static boolean isSequenced(MessageType type) {
+        switch (type) {
+            case CONNECT:
+            case CONNECT_ACK:
+            case DISCONNECT:
+            case DATA:
+            case WINDOW_UPDATE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 在新连接上开始一个会话，token为null表示不可恢复。此前的计数和重传缓冲都清空
+     */
+    public void start(Channel ch, String token) {
+        synchronized (receiveLock) {
+            synchronized (this) {
+                cancelExpiry();
+                releaseUnacked();
+                updateThrottle();
+                sent = 0;
+                received = 0;
+                ackedReceived = 0;
+                bytesSinceAck = 0;
+                generation++;
+                closed = false;
+                this.token = token;
+                this.channel = ch;
+            }
+        }
+    }
+
+    /**
+     * 用新连接恢复会话：释放对端已收到的帧，其余按原顺序在新连接上重传。
+     * 返回本端已收到的帧数，对端需要的帧已不在缓冲中时返回-1。应在新连接的事件循环中调用，
+     * 调用方随后直接写出的应答会排在重传的帧之前
+     */
+    public long resume(Channel ch, long peerReceived) {
+        synchronized (receiveLock) {
+            synchronized (this) {
+                long firstBuffered = sent - unacked.size() + 1;
+                if (token == null || closed || peerReceived > sent || peerReceived + 1 < firstBuffered) {
+                    return -1;
+                }
+                acknowledge(peerReceived);
+                cancelExpiry();
+                generation++;
+                channel = ch;
+                // 新连接继承积压状态
+                setWritable(ch, !throttled);
+                updateThrottle();
+                ackedReceived = received;
+                bytesSinceAck = 0;
+                if (!unacked.isEmpty()) {
+                    List<Message> frames = new ArrayList<>(unacked.size());
+                    for (Message frame : unacked) {
+                        frames.add(copyOf(frame));
+                    }
+                    ch.eventLoop().execute(() -> {
+                        for (Message frame : frames) {
+                            ch.write(frame);
+                        }
+                        ch.flush();
+                    });
+                    log.info("Session resumed, retransmitting {} frame(s), {} bytes", frames.size(), unackedBytes);
+                }
+                resumes.increment();
+                return received;
+            }
+        }
+    }
+
+    /**
+     * 连接断开。可恢复的会话进入宽限期，超时仍未恢复时在连接的事件循环中执行onExpired；
+     * ch已不是当前连接（已被新连接替换）时返回false
+     */
+    public boolean detach(Channel ch, long timeoutMillis, Runnable onExpired) {
+        synchronized (this) {
+            if (channel != ch) {
+                return false;
+            }
+            channel = null;
+            if (token != null && !closed) {
+                long expected = generation;
+                cancelExpiry();
+                expiry = ch.eventLoop().schedule(() -> expire(expected, onExpired), timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+            return true;
+        }
+    }
+
+    private void expire(long expected, Runnable onExpired) {
+        synchronized (this) {
+            if (generation != expected || channel != null || closed) {
+                return;
+            }
+            expiry = null;
+        }
+        log.warn("Session not resumed in time, closing its streams");
+        onExpired.run();
+    }
+
+    /**
+     * 发送一个有序帧，msg的所有权转移给本方法。可恢复时先放入重传缓冲，断开期间只缓冲不发送；
+     * 写出总是提交到连接的事件循环，各线程的写出顺序与计数顺序一致
+     */
+    public void write(Message msg) {
+        if (token == null) {
+            Channel ch = channel;
+            if (ch != null) {
+                ch.writeAndFlush(msg);
+            } else {
+                msg.release();
+            }
+            return;
+        }
+        synchronized (this) {
+            if (closed) {
+                msg.release();
+                return;
+            }
+            sent++;
+            unacked.offer(copyOf(msg));
+            unackedBytes += weight(msg);
+            if (unackedBytes > maxUnackedBytes) {
+                // 对端迟迟不确认，放弃重传缓冲，确认越过当前位置之前会话不可恢复
+                releaseUnacked();
+                overflows.increment();
+                log.warn("Session retransmit buffer exceeded {} bytes, not resumable until acknowledged", maxUnackedBytes);
+            }
+            updateThrottle();
+            Channel ch = channel;
+            if (ch == null) {
+                msg.release();
+                return;
+            }
+            ch.eventLoop().execute(() -> ch.writeAndFlush(msg));
+        }
+    }
+
+    /**
+     * 处理一个入站有序帧：计数后交给handler。来自已被替换或已断开的连接的帧直接丢弃，恢复后会从新连接重传
+     */
+    public void receive(Channel ch, Message msg, Consumer<Message> handler) {
+        if (token == null) {
+            handler.accept(msg);
+            return;
+        }
+        synchronized (receiveLock) {
+            if (ch != channel) {
+                return;
+            }
+            received++;
+            bytesSinceAck += msg.dataLength();
+            handler.accept(msg);
+            if (received - ackedReceived >= ACK_FRAMES || bytesSinceAck >= ACK_BYTES) {
+                sendAck(ch);
+            }
+        }
+    }
+
+    /**
+     * 对端确认已收到的帧数
+     */
+    public synchronized void onAck(long peerReceived) {
+        acknowledge(peerReceived);
+        updateThrottle();
+    }
+
+    /**
+     * 有未确认的入站帧时立即回复确认，在心跳时调用
+     */
+    public void flushAck() {
+        synchronized (receiveLock) {
+            Channel ch = channel;
+            if (token != null && ch != null && received > ackedReceived) {
+                sendAck(ch);
+            }
+        }
+    }
+
+    private void sendAck(Channel ch) {
+        ackedReceived = received;
+        bytesSinceAck = 0;
+        ch.writeAndFlush(Message.sessionAck(received));
+    }
+
+    private void acknowledge(long peerReceived) {
+        while (!unacked.isEmpty() && sent - unacked.size() + 1 <= peerReceived) {
+            Message frame = unacked.poll();
+            unackedBytes -= weight(frame);
+            frame.release();
+        }
+    }
+
+    /**
+     * 结束会话，释放重传缓冲
+     */
+    public synchronized void close() {
+        closed = true;
+        cancelExpiry();
+        releaseUnacked();
+        updateThrottle();
+        channel = null;
+    }
+
+    private void cancelExpiry() {
+        if (expiry != null) {
+            expiry.cancel(false);
+            expiry = null;
+        }
+    }
+
+    // 按重传缓冲的字节数切换当前连接的自定义可写位，需持有this
+    private void updateThrottle() {
+        boolean throttle = throttled ? unackedBytes > lowWaterMark : unackedBytes >= highWaterMark;
+        if (throttle == throttled) {
+            return;
+        }
+        throttled = throttle;
+        if (throttle) {
+            throttles.increment();
+        }
+        Channel ch = channel;
+        if (ch != null) {
+            setWritable(ch, !throttle);
+        }
+    }
+
+    // 状态变化时Netty会在连接的事件循环中触发channelWritabilityChanged，流据此暂停或恢复读取
+    private static void setWritable(Channel ch, boolean writable) {
+        ChannelOutboundBuffer buffer = ch.unsafe().outboundBuffer();
+        if (buffer != null) {
+            buffer.setUserDefinedWritability(WRITABILITY_INDEX, writable);
+        }
+    }
+
+    private void releaseUnacked() {
+        Message frame;
+        while ((frame = unacked.poll()) != null) {
+            frame.release();
+        }
+        unackedBytes = 0;
+    }
+
+    // 共享负载内容但读写索引独立，原消息写出后释放不影响缓冲中的副本
+    private static Message copyOf(Message msg) {
+        Message copy = new Message(msg.getType());
+        copy.setTunnelName(msg.getTunnelName());
+        copy.setStreamId(msg.getStreamId());
+        copy.setMetadata(msg.getMetadata());
+        if (msg.getData() != null) {
+            copy.setData(msg.getData().retainedDuplicate());
+        }
+        return copy;
+    }
+
+    private static long weight(Message msg) {
+        return msg.dataLength() + FRAME_OVERHEAD;
+    }
+
+    public boolean isResumable() {
+        return token != null && !closed;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    // 已收到的有序帧数，重连时告诉对端从哪里开始重传
+    public long getReceived() {
+        synchronized (receiveLock) {
+            return received;
+        }
+    }
+
+    public Channel getChannel() {
+        return channel;
+    }
+
+    // 当前连接可用
+    public boolean isActive() {
+        Channel ch = channel;
+        return ch != null && ch.isActive();
+    }
+
+    public boolean isWritable() {
+        Channel ch = channel;
+        return ch != null && ch.isWritable();
+    }
+
+    /**
+     * 流还能写入：连接可用，或者会话可恢复（断开期间写入的帧在恢复后发出）
+     */
+    public boolean isOpen() {
+        return isResumable() || isActive();
+    }
+
+    // 断开后等待恢复中
+    public boolean isSuspended() {
+        return isResumable() && channel == null;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        synchronized (this) {
+            stats.put("sentFrames", sent);
+            stats.put("unackedFrames", unacked.size());
+            stats.put("unackedBytes", unackedBytes);
+            stats.put("throttled", throttled);
+        }
+        synchronized (receiveLock) {
+            stats.put("receivedFrames", received);
+        }
+        stats.put("suspended", isSuspended());
+        stats.put("resumes", resumes.sum());
+        stats.put("throttles", throttles.sum());
+        stats.put("overflows", overflows.sum());
+        return stats;
+    }
+
+    public synchronized long getUnackedBytes() {
+        return unackedBytes;
+    }
+
+    public long getResumes() {
+        return resumes.sum();
+    }
+
+    // 重传缓冲积压而暂停写入的次数
+    public long getThrottles() {
+        return throttles.sum();
+    }
+
+    // 超过上限丢弃重传缓冲的次数，期间断开的链路无法恢复
+    public long getOverflows() {
+        return overflows.sum();
+    }
+}
@@ -0,0 +1,71 @@
+package com.imddy.frp.common.stream;
+
+import io.netty.util.collection.IntObjectHashMap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 单条Agent链路上的流表，以32位流ID为键，避免装箱和字符串哈希。
+ * 流ID由链路内的计数器分配，0保留表示“无流”。
+ */
+public class StreamTable<T> {
+    private final IntObjectHashMap<T> streams = new IntObjectHashMap<>();
+    private int nextStreamId = 1;
+
+    /**
+     * 分配一个未被占用的流ID并登记
+     */
+    public synchronized int register(T stream) {
+        int streamId = nextStreamId;
+        while (streamId == 0 || streams.containsKey(streamId)) {
+            streamId = streamId == Integer.MAX_VALUE ? 1 : streamId + 1;
+        }
+        nextStreamId = streamId == Integer.MAX_VALUE ? 1 : streamId + 1;
+        streams.put(streamId, stream);
+        return streamId;
+    }
+
+    /**
+     * 以对端分配的流ID登记
+     */
+    public synchronized void put(int streamId, T stream) {
+        streams.put(streamId, stream);
+    }
+
+    public synchronized T get(int streamId) {
+        return streams.get(streamId);
+    }
+
+    public synchronized T remove(int streamId) {
+        return streams.remove(streamId);
+    }
+
+    /**
+     * 仅当流ID仍然对应该对象时移除
+     */
+    public synchronized boolean remove(int streamId, T stream) {
+        if (streams.get(streamId) == stream) {
+            streams.remove(streamId);
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized int size() {
+        return streams.size();
+    }
+
+    public synchronized List<T> values() {
+        return new ArrayList<>(streams.values());
+    }
+
+    /**
+     * 清空流表并返回清空前的所有流
+     */
+    public synchronized List<T> drain() {
+        List<T> all = new ArrayList<>(streams.values());
+        streams.clear();
+        return all;
+    }
+}
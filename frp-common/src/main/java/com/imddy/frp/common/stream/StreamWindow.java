@@ -0,0 +1,50 @@
+package com.imddy.frp.common.stream;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 单个流的信用窗口（类似HTTP/2和yamux的流控）。
+ * 发送方每发送一个DATA帧扣减发送窗口，窗口耗尽后暂停读取源Socket；
+ * 接收方在数据写入本地Socket后累计已交付字节，超过半个窗口时通过WINDOW_UPDATE归还额度。
+ * 因此每个流在链路上和对端缓冲中的数据量最多为一个窗口。
+ */
+public class StreamWindow {
+    public static final int INITIAL_WINDOW = 256 * 1024;
+
+    private final AtomicInteger sendWindow = new AtomicInteger(INITIAL_WINDOW);
+    private final AtomicInteger delivered = new AtomicInteger();
+
+    /**
+     * 发送方扣减窗口，返回扣减后窗口是否仍有余量
+     */
+    public boolean consume(int bytes) {
+        return sendWindow.addAndGet(-bytes) > 0;
+    }
+
+    /**
+     * 发送方收到WINDOW_UPDATE，返回窗口是否从耗尽恢复为可用
+     */
+    public boolean release(int increment) {
+        int after = sendWindow.addAndGet(increment);
+        return after > 0 && after - increment <= 0;
+    }
+
+    public boolean isOpen() {
+        return sendWindow.get() > 0;
+    }
+
+    public int getSendWindow() {
+        return sendWindow.get();
+    }
+
+    /**
+     * 接收方登记已交付到本地Socket的字节，达到半个窗口时返回需要归还的额度，否则返回0
+     */
+    public int onDelivered(int bytes) {
+        int total = delivered.addAndGet(bytes);
+        if (total >= INITIAL_WINDOW / 2 && delivered.compareAndSet(total, 0)) {
+            return total;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,229 @@
+package com.imddy.frp.common.transport;
+
+import com.imddy.frp.common.config.TransportConfig;
+import com.imddy.frp.common.config.UdpConfig;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.function.IntFunction;
+
+/**
+ * 传输层抽象，服务端和Agent的所有Bootstrap都通过它创建EventLoopGroup和Channel。
+ * 按io_uring、epoll、nio的顺序选择可用实现；io_uring来自可选的netty-incubator-transport-native-io_uring，
+ * 通过反射加载，不在classpath上时自动跳过。
+ */
+@Slf4j
+public class Transport {
+    private static final String IO_URING_PACKAGE = "io.netty.incubator.channel.uring.";
+    private static final int TCP_FASTOPEN_BACKLOG = 256;
+
+    private final String name;
+    private final boolean nativeTransport;
+    private final IntFunction<EventLoopGroup> groupFactory;
+    private final Class<? extends ServerChannel> serverChannelClass;
+    private final Class<? extends SocketChannel> socketChannelClass;
+    private final Class<? extends DatagramChannel> datagramChannelClass;
+    private final TransportConfig config;
+
+    private Transport(String name, boolean nativeTransport, IntFunction<EventLoopGroup> groupFactory,
+                      Class<? extends ServerChannel> serverChannelClass,
+                      Class<? extends SocketChannel> socketChannelClass,
+                      Class<? extends DatagramChannel> datagramChannelClass,
+                      TransportConfig config) {
+        this.name = name;
+        this.nativeTransport = nativeTransport;
+        this.groupFactory = groupFactory;
+        this.serverChannelClass = serverChannelClass;
+        this.socketChannelClass = socketChannelClass;
+        this.datagramChannelClass = datagramChannelClass;
+        this.config = config;
+    }
+
+    public static Transport select(TransportConfig config) {
+        String type = config.getType() == null ? "auto" : config.getType().toLowerCase();
+        Transport transport;
+        switch (type) {
+            case "io_uring":
+                transport = ioUring(config);
+                break;
+            case "epoll":
+                transport = epoll(config);
+                break;
+            case "nio":
+                transport = nio(config);
+                break;
+            default:
+                if (!"auto".equals(type)) {
+                    log.warn("Unknown transport type: {}, falling back to auto", type);
+                    type = "auto";
+                }
+                transport = ioUring(config);
+                if (transport == null) {
+                    transport = epoll(config);
+                }
+        }
+        if (transport == null) {
+            if (!"auto".equals(type)) {
+                log.warn("Transport {} is not available, falling back to nio", type);
+            }
+            transport = nio(config);
+        }
+        log.info("Using {} transport", transport.name);
+        return transport;
+    }
+
+    private static Transport nio(TransportConfig config) {
+        return new Transport("nio", false, NioEventLoopGroup::new,
+                NioServerSocketChannel.class, NioSocketChannel.class, NioDatagramChannel.class, config);
+    }
+
+    private static Transport epoll(TransportConfig config) {
+        if (!Epoll.isAvailable()) {
+            log.debug("Epoll is not available", Epoll.unavailabilityCause());
+            return null;
+        }
+        return new Transport("epoll", true, EpollEventLoopGroup::new,
+                EpollServerSocketChannel.class, EpollSocketChannel.class, EpollDatagramChannel.class, config);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Transport ioUring(TransportConfig config) {
+        try {
+            Class<?> ioUring = Class.forName(IO_URING_PACKAGE + "IOUring");
+            if (!(Boolean) ioUring.getMethod("isAvailable").invoke(null)) {
+                return null;
+            }
+            Class<?> groupClass = Class.forName(IO_URING_PACKAGE + "IOUringEventLoopGroup");
+            IntFunction<EventLoopGroup> groupFactory = threads -> {
+                try {
+                    return (EventLoopGroup) groupClass.getConstructor(int.class).newInstance(threads);
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException("Failed to create io_uring event loop group", e);
+                }
+            };
+            return new Transport("io_uring", true, groupFactory,
+                    (Class<? extends ServerChannel>) Class.forName(IO_URING_PACKAGE + "IOUringServerSocketChannel"),
+                    (Class<? extends SocketChannel>) Class.forName(IO_URING_PACKAGE + "IOUringSocketChannel"),
+                    (Class<? extends DatagramChannel>) Class.forName(IO_URING_PACKAGE + "IOUringDatagramChannel"),
+                    config);
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (ReflectiveOperationException | LinkageError e) {
+            log.debug("io_uring is not available", e);
+            return null;
+        }
+    }
+
+    /**
+     * 创建EventLoopGroup，threads为0时使用Netty默认线程数
+     */
+    public EventLoopGroup newEventLoopGroup(int threads) {
+        return groupFactory.apply(threads);
+    }
+
+    public EventLoopGroup newEventLoopGroup() {
+        return newEventLoopGroup(0);
+    }
+
+    /**
+     * 监听端口的原生选项：TCP_FASTOPEN、SO_REUSEPORT
+     */
+    public ServerBootstrap configure(ServerBootstrap bootstrap) {
+        bootstrap.channel(serverChannelClass);
+        if (nativeTransport) {
+            if (config.isTcpFastOpen()) {
+                bootstrap.option(ChannelOption.TCP_FASTOPEN, TCP_FASTOPEN_BACKLOG);
+            }
+            if (config.isReusePort() && "epoll".equals(name)) {
+                bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+            }
+        }
+        return bootstrap;
+    }
+
+    /**
+     * 主动连接的原生选项：TCP_FASTOPEN_CONNECT
+     */
+    public Bootstrap configure(Bootstrap bootstrap) {
+        bootstrap.channel(socketChannelClass);
+        if (nativeTransport && config.isTcpFastOpen()) {
+            bootstrap.option(ChannelOption.TCP_FASTOPEN_CONNECT, true);
+        }
+        return bootstrap;
+    }
+
+    /**
+     * UDP Bootstrap
+     */
+    public Bootstrap configureDatagram(Bootstrap bootstrap) {
+        bootstrap.channel(datagramChannelClass);
+        if (config.isReusePort() && "epoll".equals(name)) {
+            bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+        }
+        return bootstrap;
+    }
+
+    /**
+     * UDP隧道共享监听Socket的Bootstrap：按最大报文长度分配读缓冲区避免截断，加大Socket缓冲区。
+     * epoll下一次recvmmsg读取多个报文；多个报文在一次flush中写出时epoll会自动使用sendmmsg
+     */
+    public Bootstrap configureDatagram(Bootstrap bootstrap, UdpConfig udp) {
+        configureDatagram(bootstrap);
+        int recvBatch = "epoll".equals(name) ? Math.max(1, udp.getRecvBatchSize()) : 1;
+        bootstrap.option(ChannelOption.RCVBUF_ALLOCATOR,
+                        new FixedRecvByteBufAllocator(udp.getMaxDatagramSize() * recvBatch))
+                .option(ChannelOption.SO_RCVBUF, udp.getSocketBufferBytes())
+                .option(ChannelOption.SO_SNDBUF, udp.getSocketBufferBytes());
+        if (recvBatch > 1) {
+            bootstrap.option(EpollChannelOption.MAX_DATAGRAM_PAYLOAD_SIZE, udp.getMaxDatagramSize());
+        }
+        return bootstrap;
+    }
+
+    /**
+     * UDP会话到目标的Socket的Bootstrap：每个会话一个，报文逐个读取，使用较小的Socket缓冲区
+     */
+    public Bootstrap configureSessionDatagram(Bootstrap bootstrap, UdpConfig udp) {
+        configureDatagram(bootstrap);
+        return bootstrap.option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(udp.getMaxDatagramSize()))
+                .option(ChannelOption.SO_RCVBUF, udp.getSessionSocketBufferBytes())
+                .option(ChannelOption.SO_SNDBUF, udp.getSessionSocketBufferBytes());
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isNative() {
+        return nativeTransport;
+    }
+
+    public Class<? extends ServerChannel> getServerChannelClass() {
+        return serverChannelClass;
+    }
+
+    public Class<? extends SocketChannel> getSocketChannelClass() {
+        return socketChannelClass;
+    }
+
+    public Class<? extends DatagramChannel> getDatagramChannelClass() {
+        return datagramChannelClass;
+    }
+}
@@ -0,0 +1,90 @@
+package com.imddy.frp.common.codec;
+
+import com.imddy.frp.common.protocol.Message;
+import com.imddy.frp.common.protocol.MessageType;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class DatagramBatcherTest {
+
+    @Test
+    void flushSendsOneBatchThatSplitsBack() {
+        EmbeddedChannel link = new EmbeddedChannel();
+        DatagramBatcher batcher = new DatagramBatcher(link, 1400, 1000);
+        batcher.add(1, datagram("first"));
+        batcher.add(2, datagram(""));
+        batcher.add(1, datagram("third"));
+        batcher.flush();
+
+        Message msg = link.readOutbound();
+        assertEquals(MessageType.DATAGRAM_BATCH, msg.getType());
+        assertNull(link.readOutbound());
+
+        List<String> entries = split(msg.getData());
+        assertEquals(List.of("1:first", "2:", "1:third"), entries);
+        assertEquals(3, batcher.getDatagrams());
+        assertEquals(1, batcher.getBatches());
+        msg.release();
+        link.finishAndReleaseAll();
+    }
+
+    @Test
+    void fullBatchIsSentBeforeNextDatagram() {
+        EmbeddedChannel link = new EmbeddedChannel();
+        // 每条报文6字节头+10字节负载，第二条放不下
+        DatagramBatcher batcher = new DatagramBatcher(link, 20, 1000);
+        batcher.add(1, datagram("0123456789"));
+        batcher.add(2, datagram("abcdefghij"));
+        batcher.flush();
+
+        Message first = link.readOutbound();
+        Message second = link.readOutbound();
+        assertEquals(List.of("1:0123456789"), split(first.getData()));
+        assertEquals(List.of("2:abcdefghij"), split(second.getData()));
+        first.release();
+        second.release();
+        link.finishAndReleaseAll();
+    }
+
+    @Test
+    void truncatedBatchIsRejected() {
+        ByteBuf frame = Unpooled.buffer();
+        frame.writeInt(1);
+        frame.writeShort(10);
+        frame.writeBytes(new byte[4]);
+        assertThrows(IllegalArgumentException.class, () -> DatagramBatcher.forEach(frame, (streamId, payload) -> { }));
+        frame.release();
+    }
+
+    @Test
+    void trailingPartialHeaderIsIgnored() {
+        ByteBuf frame = Unpooled.buffer();
+        frame.writeInt(1);
+        frame.writeShort(2);
+        frame.writeBytes("ok".getBytes(StandardCharsets.UTF_8));
+        frame.writeShort(0);
+        assertEquals(List.of("1:ok"), split(frame));
+        frame.release();
+    }
+
+    private static ByteBuf datagram(String text) {
+        return Unpooled.copiedBuffer(text, StandardCharsets.UTF_8);
+    }
+
+    private static List<String> split(ByteBuf frame) {
+        List<String> entries = new ArrayList<>();
+        DatagramBatcher.forEach(frame, (streamId, payload) ->
+                entries.add(streamId + ":" + payload.toString(StandardCharsets.UTF_8)));
+        return entries;
+    }
+}
@@ -0,0 +1,164 @@
+package com.imddy.frp.common.codec;
+
+import com.imddy.frp.common.protocol.Message;
+import com.imddy.frp.common.protocol.MessageType;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.DecoderException;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageCodecTest {
+    private static final String TEXT = "GET /index.html HTTP/1.1\r\nHost: example.com\r\n\r\n".repeat(100);
+
+    @Test
+    void roundTripWithoutCompression() {
+        ByteBuf frame = encode(new MessageCodec(), data(7, TEXT));
+        // 类型字节在magic之后，不带压缩标志
+        assertEquals(MessageType.DATA.getCode(), frame.getUnsignedByte(2));
+
+        Message msg = decode(new MessageCodec(), frame);
+        assertEquals(MessageType.DATA, msg.getType());
+        assertEquals(7, msg.getStreamId());
+        assertEquals(TEXT, msg.getData().toString(StandardCharsets.UTF_8));
+        msg.release();
+    }
+
+    @Test
+    void roundTripWithCompression() {
+        MessageCodec encoder = new MessageCodec();
+        encoder.enableCompression("deflate");
+        ByteBuf frame = encode(encoder, data(3, TEXT));
+        assertEquals(MessageType.DATA.getCode() | 0x80, frame.getUnsignedByte(2));
+        assertTrue(frame.readableBytes() < TEXT.length());
+
+        MessageCodec decoder = new MessageCodec();
+        decoder.enableCompression("deflate");
+        Message msg = decode(decoder, frame);
+        assertEquals(MessageType.DATA, msg.getType());
+        assertEquals(3, msg.getStreamId());
+        assertEquals(TEXT, msg.getData().toString(StandardCharsets.UTF_8));
+        msg.release();
+    }
+
+    @Test
+    void smallPayloadIsNotCompressed() {
+        MessageCodec encoder = new MessageCodec();
+        encoder.enableCompression("deflate");
+        ByteBuf frame = encode(encoder, data(1, "tiny"));
+        assertEquals(MessageType.DATA.getCode(), frame.getUnsignedByte(2));
+        frame.release();
+    }
+
+    @Test
+    void emptyDataFrameDecodesToEmptyBuffer() {
+        Message msg = decode(new MessageCodec(), encode(new MessageCodec(), Message.data(5, Unpooled.EMPTY_BUFFER)));
+        assertEquals(MessageType.DATA, msg.getType());
+        assertEquals(0, msg.dataLength());
+    }
+
+    @Test
+    void controlMessageRoundTrip() {
+        Message msg = decode(new MessageCodec(), encode(new MessageCodec(), Message.sessionAck(42)));
+        assertEquals(MessageType.SESSION_ACK, msg.getType());
+        assertEquals("42", msg.getMetadata());
+        assertNull(msg.getData());
+    }
+
+    @Test
+    void compressedFrameWithoutNegotiationIsRejected() {
+        MessageCodec encoder = new MessageCodec();
+        encoder.enableCompression("deflate");
+        ByteBuf frame = encode(encoder, data(1, TEXT));
+        assertThrows(DecoderException.class, () -> decode(new MessageCodec(), frame));
+    }
+
+    @Test
+    void truncatedDataIsRejected() {
+        ByteBuf frame = encode(new MessageCodec(), data(1, TEXT));
+        ByteBuf truncated = frame.copy(0, frame.readableBytes() - 10);
+        frame.release();
+        assertThrows(DecoderException.class, () -> decode(new MessageCodec(), truncated));
+    }
+
+    @Test
+    void truncatedHeaderIsRejected() {
+        ByteBuf frame = encode(new MessageCodec(), data(1, TEXT));
+        // magic、类型、空隧道名之后只剩半个流ID
+        ByteBuf truncated = frame.copy(0, 7);
+        frame.release();
+        assertThrows(DecoderException.class, () -> decode(new MessageCodec(), truncated));
+    }
+
+    @Test
+    void compressedFrameShorterThanOriginalLengthIsRejected() {
+        ByteBuf frame = header(MessageType.DATA.getCode() | 0x80);
+        frame.writeInt(2);
+        frame.writeShort(0);
+        MessageCodec decoder = new MessageCodec();
+        decoder.enableCompression("deflate");
+        assertThrows(DecoderException.class, () -> decode(decoder, frame));
+    }
+
+    @Test
+    void negativeDataLengthIsRejected() {
+        ByteBuf frame = header(MessageType.DATA.getCode());
+        frame.writeInt(-1);
+        assertThrows(DecoderException.class, () -> decode(new MessageCodec(), frame));
+    }
+
+    @Test
+    void stringLongerThanFrameIsRejected() {
+        ByteBuf frame = Unpooled.buffer();
+        frame.writeShort(0xCAFE);
+        frame.writeByte(MessageType.REGISTER.getCode());
+        frame.writeShort(100);
+        frame.writeBytes("short".getBytes(StandardCharsets.UTF_8));
+        assertThrows(DecoderException.class, () -> decode(new MessageCodec(), frame));
+    }
+
+    private static Message data(int streamId, String text) {
+        return Message.data(streamId, Unpooled.copiedBuffer(text, StandardCharsets.UTF_8));
+    }
+
+    // magic、类型、空隧道名、流ID 1、空metadata，后面由调用方写数据长度
+    private static ByteBuf header(int typeCode) {
+        ByteBuf frame = Unpooled.buffer();
+        frame.writeShort(0xCAFE);
+        frame.writeByte(typeCode);
+        frame.writeShort(0);
+        frame.writeInt(1);
+        frame.writeShort(0);
+        return frame;
+    }
+
+    private static ByteBuf encode(MessageCodec codec, Message msg) {
+        EmbeddedChannel channel = new EmbeddedChannel(codec);
+        assertTrue(channel.writeOutbound(msg));
+        ByteBuf frame = channel.readOutbound();
+        channel.finishAndReleaseAll();
+        // 复制成连续的堆缓冲区，测试可以按下标读取和截断
+        ByteBuf copy = Unpooled.copiedBuffer(frame);
+        frame.release();
+        assertNotEquals(0, copy.readableBytes());
+        return copy;
+    }
+
+    private static Message decode(MessageCodec codec, ByteBuf frame) {
+        EmbeddedChannel channel = new EmbeddedChannel(codec);
+        try {
+            assertTrue(channel.writeInbound(frame));
+            return channel.readInbound();
+        } finally {
+            channel.finish();
+        }
+    }
+}
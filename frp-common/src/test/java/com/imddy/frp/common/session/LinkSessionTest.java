@@ -0,0 +1,197 @@
+package com.imddy.frp.common.session;
+
+import com.imddy.frp.common.protocol.Message;
+import com.imddy.frp.common.protocol.MessageType;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LinkSessionTest {
+
+    @Test
+    void receiverAcksEveryBatchOfFrames() {
+        EmbeddedChannel ch = new EmbeddedChannel();
+        LinkSession session = new LinkSession(1024 * 1024);
+        session.start(ch, LinkSession.newToken());
+
+        List<Message> handled = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            session.receive(ch, data(1, "x"), handled::add);
+        }
+        assertEquals(64, handled.size());
+        assertEquals(64, session.getReceived());
+
+        Message ack = ch.readOutbound();
+        assertEquals(MessageType.SESSION_ACK, ack.getType());
+        assertEquals("64", ack.getMetadata());
+
+        // 已确认过的帧不重复确认
+        session.flushAck();
+        assertNull(ch.readOutbound());
+        session.receive(ch, data(1, "y"), handled::add);
+        session.flushAck();
+        Message heartbeatAck = ch.readOutbound();
+        assertEquals("65", heartbeatAck.getMetadata());
+
+        handled.forEach(Message::release);
+        ch.finishAndReleaseAll();
+    }
+
+    @Test
+    void framesFromReplacedChannelAreDropped() {
+        EmbeddedChannel old = new EmbeddedChannel();
+        EmbeddedChannel current = new EmbeddedChannel();
+        LinkSession session = new LinkSession(1024 * 1024);
+        session.start(old, LinkSession.newToken());
+        session.detach(old, 60_000, () -> { });
+        assertEquals(0, session.resume(current, 0));
+
+        List<Message> handled = new ArrayList<>();
+        Message stale = data(1, "stale");
+        session.receive(old, stale, handled::add);
+        assertTrue(handled.isEmpty());
+        assertEquals(0, session.getReceived());
+        stale.release();
+
+        old.finishAndReleaseAll();
+        current.finishAndReleaseAll();
+    }
+
+    @Test
+    void resumeRetransmitsUnackedFrames() {
+        EmbeddedChannel first = new EmbeddedChannel();
+        LinkSession session = new LinkSession(1024 * 1024);
+        session.start(first, LinkSession.newToken());
+        for (int i = 1; i <= 3; i++) {
+            session.write(data(i, "frame" + i));
+        }
+        first.runPendingTasks();
+        assertEquals(3, drain(first).size());
+
+        // 对端只确认了第一帧，随后连接断开
+        session.onAck(1);
+        assertTrue(session.detach(first, 60_000, () -> { }));
+        assertTrue(session.isSuspended());
+        // 断开期间写入的帧只进入重传缓冲
+        session.write(data(4, "frame4"));
+        assertEquals(3, session.getStats().get("unackedFrames"));
+
+        EmbeddedChannel second = new EmbeddedChannel();
+        assertEquals(0, session.resume(second, 1));
+        second.runPendingTasks();
+        List<Message> retransmitted = drain(second);
+        assertEquals(List.of("frame2", "frame3", "frame4"), payloads(retransmitted));
+
+        // 对端确认后释放重传缓冲
+        session.onAck(4);
+        assertEquals(0, session.getStats().get("unackedFrames"));
+        assertEquals(1L, session.getStats().get("resumes"));
+
+        retransmitted.forEach(Message::release);
+        first.finishAndReleaseAll();
+        second.finishAndReleaseAll();
+        session.close();
+    }
+
+    @Test
+    void linkStopsWritingBeforeBufferOverflows() {
+        EmbeddedChannel ch = new EmbeddedChannel();
+        // 每帧负载936字节加64字节开销，计1000字节
+        LinkSession session = new LinkSession(10_000);
+        session.start(ch, LinkSession.newToken());
+        for (int i = 1; i <= 4; i++) {
+            session.write(data(i, "x".repeat(936)));
+        }
+        assertTrue(ch.isWritable());
+
+        // 达到上限的一半
+        session.write(data(5, "x".repeat(936)));
+        assertFalse(ch.isWritable());
+        assertEquals(1L, session.getThrottles());
+
+        // 确认后降到四分之一以下才恢复
+        session.onAck(2);
+        assertFalse(ch.isWritable());
+        session.onAck(3);
+        assertTrue(ch.isWritable());
+        assertEquals(0L, session.getOverflows());
+
+        ch.runPendingTasks();
+        drain(ch).forEach(Message::release);
+        ch.finishAndReleaseAll();
+        session.close();
+    }
+
+    @Test
+    void resumedChannelInheritsThrottle() {
+        EmbeddedChannel first = new EmbeddedChannel();
+        LinkSession session = new LinkSession(10_000);
+        session.start(first, LinkSession.newToken());
+        for (int i = 1; i <= 5; i++) {
+            session.write(data(i, "x".repeat(936)));
+        }
+        first.runPendingTasks();
+        drain(first).forEach(Message::release);
+        session.detach(first, 60_000, () -> { });
+
+        EmbeddedChannel second = new EmbeddedChannel();
+        assertEquals(0, session.resume(second, 0));
+        assertFalse(second.isWritable());
+        session.onAck(5);
+        assertTrue(second.isWritable());
+
+        second.runPendingTasks();
+        drain(second).forEach(Message::release);
+        first.finishAndReleaseAll();
+        second.finishAndReleaseAll();
+        session.close();
+    }
+
+    @Test
+    void resumeFailsWhenPeerIsAheadOfSender() {
+        EmbeddedChannel first = new EmbeddedChannel();
+        LinkSession session = new LinkSession(1024 * 1024);
+        session.start(first, LinkSession.newToken());
+        session.write(data(1, "only"));
+        first.runPendingTasks();
+        drain(first).forEach(Message::release);
+        session.detach(first, 60_000, () -> { });
+
+        EmbeddedChannel second = new EmbeddedChannel();
+        assertEquals(-1, session.resume(second, 5));
+
+        first.finishAndReleaseAll();
+        second.finishAndReleaseAll();
+        session.close();
+    }
+
+    private static Message data(int streamId, String text) {
+        return Message.data(streamId, Unpooled.copiedBuffer(text, StandardCharsets.UTF_8));
+    }
+
+    private static List<Message> drain(EmbeddedChannel ch) {
+        List<Message> messages = new ArrayList<>();
+        Message msg;
+        while ((msg = ch.readOutbound()) != null) {
+            messages.add(msg);
+        }
+        return messages;
+    }
+
+    private static List<String> payloads(List<Message> messages) {
+        List<String> result = new ArrayList<>();
+        for (Message msg : messages) {
+            result.add(msg.getData().toString(StandardCharsets.UTF_8));
+        }
+        return result;
+    }
+}
@@ -1,18 +1,21 @@
 package com.imddy.frp.server;
 
 import com.imddy.frp.common.codec.MessageCodec;
+import com.imddy.frp.common.codec.WriteBatchHandler;
+import com.imddy.frp.common.config.UdpConfig;
 import com.imddy.frp.common.protocol.ProxyProtocol;
+import com.imddy.frp.common.transport.Transport;
 import com.imddy.frp.server.config.ServerConfig;
 import com.imddy.frp.server.handler.*;
+import com.imddy.frp.server.metrics.TlsStats;
+import com.imddy.frp.server.tls.ServerTlsContexts;
 import com.imddy.frp.server.tunnel.TunnelManager;
+import com.imddy.frp.server.tunnel.VhostRouter;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.DatagramChannel;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioDatagramChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
 import io.netty.handler.codec.LengthFieldPrepender;
 import io.netty.handler.codec.http.HttpObjectAggregator;
@@ -21,61 +24,106 @@ import io.netty.handler.codec.http.HttpResponseEncoder;
 import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
-import io.netty.handler.ssl.SslContext;
-import io.netty.handler.ssl.SslContextBuilder;
-import io.netty.handler.ssl.util.SelfSignedCertificate;
+import io.netty.handler.timeout.ReadTimeoutHandler;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.concurrent.TimeUnit;
+
 @Slf4j
 public class FrpServer {
     private final ServerConfig config;
     private final TunnelManager tunnelManager;
+    private final Transport transport;
     private final EventLoopGroup bossGroup;
     private final EventLoopGroup workerGroup;
+    // UDP会话空闲淘汰用的时间轮，所有UDP隧道共享
+    private final HashedWheelTimer udpTimer =
+            new HashedWheelTimer(new DefaultThreadFactory("frp-udp-timer", true), 100, TimeUnit.MILLISECONDS);
+    // https隧道终止TLS用的上下文，配置相同的隧道共用会话缓存
+    private final ServerTlsContexts tlsContexts;
+    // 所有Agent端口共用，链路在REGISTER时才确定所属隧道
+    private final ChannelInitializer<SocketChannel> agentInitializer;
 
     public FrpServer(ServerConfig config) {
         this.config = config;
         this.tunnelManager = new TunnelManager();
-        this.bossGroup = new NioEventLoopGroup(1);
-        this.workerGroup = new NioEventLoopGroup();
+        this.transport = Transport.select(config.getTransport());
+        this.bossGroup = transport.newEventLoopGroup(1);
+        this.workerGroup = transport.newEventLoopGroup();
+        this.tlsContexts = new ServerTlsContexts(bossGroup);
+        this.agentInitializer = newAgentInitializer();
     }
 
     public void start() throws Exception {
         // 注册所有隧道
         for (ServerConfig.TunnelConfig tunnel : config.getTunnels()) {
             tunnelManager.registerTunnel(tunnel);
-            startAgentServer(tunnel);
+            if (tunnel.getAgentPort() > 0) {
+                startAgentServer(tunnel.getAgentPort(),
+                        "tunnel: " + tunnel.getName() + " (" + tunnel.getType() + ")");
+            } else if (config.getAgentPort() <= 0) {
+                log.warn("Tunnel has no agentPort and no shared agentPort is configured: {}", tunnel.getName());
+            }
             startProxyServer(tunnel);
         }
 
+        // 所有隧道共用一个Agent端口，隧道很多时不必为每个隧道监听一个端口
+        if (config.getAgentPort() > 0) {
+            startAgentServer(config.getAgentPort(), "all tunnels: " + config.getTunnels().size());
+        }
+
+        // 配置了domains的http隧道共用vhost端口
+        if (config.getVhostHttpPort() > 0) {
+            startVhostHttpServer();
+        }
+        // 配置了domains的https隧道共用vhost端口，按SNI透传
+        if (config.getVhostHttpsPort() > 0) {
+            startVhostHttpsServer();
+        }
+
         // 启动管理服务器
         startManagementServer();
 
-        log.info("FRP Server started successfully");
+        log.info("FRP Server started successfully, transport: {}", transport.getName());
     }
 
-    private void startAgentServer(ServerConfig.TunnelConfig tunnel) {
-        ServerBootstrap bootstrap = new ServerBootstrap();
+    private ChannelInitializer<SocketChannel> newAgentInitializer() {
+        return new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel ch) throws Exception {
+                ChannelPipeline pipeline = ch.pipeline();
+                // 半开的链路收不到FIN，靠心跳超时发现，之后才能进入恢复宽限期
+                if (config.getHeartbeatTimeoutSeconds() > 0) {
+                    pipeline.addLast(new ReadTimeoutHandler(config.getHeartbeatTimeoutSeconds()));
+                }
+                pipeline.addLast(new LengthFieldBasedFrameDecoder(1024 * 1024, 0, 4, 0, 4));
+                pipeline.addLast(new LengthFieldPrepender(4));
+                // 压缩统计在注册时绑定到隧道
+                pipeline.addLast(new MessageCodec(config.getCompression(), null));
+                if (config.getBatch().isEnabled()) {
+                    pipeline.addLast(new WriteBatchHandler(config.getBatch()));
+                }
+                pipeline.addLast(new AgentServerHandler(tunnelManager, config.getCompression(),
+                        config.getResume()));
+            }
+        };
+    }
+
+    private void startAgentServer(int port, String description) {
+        ServerBootstrap bootstrap = transport.configure(new ServerBootstrap());
         bootstrap.group(bossGroup, workerGroup)
-                .channel(NioServerSocketChannel.class)
                 .handler(new LoggingHandler(LogLevel.INFO))
-                .childHandler(new ChannelInitializer<SocketChannel>() {
-                    @Override
-                    protected void initChannel(SocketChannel ch) throws Exception {
-                        ChannelPipeline pipeline = ch.pipeline();
-                        pipeline.addLast(new LengthFieldBasedFrameDecoder(1024 * 1024, 0, 4, 0, 4));
-                        pipeline.addLast(new LengthFieldPrepender(4));
-                        pipeline.addLast(new MessageCodec());
-                        pipeline.addLast(new AgentServerHandler(tunnelManager));
-                    }
-                });
+                // 链路由所有流共享，出站缓冲区超过高水位时各流暂停读取
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(512 * 1024, 1024 * 1024))
+                .childHandler(agentInitializer);
 
-        bootstrap.bind(tunnel.getAgentPort()).addListener((ChannelFutureListener) future -> {
+        bootstrap.bind(port).addListener((ChannelFutureListener) future -> {
             if (future.isSuccess()) {
-                log.info("Agent server started on port: {} for tunnel: {} ({})",
-                        tunnel.getAgentPort(), tunnel.getName(), tunnel.getType());
+                log.info("Agent server started on port: {} for {}", port, description);
             } else {
-                log.error("Failed to start agent server on port: {}", tunnel.getAgentPort(), future.cause());
+                log.error("Failed to start agent server on port: {}", port, future.cause());
             }
         });
     }
@@ -101,11 +149,24 @@ public class FrpServer {
         }
     }
 
+    // 监听Channel的handler；连接由ClientProxyHandler转发时按loopAffinity注册到所选链路的事件循环
+    private ChannelHandler listenerHandler(ServerBootstrap bootstrap, String tunnelName, boolean clientProxy) {
+        if (!clientProxy || !config.isLoopAffinity()) {
+            return new LoggingHandler(LogLevel.INFO);
+        }
+        return new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) throws Exception {
+                ch.pipeline().addLast(new LoggingHandler(LogLevel.INFO));
+                ch.pipeline().addLast(new LinkAffinityAcceptor(tunnelManager, tunnelName, bootstrap));
+            }
+        };
+    }
+
     private void startTcpProxyServer(ServerConfig.TunnelConfig tunnel) {
-        ServerBootstrap bootstrap = new ServerBootstrap();
+        ServerBootstrap bootstrap = transport.configure(new ServerBootstrap());
         bootstrap.group(bossGroup, workerGroup)
-                .channel(NioServerSocketChannel.class)
-                .handler(new LoggingHandler(LogLevel.INFO))
+                .handler(listenerHandler(bootstrap, tunnel.getName(), true))
                 .childHandler(new ChannelInitializer<SocketChannel>() {
                     @Override
                     protected void initChannel(SocketChannel ch) throws Exception {
@@ -127,13 +188,14 @@ public class FrpServer {
 
 
     private void startUdpProxyServer(ServerConfig.TunnelConfig tunnel) {
-        Bootstrap bootstrap = new Bootstrap();
+        UdpConfig udp = tunnel.getUdp();
+        // 所有客户端共用一个Socket
+        Bootstrap bootstrap = transport.configureDatagram(new Bootstrap(), udp);
         bootstrap.group(workerGroup)
-                .channel(NioDatagramChannel.class)
                 .handler(new ChannelInitializer<DatagramChannel>() {
                     @Override
                     protected void initChannel(DatagramChannel ch) throws Exception {
-                        ch.pipeline().addLast(new UdpProxyHandler(tunnelManager, tunnel.getName()));
+                        ch.pipeline().addLast(new UdpProxyHandler(tunnelManager, tunnel.getName(), udpTimer));
                     }
                 });
 
@@ -148,21 +210,29 @@ public class FrpServer {
     }
 
     private void startHttpsProxyServer(ServerConfig.TunnelConfig tunnel) throws Exception {
-        ServerBootstrap bootstrap = new ServerBootstrap();
+        if (tunnel.getOpenPort() <= 0) {
+            // 只通过vhost端口透传
+            return;
+        }
+        ServerBootstrap bootstrap = transport.configure(new ServerBootstrap());
 
-        // 生成自签名证书
-        SelfSignedCertificate ssc = new SelfSignedCertificate();
-        SslContext sslContext = SslContextBuilder.forServer(ssc.certificate(), ssc.privateKey()).build();
+        // 提前创建上下文，证书配置错误在启动时就暴露出来
+        try {
+            tlsContexts.get(tunnel.getTls());
+        } catch (Exception e) {
+            log.error("Failed to create TLS context for tunnel: {}", tunnel.getName(), e);
+            return;
+        }
+        TlsStats tlsStats = tunnelManager.getTunnel(tunnel.getName()).getTlsStats();
 
         bootstrap.group(bossGroup, workerGroup)
-                .channel(NioServerSocketChannel.class)
-                .handler(new LoggingHandler(LogLevel.INFO))
+                .handler(listenerHandler(bootstrap, tunnel.getName(), true))
                 .childHandler(new ChannelInitializer<SocketChannel>() {
                     @Override
                     protected void initChannel(SocketChannel ch) throws Exception {
                         ChannelPipeline pipeline = ch.pipeline();
                         // 添加SSL处理
-                        pipeline.addLast(sslContext.newHandler(ch.alloc()));
+                        pipeline.addLast(tlsContexts.newHandler(ch, tunnel.getTls(), tlsStats));
                         // SSL之后也是透明代理
                         ClientProxyHandler handler = new ClientProxyHandler(tunnelManager, tunnel.getName());
                         pipeline.addLast(handler);
@@ -181,15 +251,25 @@ public class FrpServer {
     }
 
     private void startHttpProxyServer(ServerConfig.TunnelConfig tunnel) throws Exception {
-        ServerBootstrap bootstrap = new ServerBootstrap();
+        if (tunnel.getOpenPort() <= 0) {
+            // 只通过vhost端口访问
+            return;
+        }
+        ServerBootstrap bootstrap = transport.configure(new ServerBootstrap());
+        VhostRouter cacheRouter = tunnel.getCache().isEnabled() ? VhostRouter.single(tunnel.getName()) : null;
 
         bootstrap.group(bossGroup, workerGroup)
-                .channel(NioServerSocketChannel.class)
-                .handler(new LoggingHandler(LogLevel.INFO))
+                .handler(listenerHandler(bootstrap, tunnel.getName(), cacheRouter == null))
                 .childHandler(new ChannelInitializer<SocketChannel>() {
                     @Override
                     protected void initChannel(SocketChannel ch) throws Exception {
                         ChannelPipeline pipeline = ch.pipeline();
+                        if (cacheRouter != null) {
+                            // 启用缓存时需要解析请求，按请求转发，命中的直接应答
+                            pipeline.addLast(new HttpRequestDecoder());
+                            pipeline.addLast(new HttpProxyHandler(tunnelManager, cacheRouter));
+                            return;
+                        }
                         // HTTP也使用透明代理
                         ClientProxyHandler handler = new ClientProxyHandler(tunnelManager, tunnel.getName());
                         pipeline.addLast(handler);
@@ -208,10 +288,57 @@ public class FrpServer {
     }
 
 
+    private void startVhostHttpServer() {
+        VhostRouter router = VhostRouter.build(config.getTunnels(), ProxyProtocol.HTTP);
+        ServerBootstrap bootstrap = transport.configure(new ServerBootstrap());
+        bootstrap.group(bossGroup, workerGroup)
+                .handler(new LoggingHandler(LogLevel.INFO))
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) throws Exception {
+                        ChannelPipeline pipeline = ch.pipeline();
+                        // 只解析请求，响应字节原样写回
+                        pipeline.addLast(new HttpRequestDecoder());
+                        pipeline.addLast(new HttpProxyHandler(tunnelManager, router));
+                    }
+                });
+
+        int port = config.getVhostHttpPort();
+        bootstrap.bind(port).addListener((ChannelFutureListener) future -> {
+            if (future.isSuccess()) {
+                log.info("Vhost HTTP server started on port: {}, hosts: {}", port, router.size());
+            } else {
+                log.error("Failed to start vhost HTTP server on port: {}", port, future.cause());
+            }
+        });
+    }
+
+    private void startVhostHttpsServer() {
+        VhostRouter router = VhostRouter.build(config.getTunnels(), ProxyProtocol.HTTPS);
+        ServerBootstrap bootstrap = transport.configure(new ServerBootstrap());
+        bootstrap.group(bossGroup, workerGroup)
+                .handler(new LoggingHandler(LogLevel.INFO))
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) throws Exception {
+                        // 读出SNI后替换为透明代理
+                        ch.pipeline().addLast(new SniRoutingHandler(tunnelManager, router));
+                    }
+                });
+
+        int port = config.getVhostHttpsPort();
+        bootstrap.bind(port).addListener((ChannelFutureListener) future -> {
+            if (future.isSuccess()) {
+                log.info("Vhost HTTPS (SNI passthrough) server started on port: {}, hosts: {}", port, router.size());
+            } else {
+                log.error("Failed to start vhost HTTPS server on port: {}", port, future.cause());
+            }
+        });
+    }
+
     private void startManagementServer() {
-        ServerBootstrap bootstrap = new ServerBootstrap();
+        ServerBootstrap bootstrap = transport.configure(new ServerBootstrap());
         bootstrap.group(bossGroup, workerGroup)
-                .channel(NioServerSocketChannel.class)
                 .handler(new LoggingHandler(LogLevel.INFO))
                 .childHandler(new ChannelInitializer<SocketChannel>() {
                     @Override
@@ -234,7 +361,12 @@ public class FrpServer {
         });
     }
 
+    public TunnelManager getTunnelManager() {
+        return tunnelManager;
+    }
+
     public void stop() {
+        udpTimer.stop();
         bossGroup.shutdownGracefully();
         workerGroup.shutdownGracefully();
         log.info("FRP Server stopped");
@@ -0,0 +1,61 @@
+package com.imddy.frp.server.balance;
+
+import com.imddy.frp.server.tunnel.AgentLink;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 按客户端IP做一致性哈希（最高随机权重），同一IP的连接固定到同一个Agent，Agent内选流数最少的链路。
+ * Agent加入或离开时只有原本落在它上面的客户端会换Agent。没有客户端地址时退化为least-streams
+ */
+public class IpHashBalancer implements LoadBalancer {
+
+    @Override
+    public AgentLink select(List<AgentLink> candidates, SocketAddress client) {
+        if (client == null) {
+            return LeastStreamsBalancer.pick(candidates);
+        }
+        long key = clientKey(client);
+        String bestAgent = null;
+        long bestWeight = 0;
+        for (AgentLink link : candidates) {
+            String agentId = link.getAgentId();
+            if (agentId.equals(bestAgent)) {
+                continue;
+            }
+            long weight = mix(key * 31 + agentId.hashCode());
+            if (bestAgent == null || weight > bestWeight || (weight == bestWeight && agentId.compareTo(bestAgent) < 0)) {
+                bestAgent = agentId;
+                bestWeight = weight;
+            }
+        }
+        AgentLink best = null;
+        int bestStreams = Integer.MAX_VALUE;
+        for (AgentLink link : candidates) {
+            int streams = link.getStreams().size();
+            if (link.getAgentId().equals(bestAgent) && streams < bestStreams) {
+                best = link;
+                bestStreams = streams;
+            }
+        }
+        return best;
+    }
+
+    // 只取IP，同一客户端的不同源端口落到同一个Agent
+    private static long clientKey(SocketAddress client) {
+        if (client instanceof InetSocketAddress && ((InetSocketAddress) client).getAddress() != null) {
+            return Arrays.hashCode(((InetSocketAddress) client).getAddress().getAddress());
+        }
+        return client.toString().hashCode();
+    }
+
+    // SplitMix64的混合函数，让相近的输入得到分散的权重
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,30 @@
+package com.imddy.frp.server.balance;
+
+import com.imddy.frp.server.tunnel.AgentLink;
+
+import java.net.SocketAddress;
+import java.util.List;
+
+/**
+ * 选择当前流数最少的链路，流数相同时取先注册的
+ */
+public class LeastStreamsBalancer implements LoadBalancer {
+
+    @Override
+    public AgentLink select(List<AgentLink> candidates, SocketAddress client) {
+        return pick(candidates);
+    }
+
+    static AgentLink pick(List<AgentLink> candidates) {
+        AgentLink best = null;
+        int bestStreams = Integer.MAX_VALUE;
+        for (AgentLink link : candidates) {
+            int streams = link.getStreams().size();
+            if (streams < bestStreams) {
+                best = link;
+                bestStreams = streams;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,14 @@
+package com.imddy.frp.server.balance;
+
+import com.imddy.frp.server.tunnel.AgentLink;
+
+import java.net.SocketAddress;
+import java.util.List;
+
+/**
+ * 新流的链路选择策略，同一隧道的所有连接共用一个实例，实现需要线程安全。
+ * candidates是可以接收新流的链路（连接可用且没有在排空），至少两条；client是公网客户端地址，可能为null
+ */
+public interface LoadBalancer {
+    AgentLink select(List<AgentLink> candidates, SocketAddress client);
+}
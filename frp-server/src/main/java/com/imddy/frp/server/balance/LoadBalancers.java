@@ -0,0 +1,42 @@
+package com.imddy.frp.server.balance;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * 负载均衡策略注册表，新增策略时在这里注册工厂，隧道通过loadBalance按名称引用
+ */
+public final class LoadBalancers {
+    public static final String LEAST_STREAMS = "least-streams";
+    public static final String ROUND_ROBIN = "round-robin";
+    public static final String P2C = "p2c";
+    public static final String IP_HASH = "ip-hash";
+
+    private static final Map<String, Supplier<LoadBalancer>> FACTORIES = new ConcurrentHashMap<>();
+
+    static {
+        register(LEAST_STREAMS, LeastStreamsBalancer::new);
+        register(ROUND_ROBIN, RoundRobinBalancer::new);
+        register(P2C, PowerOfTwoBalancer::new);
+        register(IP_HASH, IpHashBalancer::new);
+    }
+
+    private LoadBalancers() {
+    }
+
+    public static void register(String name, Supplier<LoadBalancer> factory) {
+        FACTORIES.put(name.toLowerCase(), factory);
+    }
+
+    /**
+     * 按名称创建策略，name为null时使用least-streams，未注册的名称抛出IllegalArgumentException
+     */
+    public static LoadBalancer create(String name) {
+        Supplier<LoadBalancer> factory = FACTORIES.get(name != null ? name.toLowerCase() : LEAST_STREAMS);
+        if (factory == null) {
+            throw new IllegalArgumentException("Unsupported load balance policy: " + name);
+        }
+        return factory.get();
+    }
+}
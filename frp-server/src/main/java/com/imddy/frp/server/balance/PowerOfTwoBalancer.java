@@ -0,0 +1,35 @@
+package com.imddy.frp.server.balance;
+
+import com.imddy.frp.server.tunnel.AgentLink;
+
+import java.net.SocketAddress;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 随机取两条链路，选RTT乘以（流数+1）较小的一条：既避开慢的Agent，也不会把流都压到最快的那个上。
+ * RTT由Agent测量心跳往返后上报，任一条还没有测量值时按流数比较
+ */
+public class PowerOfTwoBalancer implements LoadBalancer {
+
+    @Override
+    public AgentLink select(List<AgentLink> candidates, SocketAddress client) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int size = candidates.size();
+        int first = random.nextInt(size);
+        int second = random.nextInt(size - 1);
+        if (second >= first) {
+            second++;
+        }
+        AgentLink a = candidates.get(first);
+        AgentLink b = candidates.get(second);
+        long rttA = a.getRttMicros();
+        long rttB = b.getRttMicros();
+        long streamsA = a.getStreams().size() + 1;
+        long streamsB = b.getStreams().size() + 1;
+        if (rttA <= 0 || rttB <= 0) {
+            return streamsA <= streamsB ? a : b;
+        }
+        return rttA * streamsA <= rttB * streamsB ? a : b;
+    }
+}
@@ -0,0 +1,19 @@
+package com.imddy.frp.server.balance;
+
+import com.imddy.frp.server.tunnel.AgentLink;
+
+import java.net.SocketAddress;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 按顺序轮流选择链路，不看负载，适合各Agent处理能力相同、连接时长接近的场景
+ */
+public class RoundRobinBalancer implements LoadBalancer {
+    private final AtomicInteger next = new AtomicInteger();
+
+    @Override
+    public AgentLink select(List<AgentLink> candidates, SocketAddress client) {
+        return candidates.get(Math.floorMod(next.getAndIncrement(), candidates.size()));
+    }
+}
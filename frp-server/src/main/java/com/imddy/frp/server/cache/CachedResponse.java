@@ -0,0 +1,135 @@
+package com.imddy.frp.server.cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.AsciiString;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存中的一个响应：状态和响应头在堆上，消息体在堆外。
+ * 消息体的一个引用由缓存持有，淘汰时释放；命中时缓存额外retain一次交给调用方
+ */
+public class CachedResponse {
+    // 304响应只带这些头（RFC 9110 15.4.5）
+    private static final List<CharSequence> NOT_MODIFIED_HEADERS = List.of(HttpHeaderNames.CACHE_CONTROL,
+            HttpHeaderNames.CONTENT_LOCATION, HttpHeaderNames.DATE, HttpHeaderNames.ETAG,
+            HttpHeaderNames.EXPIRES, HttpHeaderNames.LAST_MODIFIED, HttpHeaderNames.VARY);
+    // HttpHeaderNames.KEEP_ALIVE已废弃
+    private static final AsciiString KEEP_ALIVE = AsciiString.cached("keep-alive");
+
+    private final HttpResponseStatus status;
+    private final HttpHeaders headers;
+    private final ByteBuf body;
+    private final long storedAtNanos;
+    private final long expiresAtNanos;
+    // 目标返回的Age头，缓存时间在此基础上累加
+    private final long initialAgeSeconds;
+
+    CachedResponse(HttpResponseStatus status, HttpHeaders headers, ByteBuf body, long ttlSeconds, long initialAgeSeconds) {
+        this.status = status;
+        this.headers = headers;
+        this.body = body;
+        this.storedAtNanos = System.nanoTime();
+        this.expiresAtNanos = storedAtNanos + TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.initialAgeSeconds = initialAgeSeconds;
+    }
+
+    public ByteBuf body() {
+        return body;
+    }
+
+    // 响应头加上消息体的近似内存占用
+    int size() {
+        int size = body.capacity() + 64;
+        for (Map.Entry<String, String> header : headers) {
+            size += header.getKey().length() + header.getValue().length() + 4;
+        }
+        return size;
+    }
+
+    boolean isFresh(long nowNanos) {
+        return nowNanos < expiresAtNanos;
+    }
+
+    /**
+     * 客户端的If-None-Match是否与缓存的ETag匹配（弱比较）
+     */
+    public boolean matches(String ifNoneMatch) {
+        String etag = headers.get(HttpHeaderNames.ETAG);
+        if (ifNoneMatch == null || etag == null) {
+            return false;
+        }
+        String target = stripWeak(etag);
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.equals("*") || stripWeak(tag).equals(target)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String stripWeak(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    /**
+     * 编码响应头，notModified时输出304
+     */
+    public ByteBuf encodeHead(boolean notModified, boolean keepAlive) {
+        HttpResponseStatus responseStatus = notModified ? HttpResponseStatus.NOT_MODIFIED : status;
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("HTTP/1.1 ").append(responseStatus).append("\r\n");
+        for (Map.Entry<String, String> header : headers) {
+            if (!notModified || isNotModifiedHeader(header.getKey())) {
+                sb.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+        }
+        long age = initialAgeSeconds + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - storedAtNanos);
+        sb.append(HttpHeaderNames.AGE).append(": ").append(age).append("\r\n");
+        sb.append(HttpHeaderNames.CONNECTION).append(": ")
+                .append(keepAlive ? HttpHeaderValues.KEEP_ALIVE : HttpHeaderValues.CLOSE).append("\r\n\r\n");
+        return Unpooled.wrappedBuffer(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static boolean isNotModifiedHeader(String name) {
+        for (CharSequence allowed : NOT_MODIFIED_HEADERS) {
+            if (allowed.toString().equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 保存前整理响应头：消息体已经完整收下，去掉分块编码和逐跳头，改为固定长度
+     */
+    static HttpHeaders storedHeaders(HttpHeaders source, int contentLength) {
+        HttpHeaders headers = new DefaultHttpHeaders();
+        headers.add(source);
+        for (String value : source.getAll(HttpHeaderNames.CONNECTION)) {
+            for (String token : value.split(",")) {
+                headers.remove(token.trim());
+            }
+        }
+        headers.remove(HttpHeaderNames.CONNECTION);
+        headers.remove(KEEP_ALIVE);
+        headers.remove(HttpHeaderNames.TRANSFER_ENCODING);
+        headers.remove(HttpHeaderNames.AGE);
+        headers.set(HttpHeaderNames.CONTENT_LENGTH, contentLength);
+        return headers;
+    }
+
+    void release() {
+        body.release();
+    }
+}
@@ -0,0 +1,416 @@
+package com.imddy.frp.server.cache;
+
+import com.imddy.frp.server.config.ServerConfig;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpUtil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 隧道的HTTP响应缓存，按共享缓存的语义只保存带明确有效期的GET响应，消息体放在堆外。
+ * 淘汰策略为分段LRU：新条目进入试用段，再次命中后晋升到保护段，保护段超出份额时最久未用的条目降回试用段；
+ * 空间不足时先淘汰试用段，只被访问一次的资源不会把反复访问的热点挤出去。
+ * 条目按Host、URI和响应Vary指定的请求头取值区分。由多个事件循环共享，所有访问都加锁，命中路径只有哈希查找和链表调整。
+ */
+public class ResponseCache {
+    // 记录Vary头的资源数上限
+    private static final int MAX_VARY_KEYS = 65536;
+
+    private final ServerConfig.CacheConfig config;
+    private final long protectedMaxBytes;
+    private final LinkedHashMap<String, CachedResponse> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, CachedResponse> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private long probationBytes;
+    private long protectedBytes;
+    // 每个资源最近一次响应的Vary头名称（已排序、小写），查找时按它取请求头的值拼出完整的键
+    private final Map<String, List<String>> varies = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, List<String>> eldest) {
+            return size() > MAX_VARY_KEYS;
+        }
+    };
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder notModified = new LongAdder();
+    private final LongAdder stores = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ResponseCache(ServerConfig.CacheConfig config) {
+        this.config = config;
+        this.protectedMaxBytes = (long) (config.getMaxBytes() * config.getProtectedRatio());
+    }
+
+    /**
+     * 请求是否可以使用缓存：只有不带凭据（Authorization、Cookie）、不是范围请求的GET。
+     * 带Cookie的响应常按用户生成，目标未声明Vary: Cookie时缓存会把它返回给其他用户
+     */
+    public static boolean isCacheable(HttpRequest request) {
+        HttpHeaders headers = request.headers();
+        return HttpMethod.GET.equals(request.method())
+                && !headers.contains(HttpHeaderNames.AUTHORIZATION)
+                && !headers.contains(HttpHeaderNames.COOKIE)
+                && !headers.contains(HttpHeaderNames.RANGE)
+                && !hasDirective(headers.get(HttpHeaderNames.CACHE_CONTROL), "no-store");
+    }
+
+    public static String key(String host, String uri) {
+        return (host == null ? "" : host.toLowerCase(Locale.ROOT)) + uri;
+    }
+
+    /**
+     * 查找新鲜的缓存响应，命中时消息体已retain一次，由调用方写出或释放。
+     * 请求要求重新验证（no-cache、max-age=0）时直接算未命中，响应回来后会替换缓存
+     */
+    public CachedResponse get(String key, HttpHeaders requestHeaders) {
+        String cacheControl = requestHeaders.get(HttpHeaderNames.CACHE_CONTROL);
+        if (hasDirective(cacheControl, "no-cache") || "0".equals(directiveValue(cacheControl, "max-age"))
+                || hasDirective(requestHeaders.get(HttpHeaderNames.PRAGMA), "no-cache")) {
+            misses.increment();
+            return null;
+        }
+        synchronized (this) {
+            List<String> varyNames = varies.get(key);
+            String fullKey = varyNames == null ? key : varyKey(key, varyNames, requestHeaders);
+            CachedResponse entry = probation.remove(fullKey);
+            if (entry != null) {
+                probationBytes -= entry.size();
+                if (!entry.isFresh(System.nanoTime())) {
+                    entry.release();
+                    misses.increment();
+                    return null;
+                }
+                // 第二次命中，晋升到保护段
+                protectedSegment.put(fullKey, entry);
+                protectedBytes += entry.size();
+                demoteProtected();
+            } else {
+                entry = protectedSegment.get(fullKey);
+                if (entry == null) {
+                    misses.increment();
+                    return null;
+                }
+                if (!entry.isFresh(System.nanoTime())) {
+                    protectedSegment.remove(fullKey);
+                    protectedBytes -= entry.size();
+                    entry.release();
+                    misses.increment();
+                    return null;
+                }
+            }
+            hits.increment();
+            entry.body().retain();
+            return entry;
+        }
+    }
+
+    public void onNotModified() {
+        notModified.increment();
+    }
+
+    /**
+     * 为转发给目标的请求准备收集响应，请求不能使用缓存时返回null
+     */
+    public Capture capture(String key, HttpRequest request) {
+        return isCacheable(request) ? new Capture(key, request.headers()) : null;
+    }
+
+    private synchronized void put(String key, List<String> varyNames, String fullKey, CachedResponse entry) {
+        if (varyNames.isEmpty()) {
+            varies.remove(key);
+        } else {
+            varies.put(key, varyNames);
+        }
+        remove(fullKey);
+        probation.put(fullKey, entry);
+        probationBytes += entry.size();
+        stores.increment();
+        // 空间不足时先淘汰试用段最久未用的条目
+        while (probationBytes + protectedBytes > config.getMaxBytes()) {
+            LinkedHashMap<String, CachedResponse> segment = probation.isEmpty() ? protectedSegment : probation;
+            Iterator<Map.Entry<String, CachedResponse>> it = segment.entrySet().iterator();
+            if (!it.hasNext()) {
+                break;
+            }
+            CachedResponse victim = it.next().getValue();
+            it.remove();
+            if (segment == probation) {
+                probationBytes -= victim.size();
+            } else {
+                protectedBytes -= victim.size();
+            }
+            victim.release();
+            evictions.increment();
+        }
+    }
+
+    private void remove(String fullKey) {
+        CachedResponse old = probation.remove(fullKey);
+        if (old != null) {
+            probationBytes -= old.size();
+            old.release();
+        }
+        old = protectedSegment.remove(fullKey);
+        if (old != null) {
+            protectedBytes -= old.size();
+            old.release();
+        }
+    }
+
+    // 保护段超出份额时，最久未用的条目降回试用段的最新位置
+    private void demoteProtected() {
+        Iterator<Map.Entry<String, CachedResponse>> it = protectedSegment.entrySet().iterator();
+        while (protectedBytes > protectedMaxBytes && it.hasNext()) {
+            Map.Entry<String, CachedResponse> eldest = it.next();
+            it.remove();
+            protectedBytes -= eldest.getValue().size();
+            probation.put(eldest.getKey(), eldest.getValue());
+            probationBytes += eldest.getValue().size();
+        }
+    }
+
+    private static String varyKey(String key, List<String> varyNames, HttpHeaders requestHeaders) {
+        StringBuilder sb = new StringBuilder(key);
+        for (String name : varyNames) {
+            String value = String.join(",", requestHeaders.getAll(name));
+            sb.append('\n').append(name).append('=').append(value.trim());
+        }
+        return sb.toString();
+    }
+
+    static boolean hasDirective(String cacheControl, String directive) {
+        if (cacheControl == null) {
+            return false;
+        }
+        for (String token : cacheControl.split(",")) {
+            String name = token.trim();
+            int eq = name.indexOf('=');
+            if (eq >= 0) {
+                name = name.substring(0, eq).trim();
+            }
+            if (name.equalsIgnoreCase(directive)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static String directiveValue(String cacheControl, String directive) {
+        if (cacheControl == null) {
+            return null;
+        }
+        for (String token : cacheControl.split(",")) {
+            int eq = token.indexOf('=');
+            if (eq >= 0 && token.substring(0, eq).trim().equalsIgnoreCase(directive)) {
+                String value = token.substring(eq + 1).trim();
+                return value.startsWith("\"") && value.endsWith("\"") && value.length() >= 2
+                        ? value.substring(1, value.length() - 1) : value;
+            }
+        }
+        return null;
+    }
+
+    public synchronized int size() {
+        return probation.size() + protectedSegment.size();
+    }
+
+    public synchronized long getBytes() {
+        return probationBytes + protectedBytes;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public Map<String, Object> toMap() {
+        long hitCount = hits.sum();
+        long missCount = misses.sum();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("entries", size());
+        stats.put("bytes", getBytes());
+        stats.put("maxBytes", config.getMaxBytes());
+        stats.put("hits", hitCount);
+        stats.put("misses", missCount);
+        stats.put("hitRate", hitCount + missCount == 0 ? 0 : (double) hitCount / (hitCount + missCount));
+        stats.put("notModified", notModified.sum());
+        stats.put("stores", stores.sum());
+        stats.put("evictions", evictions.sum());
+        return stats;
+    }
+
+    public synchronized void clear() {
+        for (CachedResponse entry : probation.values()) {
+            entry.release();
+        }
+        for (CachedResponse entry : protectedSegment.values()) {
+            entry.release();
+        }
+        probation.clear();
+        protectedSegment.clear();
+        probationBytes = 0;
+        protectedBytes = 0;
+    }
+
+    /**
+     * 收集一个转发给目标的请求的响应，可缓存时在响应结束后放入缓存。只在客户端连接的事件循环中使用
+     */
+    public final class Capture {
+        private final String key;
+        private final HttpHeaders requestHeaders;
+        private HttpResponse response;
+        private long ttlSeconds;
+        private List<String> varyNames;
+        private ByteBuf body;
+
+        private Capture(String key, HttpHeaders requestHeaders) {
+            this.key = key;
+            this.requestHeaders = requestHeaders;
+        }
+
+        /**
+         * 收到最终响应头，判断是否可以缓存
+         */
+        public void onResponse(HttpResponse msg) {
+            HttpHeaders headers = msg.headers();
+            int code = msg.status().code();
+            if (code != 200 && code != 203 && code != 301 && code != 404 && code != 410) {
+                return;
+            }
+            String cacheControl = headers.get(HttpHeaderNames.CACHE_CONTROL);
+            if (hasDirective(cacheControl, "no-store") || hasDirective(cacheControl, "private")
+                    || hasDirective(cacheControl, "no-cache") || headers.contains(HttpHeaderNames.SET_COOKIE)) {
+                return;
+            }
+            List<String> names = new ArrayList<>();
+            for (String value : headers.getAll(HttpHeaderNames.VARY)) {
+                for (String token : value.split(",")) {
+                    String name = token.trim().toLowerCase(Locale.ROOT);
+                    if (name.equals("*")) {
+                        return;
+                    }
+                    if (!name.isEmpty() && !names.contains(name)) {
+                        names.add(name);
+                    }
+                }
+            }
+            Collections.sort(names);
+            long ttl = freshnessLifetime(headers, cacheControl);
+            long contentLength = HttpUtil.getContentLength(msg, -1L);
+            if (ttl <= 0 || contentLength > config.getMaxEntryBytes()) {
+                return;
+            }
+            this.response = msg;
+            this.ttlSeconds = ttl;
+            this.varyNames = names;
+            int initial = contentLength >= 0 ? (int) contentLength : Math.min(8192, config.getMaxEntryBytes());
+            this.body = Unpooled.directBuffer(initial, config.getMaxEntryBytes());
+        }
+
+        /**
+         * 响应体片段，超过单条上限时放弃缓存
+         */
+        public void onContent(ByteBuf content) {
+            if (body == null) {
+                return;
+            }
+            if (body.readableBytes() + content.readableBytes() > config.getMaxEntryBytes()) {
+                abort();
+                return;
+            }
+            body.writeBytes(content, content.readerIndex(), content.readableBytes());
+        }
+
+        /**
+         * 响应完整结束，放入缓存
+         */
+        public void finish() {
+            if (body == null) {
+                return;
+            }
+            if (body.capacity() > body.readableBytes()) {
+                body.capacity(body.readableBytes());
+            }
+            long initialAge = 0;
+            String age = response.headers().get(HttpHeaderNames.AGE);
+            if (age != null) {
+                try {
+                    initialAge = Math.max(0, Long.parseLong(age.trim()));
+                } catch (NumberFormatException ignored) {
+                    // 非法的Age按0处理
+                }
+            }
+            CachedResponse entry = new CachedResponse(response.status(),
+                    CachedResponse.storedHeaders(response.headers(), body.readableBytes()),
+                    body, ttlSeconds - initialAge, initialAge);
+            body = null;
+            if (ttlSeconds - initialAge <= 0 || entry.size() > config.getMaxBytes()) {
+                entry.release();
+                return;
+            }
+            put(key, varyNames, varyNames.isEmpty() ? key : varyKey(key, varyNames, requestHeaders), entry);
+        }
+
+        /**
+         * 响应不完整或连接关闭，丢弃已收集的内容
+         */
+        public void abort() {
+            if (body != null) {
+                body.release();
+                body = null;
+            }
+        }
+
+        // s-maxage优先于max-age，其次是Expires减Date；都没有时使用配置的默认有效期
+        private long freshnessLifetime(HttpHeaders headers, String cacheControl) {
+            String maxAge = directiveValue(cacheControl, "s-maxage");
+            if (maxAge == null) {
+                maxAge = directiveValue(cacheControl, "max-age");
+            }
+            if (maxAge != null) {
+                try {
+                    return Long.parseLong(maxAge);
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+            String expires = headers.get(HttpHeaderNames.EXPIRES);
+            if (expires != null) {
+                Date expiresAt = DateFormatter.parseHttpDate(expires);
+                if (expiresAt == null) {
+                    return 0;
+                }
+                Date date = headers.get(HttpHeaderNames.DATE) != null
+                        ? DateFormatter.parseHttpDate(headers.get(HttpHeaderNames.DATE)) : null;
+                long now = date != null ? date.getTime() : System.currentTimeMillis();
+                return (expiresAt.getTime() - now) / 1000;
+            }
+            if (hasDirective(cacheControl, "must-revalidate")) {
+                return 0;
+            }
+            return config.getDefaultMaxAgeSeconds();
+        }
+    }
+}
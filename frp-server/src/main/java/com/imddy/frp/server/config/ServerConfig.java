@@ -1,5 +1,10 @@
 package com.imddy.frp.server.config;
 
+import com.imddy.frp.common.config.BatchConfig;
+import com.imddy.frp.common.config.CompressionConfig;
+import com.imddy.frp.common.config.ResumeConfig;
+import com.imddy.frp.common.config.TransportConfig;
+import com.imddy.frp.common.config.UdpConfig;
 import com.imddy.frp.common.protocol.ProxyProtocol;
 import lombok.Data;
 import java.util.List;
@@ -8,6 +13,25 @@ import java.util.List;
 public class ServerConfig {
     private Management management;
     private List<TunnelConfig> tunnels;
+    // 共享的Agent端口，所有隧道的Agent都可以连接它，按REGISTER中的隧道名选择隧道，0表示不开启
+    private int agentPort = 0;
+    // 共享的HTTP虚拟主机端口，配置了domains的http隧道都通过它按Host路由，0表示不开启
+    private int vhostHttpPort = 0;
+    // 共享的HTTPS端口，配置了domains的https隧道按ClientHello中的SNI路由，TLS透传不终止，0表示不开启
+    private int vhostHttpsPort = 0;
+    // Agent链路写批处理
+    private BatchConfig batch = new BatchConfig();
+    // Agent链路负载压缩
+    private CompressionConfig compression = new CompressionConfig();
+    // 传输层：io_uring / epoll / nio
+    private TransportConfig transport = new TransportConfig();
+    // Agent链路断开后保留流，等待Agent重连恢复
+    private ResumeConfig resume = new ResumeConfig();
+    // 超过这么久没有收到Agent的任何消息就断开链路，0表示不检测；应大于Agent的心跳间隔（默认为Agent超时时间的三分之一）
+    private int heartbeatTimeoutSeconds = 30;
+    // 隧道openPort上接入的连接直接注册到为它选定的Agent链路所在的事件循环，转发时不必跨线程；
+    // 一个隧道的连接只分布在它的链路数个线程上，Agent只有一条链路时会被限制在一个核，因此默认关闭
+    private boolean loopAffinity = false;
 
     @Data
     public static class Management {
@@ -18,11 +42,65 @@ public class ServerConfig {
     public static class TunnelConfig {
         private String name;
         private String type;
-        private int openPort;    // 对外开放的端口
-        private int agentPort;   // Agent连接的端口
+        private int openPort;    // 对外开放的端口，http隧道使用vhost时可以为0
+        private int agentPort;   // Agent连接的独立端口，Agent都连共享agentPort时可以为0
+        // 乐观连接：不等待Agent确认就转发客户端数据，省掉一个Server与Agent之间的RTT
+        private boolean optimisticConnect = false;
+        // 多个Agent（及其多条链路）之间分配新流的策略：least-streams | round-robin | p2c | ip-hash
+        private String loadBalance = "least-streams";
+        // http/https隧道在vhost端口上的域名，支持*.example.com通配
+        private List<String> domains;
+        // 可选的路径前缀，只有匹配的请求路由到该隧道（仅http）
+        private List<String> locations;
+        // UDP隧道的会话表配置
+        private UdpConfig udp = new UdpConfig();
+        // https隧道在openPort上终止TLS时使用的证书和会话复用配置
+        private TlsConfig tls = new TlsConfig();
+        // http隧道在Server上的响应缓存
+        private CacheConfig cache = new CacheConfig();
 
         public ProxyProtocol getProtocolType() {
             return ProxyProtocol.fromString(type);
         }
     }
+
+    /**
+     * 服务端TLS终止配置，配置完全相同的隧道共用一个SslContext，也就共用会话缓存和票据密钥
+     */
+    @Data
+    public static class TlsConfig {
+        // PEM格式的证书链和PKCS#8私钥，未配置时使用临时自签名证书
+        private String certFile;
+        private String keyFile;
+        private String keyPassword;
+        // auto：classpath中有netty-tcnative(OpenSSL/BoringSSL)时使用，否则用JDK；也可以指定openssl / jdk
+        private String provider = "auto";
+        // 启用的协议版本和密码套件，为空时使用提供者的默认值
+        private List<String> protocols;
+        private List<String> ciphers;
+        // 通过ALPN通告的应用协议，数据透明转发，只应列出目标服务支持的协议；为空时不协商
+        private List<String> alpn = List.of("http/1.1");
+        // 服务端会话缓存，客户端带会话ID重连时可以跳过完整握手
+        private long sessionCacheSize = 20480;
+        private long sessionTimeoutSeconds = 3600;
+        // 会话票据密钥的轮换周期，旧密钥再保留一个周期用于解密；0表示由提供者自行管理（JDK总是自行轮换）
+        private int ticketKeyRotationMinutes = 60;
+        // 握手超时
+        private long handshakeTimeoutMillis = 10000;
+    }
+
+    /**
+     * http隧道的响应缓存，命中的GET请求由Server直接应答，不经过Agent
+     */
+    @Data
+    public static class CacheConfig {
+        private boolean enabled = false;
+        // 缓存总大小（消息体在堆外）和单个响应的上限
+        private long maxBytes = 64L * 1024 * 1024;
+        private int maxEntryBytes = 1024 * 1024;
+        // 响应没有Cache-Control/Expires时的有效期，0表示不缓存这类响应
+        private long defaultMaxAgeSeconds = 0;
+        // 分段LRU中保护段（至少命中过一次的条目）占总大小的比例
+        private double protectedRatio = 0.8;
+    }
 }
@@ -1,21 +1,55 @@
 package com.imddy.frp.server.handler;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.imddy.frp.common.codec.DatagramBatcher;
+import com.imddy.frp.common.codec.MessageCodec;
+import com.imddy.frp.common.compress.PayloadCompressors;
+import com.imddy.frp.common.config.CompressionConfig;
+import com.imddy.frp.common.config.ResumeConfig;
+import com.imddy.frp.common.config.UdpConfig;
 import com.imddy.frp.common.protocol.Message;
 import com.imddy.frp.common.protocol.MessageType;
+import com.imddy.frp.common.protocol.ProxyProtocol;
+import com.imddy.frp.common.session.LinkSession;
+import com.imddy.frp.server.tunnel.AgentLink;
 import com.imddy.frp.server.tunnel.TunnelManager;
-import io.netty.buffer.Unpooled;
+import com.imddy.frp.server.tunnel.TunnelStream;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.timeout.ReadTimeoutException;
 import lombok.extern.slf4j.Slf4j;
 
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
 @Slf4j
 public class AgentServerHandler extends SimpleChannelInboundHandler<Message> {
     private final TunnelManager tunnelManager;
+    private final CompressionConfig compressionConfig;
+    private final ResumeConfig resumeConfig;
+    // 线程安全，所有链路共用；每条链路新建一个的开销在隧道很多时会拖慢注册
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    // 有序帧经会话计数后分发
+    private final Consumer<Message> dispatcher = this::dispatch;
     private String tunnelName;
+    // REGISTER中第一个隧道的链路，连接、会话和流表由links中的所有链路共用
+    private AgentLink link;
+    private List<AgentLink> links = List.of();
 
-    public AgentServerHandler(TunnelManager tunnelManager) {
+    public AgentServerHandler(TunnelManager tunnelManager, CompressionConfig compressionConfig,
+                              ResumeConfig resumeConfig) {
         this.tunnelManager = tunnelManager;
+        this.compressionConfig = compressionConfig;
+        this.resumeConfig = resumeConfig;
     }
 
     @Override
@@ -25,23 +59,59 @@ public class AgentServerHandler extends SimpleChannelInboundHandler<Message> {
                 handleRegister(ctx, msg);
                 break;
             case HEARTBEAT:
-                handleHeartbeat(ctx);
+                handleHeartbeat(ctx, msg);
+                break;
+            case SESSION_ACK:
+                if (link != null) {
+                    link.getSession().onAck(Long.parseLong(msg.getMetadata()));
+                }
+                break;
+            case DRAIN:
+                for (AgentLink each : links) {
+                    tunnelManager.agentDraining(each);
+                }
                 break;
+            default:
+                if (link != null && LinkSession.isSequenced(msg.getType())) {
+                    link.getSession().receive(ctx.channel(), msg, dispatcher);
+                } else {
+                    dispatch(msg);
+                }
+        }
+    }
+
+    private void dispatch(Message msg) {
+        switch (msg.getType()) {
             case CONNECT_ACK:  // 新增
                 handleConnectAck(msg);
                 break;
             case DATA:
                 handleData(msg);
                 break;
+            case DATAGRAM_BATCH:
+                handleDatagramBatch(msg);
+                break;
             case DISCONNECT:
                 handleDisconnect(msg);
                 break;
+            case WINDOW_UPDATE:
+                handleWindowUpdate(msg);
+                break;
             default:
                 log.warn("Unknown message type: {}", msg.getType());
         }
     }
 
     private void handleRegister(ChannelHandlerContext ctx, Message msg) {
+        // 一条连接只注册一次，重复注册会在TunnelManager中登记同一个Channel的第二条链路
+        if (link != null) {
+            log.warn("Duplicate register ignored: tunnel={}, registered={}, remote={}",
+                    msg.getTunnelName(), tunnelName, ctx.channel().remoteAddress());
+            Message response = new Message(MessageType.REGISTER_FAIL);
+            response.setMetadata("Already registered");
+            ctx.writeAndFlush(response);
+            return;
+        }
         tunnelName = msg.getTunnelName();
         TunnelManager.TunnelInfo tunnel = tunnelManager.getTunnel(tunnelName);
 
@@ -54,78 +124,313 @@ public class AgentServerHandler extends SimpleChannelInboundHandler<Message> {
             return;
         }
 
-        tunnelManager.agentConnected(tunnelName, ctx.channel());
+        // 双方都开启时会话可恢复，UDP报文丢失无妨，不做恢复
+        JsonNode offer = readRegisterMetadata(msg);
+        boolean resumable = resumeConfig.isEnabled() && offer != null && offer.path("resume").asBoolean(false)
+                && tunnel.getConfig().getProtocolType() != ProxyProtocol.UDP;
+        List<String> rejected = new ArrayList<>();
+        List<String> others = otherTunnels(tunnel, offer, rejected);
+        long received = resumable ? resumeLink(ctx, offer) : -1;
+        boolean resumed = received >= 0;
+        if (!resumed) {
+            LinkSession session = new LinkSession(resumeConfig.getMaxUnackedBytes());
+            session.start(ctx.channel(), resumable ? LinkSession.newToken() : null);
+            String agentId = agentId(ctx, offer);
+            List<AgentLink> bundle = new ArrayList<>();
+            link = tunnelManager.agentConnected(tunnelName, agentId, ctx.channel(), session, bundle);
+            for (String other : others) {
+                tunnelManager.agentConnected(other, agentId, ctx.channel(), session, bundle);
+            }
+        }
+        links = link.getBundle();
+        // 多个隧道共用连接时按帧所属的流计入各自隧道
+        ctx.pipeline().addBefore(ctx.name(), "linkMetrics", links.size() > 1
+                ? new LinkMetricsHandler(link.getMetrics(), link.getStreams())
+                : new LinkMetricsHandler(link.getMetrics()));
+
+        // 协商压缩算法：按Agent提议的顺序选择第一个本端也允许的
+        JsonNode offeredCompression = offer != null ? offer.get("compression") : null;
+        String compression = PayloadCompressors.negotiate(
+                offeredCompression != null ? offeredCompression.asText() : null, compressionConfig);
+        // UDP隧道双方都开启时合并报文
+        UdpConfig udp = tunnel.getConfig().getUdp();
+        boolean datagramBatch = tunnel.getConfig().getProtocolType() == ProxyProtocol.UDP && udp.isBatchEnabled()
+                && offer != null && offer.path("datagramBatch").asBoolean(false);
+        if (datagramBatch) {
+            link.setDatagramBatcher(new DatagramBatcher(ctx.channel(), udp.getMaxBatchBytes(),
+                    udp.getMaxBatchDelayMicros()));
+        }
 
         Message response = new Message(MessageType.REGISTER_SUCCESS);
         response.setTunnelName(tunnelName);
+        ObjectNode metadata = objectMapper.createObjectNode();
+        if (compression != null) {
+            metadata.put("compression", compression);
+        }
+        if (datagramBatch) {
+            metadata.put("datagramBatch", true);
+        }
+        if (links.size() > 1) {
+            ArrayNode registered = metadata.putArray("tunnels");
+            links.forEach(each -> registered.add(each.getTunnelName()));
+        }
+        if (!rejected.isEmpty()) {
+            ArrayNode rejectedNode = metadata.putArray("rejected");
+            rejected.forEach(rejectedNode::add);
+        }
+        if (link.getSession().isResumable()) {
+            metadata.put("session", link.getSession().getToken());
+            if (resumed) {
+                metadata.put("resumed", true);
+                metadata.put("received", received);
+            }
+        }
+        if (!metadata.isEmpty()) {
+            response.setMetadata(metadata.toString());
+        }
+        // 恢复时重传的帧已提交到事件循环，这里直接写出的应答排在它们前面
         ctx.writeAndFlush(response);
+        if (compression != null) {
+            ctx.pipeline().get(MessageCodec.class).enableCompression(compression, tunnel.getCompressionStats());
+        }
+        if (resumed) {
+            // 流表共用，按第一条链路通知一次即可
+            tunnelManager.agentResumed(link);
+        }
+
+        log.info("Agent registered successfully: {}, tunnels={}, resumed={}", tunnelName, links.size(), resumed);
+    }
+
+    // Agent在同一连接上一起注册的其他隧道；不存在的隧道和UDP隧道（需要单独的链路）被拒绝
+    private List<String> otherTunnels(TunnelManager.TunnelInfo first, JsonNode offer, List<String> rejected) {
+        List<String> others = new ArrayList<>();
+        if (offer == null) {
+            return others;
+        }
+        for (JsonNode node : offer.path("tunnels")) {
+            String name = node.asText();
+            TunnelManager.TunnelInfo other = tunnelManager.getTunnel(name);
+            if (other == null || first.getConfig().getProtocolType() == ProxyProtocol.UDP
+                    || other.getConfig().getProtocolType() == ProxyProtocol.UDP) {
+                log.error("Tunnel not found or cannot share a link: {}", name);
+                rejected.add(name);
+            } else if (!name.equals(tunnelName) && !others.contains(name)) {
+                others.add(name);
+            }
+        }
+        return others;
+    }
 
-        log.info("Agent registered successfully: {}", tunnelName);
+    // 按Agent带来的token恢复链路，成功时返回本端已收到的帧数，否则返回-1，由调用方建立新链路
+    private long resumeLink(ChannelHandlerContext ctx, JsonNode offer) {
+        JsonNode token = offer.get("session");
+        AgentLink previous = token != null ? tunnelManager.findSession(token.asText()) : null;
+        if (previous == null || !previous.getTunnelName().equals(tunnelName)) {
+            if (token != null) {
+                log.info("Session not found or expired, starting a new one: tunnel={}", tunnelName);
+            }
+            return -1;
+        }
+        Channel oldChannel = previous.getChannel();
+        long received = previous.getSession().resume(ctx.channel(), offer.path("received").asLong(0));
+        if (received < 0) {
+            log.warn("Session cannot be resumed, frames needed by agent were discarded: tunnel={}", tunnelName);
+            disconnected(previous.getBundle());
+            oldChannel.close();
+            return -1;
+        }
+        link = previous;
+        for (AgentLink each : previous.getBundle()) {
+            each.setChannel(ctx.channel());
+        }
+        // 服务端可能还没发现旧连接已失效，它此后读到的帧不再计数
+        if (oldChannel != ctx.channel()) {
+            oldChannel.close();
+        }
+        return received;
+    }
+
+    // 没有上报标识的旧版本Agent按来源IP区分
+    private static String agentId(ChannelHandlerContext ctx, JsonNode offer) {
+        JsonNode agentId = offer != null ? offer.get("agentId") : null;
+        if (agentId != null && !agentId.asText().isEmpty()) {
+            return agentId.asText();
+        }
+        SocketAddress remote = ctx.channel().remoteAddress();
+        if (remote instanceof InetSocketAddress && ((InetSocketAddress) remote).getAddress() != null) {
+            return ((InetSocketAddress) remote).getAddress().getHostAddress();
+        }
+        return String.valueOf(remote);
     }
 
-    private void handleHeartbeat(ChannelHandlerContext ctx) {
+    private JsonNode readRegisterMetadata(Message msg) {
+        if (msg.getMetadata() == null) {
+            return null;
+        }
+        try {
+            return objectMapper.readTree(msg.getMetadata());
+        } catch (JsonProcessingException e) {
+            log.warn("Invalid register metadata: {}", msg.getMetadata());
+            return null;
+        }
+    }
+
+    private void handleHeartbeat(ChannelHandlerContext ctx, Message msg) {
+        if (link != null && msg.getMetadata() != null) {
+            for (AgentLink each : links) {
+                each.setAgentStats(msg.getMetadata());
+            }
+            // Agent测得的往返时间，p2c策略据此选择链路
+            try {
+                long rtt = objectMapper.readTree(msg.getMetadata()).path("rttMicros").asLong(0);
+                if (rtt > 0) {
+                    for (AgentLink each : links) {
+                        each.setRttMicros(rtt);
+                    }
+                }
+            } catch (JsonProcessingException e) {
+                log.warn("Invalid agent stats: {}", msg.getMetadata());
+            }
+        }
+        if (link != null) {
+            link.getSession().flushAck();
+        }
         Message response = new Message(MessageType.HEARTBEAT_ACK);
         ctx.writeAndFlush(response);
     }
 
     private void handleConnectAck(Message msg) {
-        String channelId = msg.getChannelId();
+        int streamId = msg.getStreamId();
         boolean success = "success".equals(msg.getMetadata());
 
-        ClientProxyHandler handler = tunnelManager.getClientHandler(tunnelName, channelId);
-        if (handler != null) {
-            handler.onAgentConnected(success);
-            log.info("Agent connection ack received: channelId={}, success={}", channelId, success);
+        TunnelStream stream = link != null ? link.getStreams().get(streamId) : null;
+        if (stream != null) {
+            stream.onAgentConnected(success);
+            log.info("Agent connection ack received: streamId={}, success={}", streamId, success);
         } else {
-            log.warn("Handler not found for channelId: {}", channelId);
+            log.warn("Stream not found for streamId: {}", streamId);
         }
     }
 
     private void handleData(Message msg) {
-        String channelId = msg.getChannelId();
-        Channel clientChannel = tunnelManager.getClientChannel(tunnelName, channelId);
+        int streamId = msg.getStreamId();
+        TunnelStream stream = link != null ? link.getStreams().get(streamId) : null;
+        Channel clientChannel = stream != null ? stream.getChannel() : null;
 
         if (clientChannel != null && clientChannel.isActive()) {
-            // 写入数据并等待完成
-            clientChannel.writeAndFlush(Unpooled.wrappedBuffer(msg.getData())).addListener(future -> {
+            // 负载是入站帧的切片，retain后直接写给客户端，消息处理完后由SimpleChannelInboundHandler释放一次
+            int size = msg.dataLength();
+            AgentLink agentLink = link;
+            if (!clientChannel.eventLoop().inEventLoop() && stream.getLink() != null) {
+                stream.getLink().getMetrics().onCrossThreadWrite();
+            }
+            stream.write(msg.getData().retain()).addListener(future -> {
                 if (future.isSuccess()) {
-                    log.debug("Forward data to client: channelId={}, size={}", channelId, msg.getData().length);
+                    log.debug("Forward data to client: streamId={}, size={}", streamId, size);
+                    // 数据已交给客户端Socket，向Agent归还窗口
+                    int increment = stream.getWindow().onDelivered(size);
+                    if (increment > 0) {
+                        agentLink.write(Message.windowUpdate(streamId, increment));
+                    }
                 } else {
-                    log.error("Failed to forward data to client: channelId={}", channelId, future.cause());
-                    clientChannel.close();
-                    tunnelManager.removeClientChannel(tunnelName, channelId);
+                    log.error("Failed to forward data to client: streamId={}", streamId, future.cause());
+                    stream.close();
                 }
             });
         } else {
-            log.warn("Client channel not found or inactive: {}", channelId);
+            log.warn("Client channel not found or inactive: {}", streamId);
+        }
+    }
+
+    // 拆开合并帧逐个写给客户端，全部写完后每个Channel只flush一次，epoll下合并为sendmmsg
+    private void handleDatagramBatch(Message msg) {
+        if (link == null || msg.getData() == null) {
+            return;
+        }
+        List<Channel> touched = new ArrayList<>(1);
+        DatagramBatcher.forEach(msg.getData(), (streamId, payload) -> {
+            TunnelStream stream = link.getStreams().get(streamId);
+            if (stream == null) {
+                log.debug("UDP session not found for streamId: {}", streamId);
+                return;
+            }
+            stream.enqueue(payload.retain());
+            if (!touched.contains(stream.getChannel())) {
+                touched.add(stream.getChannel());
+            }
+        });
+        for (Channel channel : touched) {
+            channel.flush();
         }
     }
 
     private void handleDisconnect(Message msg) {
-        String channelId = msg.getChannelId();
-        Channel clientChannel = tunnelManager.getClientChannel(tunnelName, channelId);
+        int streamId = msg.getStreamId();
+        TunnelStream stream = link != null ? link.getStreams().remove(streamId) : null;
 
-        if (clientChannel != null) {
+        if (stream != null) {
+            Channel clientChannel = stream.getChannel();
             // 延迟关闭，确保所有数据都发送完成
             clientChannel.eventLoop().schedule(() -> {
-                clientChannel.close();
-                tunnelManager.removeClientChannel(tunnelName, channelId);
-                log.info("Client channel closed: {}", channelId);
+                stream.close();
+                log.info("Client channel closed: {}", streamId);
             }, 100, java.util.concurrent.TimeUnit.MILLISECONDS);
         }
     }
 
+    private void handleWindowUpdate(Message msg) {
+        TunnelStream stream = link != null ? link.getStreams().get(msg.getStreamId()) : null;
+        if (stream != null) {
+            stream.onWindowUpdate(Integer.parseInt(msg.getMetadata()));
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        // 链路出站缓冲区超过高水位时暂停所有流的读取，回落到低水位后恢复
+        if (link != null && link.getSession().getChannel() == ctx.channel()) {
+            boolean writable = ctx.channel().isWritable();
+            for (TunnelStream stream : link.getStreams().values()) {
+                stream.onLinkWritabilityChanged(writable);
+            }
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-        if (tunnelName != null) {
-            tunnelManager.agentDisconnected(tunnelName);
+        if (link != null) {
+            AgentLink current = link;
+            List<AgentLink> bundle = links;
+            if (current.getSession().isResumable() && !current.isDraining()) {
+                // 流保留到宽限期结束；已被新连接恢复的旧连接不影响链路
+                if (current.getSession().detach(ctx.channel(), TimeUnit.SECONDS.toMillis(resumeConfig.getTimeoutSeconds()),
+                        () -> disconnected(bundle))) {
+                    tunnelManager.agentSuspended(current);
+                }
+            } else {
+                disconnected(bundle);
+            }
+            if (current.getDatagramBatcher() != null) {
+                current.getDatagramBatcher().close();
+            }
         }
         super.channelInactive(ctx);
     }
 
+    private void disconnected(List<AgentLink> bundle) {
+        for (AgentLink each : bundle) {
+            tunnelManager.agentDisconnected(each);
+        }
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
-        log.error("Exception in agent handler", cause);
+        if (cause instanceof ReadTimeoutException) {
+            log.warn("Agent link heartbeat timeout: tunnel={}, remote={}", tunnelName, ctx.channel().remoteAddress());
+        } else {
+            log.error("Exception in agent handler", cause);
+        }
         ctx.close();
     }
 }
@@ -1,55 +1,89 @@
 package com.imddy.frp.server.handler;
 
 import com.imddy.frp.common.protocol.Message;
+import com.imddy.frp.common.stream.StreamWindow;
+import com.imddy.frp.server.tunnel.AgentLink;
 import com.imddy.frp.server.tunnel.TunnelManager;
+import com.imddy.frp.server.tunnel.TunnelStream;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import lombok.extern.slf4j.Slf4j;
 
-import java.util.LinkedList;
+import java.util.ArrayDeque;
 import java.util.Queue;
-import java.util.UUID;
 
 @Slf4j
-public class ClientProxyHandler extends ChannelInboundHandlerAdapter {
+public class ClientProxyHandler extends ChannelInboundHandlerAdapter implements TunnelStream {
     private final TunnelManager tunnelManager;
     private final String tunnelName;
-    private final String channelId;
+    private int streamId;
+    private AgentLink link;
     private volatile boolean agentConnected = false;
-    private final Queue<ByteBuf> pendingData = new LinkedList<>();
+    private volatile boolean linkWritable = true;
+    private final StreamWindow window = new StreamWindow();
+    private final Queue<ByteBuf> pendingData = new ArrayDeque<>();
     private ChannelHandlerContext ctx;
 
     public ClientProxyHandler(TunnelManager tunnelManager, String tunnelName) {
         this.tunnelManager = tunnelManager;
         this.tunnelName = tunnelName;
-        this.channelId = UUID.randomUUID().toString();
     }
 
-    // 添加getter方法
-    public String getChannelId() {
-        return channelId;
+    public int getStreamId() {
+        return streamId;
     }
 
     @Override
-    public void channelActive(ChannelHandlerContext ctx) throws Exception {
-        this.ctx = ctx;
+    public Channel getChannel() {
+        return ctx.channel();
+    }
 
-        // 注册到TunnelManager
-        tunnelManager.addClientChannel(tunnelName, channelId, ctx.channel());
-        tunnelManager.addClientHandler(tunnelName, channelId, this);
+    @Override
+    public AgentLink getLink() {
+        return link;
+    }
 
-        // 暂停读取，等待Agent连接确认
-        ctx.channel().config().setAutoRead(false);
+    @Override
+    public StreamWindow getWindow() {
+        return window;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
 
-        // 通知Agent有新连接
+        // 选择负载最低的Agent链路，分配流ID并通知Agent有新连接，该流的所有帧都走这条链路；
+        // 接入时已经选好链路（连接注册在它的事件循环上）且链路仍可用时沿用
         TunnelManager.TunnelInfo tunnel = tunnelManager.getTunnel(tunnelName);
-        if (tunnel != null && tunnel.getAgentChannel() != null) {
-            Message connectMsg = Message.connect(tunnelName, channelId);
-            tunnel.getAgentChannel().writeAndFlush(connectMsg);
-            log.info("New client connected, waiting for agent: channelId={}, tunnel={}", channelId, tunnelName);
+        AgentLink preselected = ctx.channel().attr(LinkAffinityAcceptor.LINK).getAndSet(null);
+        if (preselected != null && preselected.isActive() && !preselected.isDraining()) {
+            link = preselected;
         } else {
+            link = tunnel != null ? tunnel.getLinks().select(ctx.channel().remoteAddress()) : null;
+        }
+        if (link != null) {
+            link.getMetrics().onConnect();
+            boolean optimistic = tunnel.getConfig().isOptimisticConnect();
+            linkWritable = link.isWritable();
+            streamId = link.getStreams().register(this);
+            Message connectMsg = Message.connect(tunnelName, streamId, optimistic);
+            link.write(connectMsg);
+            if (optimistic) {
+                // 乐观连接：不等待确认，数据紧跟CONNECT发出，由Agent在连接目标期间缓存，受发送窗口约束
+                agentConnected = true;
+                log.info("New client connected, optimistic connect: streamId={}, tunnel={}", streamId, tunnelName);
+            } else {
+                // 暂停读取，等待Agent连接确认
+                ctx.channel().config().setAutoRead(false);
+                log.info("New client connected, waiting for agent: streamId={}, tunnel={}", streamId, tunnelName);
+            }
+        } else {
+            if (tunnel != null) {
+                tunnel.getMetrics().onConnect();
+                tunnel.getMetrics().onConnectFailure();
+            }
             log.error("Agent not connected for tunnel: {}", tunnelName);
             ctx.close();
         }
@@ -64,76 +98,104 @@ public class ClientProxyHandler extends ChannelInboundHandlerAdapter {
 
             if (!agentConnected) {
                 // Agent还未确认连接，缓存数据
-                pendingData.offer(buf.retain());
-                log.debug("Buffering data, agent not ready: channelId={}, size={}", channelId, buf.readableBytes());
-                buf.release();
+                pendingData.offer(buf);
+                link.getMetrics().addPendingBytes(buf.readableBytes());
+                log.debug("Buffering data, agent not ready: streamId={}, size={}", streamId, buf.readableBytes());
                 return;
             }
 
-            try {
-                byte[] data = new byte[buf.readableBytes()];
-                buf.readBytes(data);
-
-                // 转发数据到Agent
-                TunnelManager.TunnelInfo tunnel = tunnelManager.getTunnel(tunnelName);
-                if (tunnel != null && tunnel.getAgentChannel() != null) {
-                    Message dataMsg = Message.data(channelId, data);
-                    dataMsg.setTunnelName(tunnelName);
-                    tunnel.getAgentChannel().writeAndFlush(dataMsg);
-                    log.debug("Forward data to agent: channelId={}, size={}", channelId, data.length);
-                } else {
-                    log.error("Agent channel not available for tunnel: {}", tunnelName);
-                    ctx.close();
+            // 转发数据到Agent，ByteBuf直接作为负载，由编码器写出后释放
+            if (link != null && link.isOpen()) {
+                int size = buf.readableBytes();
+                link.write(Message.data(streamId, buf));
+                log.debug("Forward data to agent: streamId={}, size={}", streamId, size);
+                if (!window.consume(size) || !link.isWritable()) {
+                    // 发送窗口耗尽，暂停读取客户端，等待WINDOW_UPDATE；链路不可写时等待可写事件
+                    updateAutoRead();
                 }
-            } finally {
+            } else {
                 buf.release();
+                log.error("Agent channel not available for tunnel: {}", tunnelName);
+                ctx.close();
             }
         }
     }
 
-    // Agent连接确认回调
+    // Agent连接确认回调，由链路线程调用，切换到客户端Channel的线程处理
+    @Override
     public void onAgentConnected(boolean success) {
+        if (!ctx.executor().inEventLoop()) {
+            ctx.executor().execute(() -> onAgentConnected(success));
+            return;
+        }
+
         if (!success) {
-            log.error("Agent failed to connect to target: channelId={}", channelId);
+            // 乐观连接时这相当于流重置，已发出的数据由Agent丢弃
+            log.error("Agent failed to connect to target, reset stream: streamId={}", streamId);
+            link.getMetrics().onConnectFailure();
             releasePendingData();
-            if (ctx != null) {
-                ctx.close();
-            }
+            ctx.close();
             return;
         }
 
         agentConnected = true;
-        log.info("Agent connected to target, start forwarding: channelId={}", channelId);
+        log.info("Agent connected to target, start forwarding: streamId={}", streamId);
 
         // 发送缓存的数据
-        TunnelManager.TunnelInfo tunnel = tunnelManager.getTunnel(tunnelName);
-        if (tunnel != null && tunnel.getAgentChannel() != null) {
+        if (link != null && link.isOpen()) {
             while (!pendingData.isEmpty()) {
                 ByteBuf buf = pendingData.poll();
-                try {
-                    byte[] data = new byte[buf.readableBytes()];
-                    buf.readBytes(data);
-
-                    Message dataMsg = Message.data(channelId, data);
-                    dataMsg.setTunnelName(tunnelName);
-                    tunnel.getAgentChannel().writeAndFlush(dataMsg);
-                    log.debug("Forward buffered data to agent: channelId={}, size={}", channelId, data.length);
-                } finally {
-                    buf.release();
-                }
+                int size = buf.readableBytes();
+                link.getMetrics().addPendingBytes(-size);
+                link.write(Message.data(streamId, buf));
+                window.consume(size);
+                log.debug("Forward buffered data to agent: streamId={}, size={}", streamId, size);
             }
         }
 
         // 恢复读取
-        if (ctx != null && ctx.channel().isActive()) {
-            ctx.channel().config().setAutoRead(true);
-            ctx.read();
+        updateAutoRead();
+    }
+
+    @Override
+    public void onWindowUpdate(int increment) {
+        if (window.release(increment)) {
+            runInEventLoop(this::updateAutoRead);
+        }
+    }
+
+    @Override
+    public void onLinkWritabilityChanged(boolean writable) {
+        linkWritable = writable;
+        runInEventLoop(this::updateAutoRead);
+    }
+
+    // 只有Agent已连接、发送窗口有余量且Agent链路可写时才读取客户端
+    private void updateAutoRead() {
+        if (!ctx.channel().isActive()) {
+            return;
+        }
+        // 会话的重传缓冲积压时链路立即变为不可写，可写事件稍后才到，这里直接检查，避免一轮读取冲过上限
+        boolean autoRead = agentConnected && window.isOpen() && linkWritable && link.isWritable();
+        if (ctx.channel().config().isAutoRead() != autoRead) {
+            ctx.channel().config().setAutoRead(autoRead);
+            log.debug("Client read {}: streamId={}, window={}, linkWritable={}",
+                    autoRead ? "resumed" : "paused", streamId, window.getSendWindow(), linkWritable);
+        }
+    }
+
+    private void runInEventLoop(Runnable task) {
+        if (ctx.executor().inEventLoop()) {
+            task.run();
+        } else {
+            ctx.executor().execute(task);
         }
     }
 
     private void releasePendingData() {
         while (!pendingData.isEmpty()) {
             ByteBuf buf = pendingData.poll();
+            link.getMetrics().addPendingBytes(-buf.readableBytes());
             buf.release();
         }
     }
@@ -141,23 +203,19 @@ public class ClientProxyHandler extends ChannelInboundHandlerAdapter {
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         releasePendingData();
-        tunnelManager.removeClientChannel(tunnelName, channelId);
 
         // 通知Agent连接断开
-        TunnelManager.TunnelInfo tunnel = tunnelManager.getTunnel(tunnelName);
-        if (tunnel != null && tunnel.getAgentChannel() != null) {
-            Message disconnectMsg = Message.disconnect(channelId);
-            disconnectMsg.setTunnelName(tunnelName);
-            tunnel.getAgentChannel().writeAndFlush(disconnectMsg);
+        if (link != null && link.getStreams().remove(streamId, this) && link.isOpen()) {
+            link.write(Message.disconnect(streamId));
         }
 
-        log.info("Client disconnected: channelId={}, tunnel={}", channelId, tunnelName);
+        log.info("Client disconnected: streamId={}, tunnel={}", streamId, tunnelName);
         super.channelInactive(ctx);
     }
 
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
-        log.error("Exception in client proxy handler: channelId={}", channelId, cause);
+        log.error("Exception in client proxy handler: streamId={}", streamId, cause);
         releasePendingData();
         ctx.close();
     }
@@ -1,134 +1,569 @@
 package com.imddy.frp.server.handler;
 
 import com.imddy.frp.common.protocol.Message;
+import com.imddy.frp.common.stream.StreamWindow;
+import com.imddy.frp.server.cache.CachedResponse;
+import com.imddy.frp.server.cache.ResponseCache;
+import com.imddy.frp.server.tunnel.AgentLink;
 import com.imddy.frp.server.tunnel.TunnelManager;
+import com.imddy.frp.server.tunnel.TunnelStream;
+import com.imddy.frp.server.tunnel.VhostRouter;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
 import io.netty.handler.codec.http.*;
+import io.netty.util.ReferenceCountUtil;
 import lombok.extern.slf4j.Slf4j;
 
 import java.nio.charset.StandardCharsets;
-import java.util.UUID;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
 
+/**
+ * 共享HTTP端口（vhost）上的一条客户端连接。每个请求按Host和路径在路由表中找到隧道，
+ * 请求经上游流发给该隧道的Agent，响应字节原样写回客户端。
+ * 同一连接上连续的请求路由到同一隧道时复用上游流；路由到其他隧道时先暂停读取，
+ * 等当前上游的响应全部返回后再切换，保证keep-alive和管线化请求的响应顺序。
+ * 上游响应用HttpClientCodec解析，只用来判断响应边界（包括HEAD、1xx、101升级）。
+ * 隧道启用响应缓存时，没有排队响应的GET请求先查缓存，命中直接应答；未命中的请求在响应解析时顺便收集可缓存的响应。
+ */
 @Slf4j
-public class HttpProxyHandler extends SimpleChannelInboundHandler<Object> {
+public class HttpProxyHandler extends ChannelInboundHandlerAdapter {
     private final TunnelManager tunnelManager;
-    private final String tunnelName;
-    private final String channelId;
-    private boolean requestSent = false;
+    private final VhostRouter router;
+    private ChannelHandlerContext ctx;
+    private Upstream upstream;
+    // 路由到其他隧道的请求及其后的所有消息，等当前上游空闲后按顺序重新处理
+    private final Queue<Object> parked = new ArrayDeque<>();
+    private boolean parking;
+    // 当前请求无法路由，丢弃其消息体
+    private boolean discarding;
+    // 101升级后连接变成透明转发
+    private boolean upgraded;
 
-    public HttpProxyHandler(TunnelManager tunnelManager, String tunnelName) {
+    public HttpProxyHandler(TunnelManager tunnelManager, VhostRouter router) {
         this.tunnelManager = tunnelManager;
-        this.tunnelName = tunnelName;
-        this.channelId = UUID.randomUUID().toString();
+        this.router = router;
     }
 
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
-        tunnelManager.addClientChannel(tunnelName, channelId, ctx.channel());
+        this.ctx = ctx;
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        handle(msg);
+    }
 
+    private void handle(Object msg) {
+        if (parking) {
+            parked.offer(msg);
+            return;
+        }
+        if (upgraded || msg instanceof ByteBuf) {
+            // 升级后请求解码器已移除，之后都是原始字节
+            if (upstream != null && msg instanceof ByteBuf) {
+                upstream.forward((ByteBuf) msg);
+            } else {
+                ReferenceCountUtil.release(msg);
+            }
+            return;
+        }
+        if (msg instanceof HttpRequest) {
+            handleRequest((HttpRequest) msg);
+            return;
+        }
+        if (msg instanceof HttpContent) {
+            if (discarding || upstream == null) {
+                if (msg instanceof LastHttpContent) {
+                    discarding = false;
+                }
+                ReferenceCountUtil.release(msg);
+                return;
+            }
+            upstream.send((HttpContent) msg);
+            return;
+        }
+        ReferenceCountUtil.release(msg);
+    }
+
+    private void handleRequest(HttpRequest request) {
+        if (request.decoderResult().isFailure()) {
+            ReferenceCountUtil.release(request);
+            respondAndClose(HttpResponseStatus.BAD_REQUEST);
+            return;
+        }
+        String host = request.headers().get(HttpHeaderNames.HOST);
+        String tunnelName = router.route(host, request.uri());
+        if (tunnelName == null) {
+            log.warn("No vhost route: host={}, uri={}", host, request.uri());
+            ReferenceCountUtil.release(request);
+            discarding = !(request instanceof LastHttpContent);
+            respondAndClose(HttpResponseStatus.NOT_FOUND);
+            return;
+        }
+
+        if (upstream != null && !upstream.tunnelName.equals(tunnelName)) {
+            if (upstream.outstanding > 0) {
+                // 前面的请求还没收到完整响应，暂停读取，等上游空闲后再切换隧道
+                parking = true;
+                parked.offer(request);
+                updateAutoRead();
+                log.debug("Vhost route changed, waiting for {} response(s): {} -> {}",
+                        upstream.outstanding, upstream.tunnelName, tunnelName);
+                return;
+            }
+            upstream.release();
+            upstream = null;
+        }
+
+        ResponseCache.Capture capture = null;
         TunnelManager.TunnelInfo tunnel = tunnelManager.getTunnel(tunnelName);
-        if (tunnel != null && tunnel.getAgentChannel() != null) {
-            Message connectMsg = Message.connect(tunnelName, channelId);
-            tunnel.getAgentChannel().writeAndFlush(connectMsg);
-            log.info("New HTTP client connected: channelId={}, tunnel={}", channelId, tunnelName);
+        ResponseCache cache = tunnel != null ? tunnel.getResponseCache() : null;
+        if (cache != null && ResponseCache.isCacheable(request)) {
+            String key = ResponseCache.key(host, request.uri());
+            // 前面还有未完成的响应时不能抢先应答，直接转发
+            if (upstream == null || upstream.outstanding == 0) {
+                CachedResponse cached = cache.get(key, request.headers());
+                if (cached != null) {
+                    serveFromCache(request, cached, cache);
+                    return;
+                }
+            }
+            // 未命中时条件请求原样转发，目标可以直接回304；304不会被缓存，下一次完整的200响应才存入
+            capture = cache.capture(key, request);
+        }
+        if (upstream == null) {
+            upstream = openUpstream(tunnelName);
+            if (upstream == null) {
+                ReferenceCountUtil.release(request);
+                discarding = !(request instanceof LastHttpContent);
+                respondAndClose(HttpResponseStatus.BAD_GATEWAY);
+                return;
+            }
+        }
+        log.debug("Vhost request: {} {} {} -> {}", request.method(), host, request.uri(), tunnelName);
+        upstream.send(request, capture);
+    }
+
+    // 用缓存的响应应答，If-None-Match匹配时返回304
+    private void serveFromCache(HttpRequest request, CachedResponse cached, ResponseCache cache) {
+        boolean keepAlive = HttpUtil.isKeepAlive(request);
+        boolean notModified = cached.matches(request.headers().get(HttpHeaderNames.IF_NONE_MATCH));
+        discarding = !(request instanceof LastHttpContent);
+        ReferenceCountUtil.release(request);
+        ctx.write(cached.encodeHead(notModified, keepAlive));
+        ChannelFuture future;
+        if (notModified) {
+            cache.onNotModified();
+            cached.body().release();
+            future = ctx.writeAndFlush(Unpooled.EMPTY_BUFFER);
         } else {
+            // 写出共享同一块堆外内存的视图，写完释放get()时的那次retain
+            future = ctx.writeAndFlush(cached.body().duplicate());
+        }
+        if (!keepAlive) {
+            future.addListener(ChannelFutureListener.CLOSE);
+        }
+        log.debug("Vhost cache hit: {} {}, notModified={}", request.headers().get(HttpHeaderNames.HOST),
+                request.uri(), notModified);
+    }
+
+    private Upstream openUpstream(String tunnelName) {
+        TunnelManager.TunnelInfo tunnel = tunnelManager.getTunnel(tunnelName);
+        AgentLink link = tunnel != null ? tunnel.getLinks().select(ctx.channel().remoteAddress()) : null;
+        if (link == null) {
+            if (tunnel != null) {
+                tunnel.getMetrics().onConnect();
+                tunnel.getMetrics().onConnectFailure();
+            }
             log.error("Agent not connected for tunnel: {}", tunnelName);
+            return null;
+        }
+        link.getMetrics().onConnect();
+        boolean optimistic = tunnel.getConfig().isOptimisticConnect();
+        Upstream up = new Upstream(tunnelName, link, optimistic);
+        up.streamId = link.getStreams().register(up);
+        link.write(Message.connect(tunnelName, up.streamId, optimistic));
+        updateAutoRead();
+        log.info("Vhost upstream opened: streamId={}, tunnel={}", up.streamId, tunnelName);
+        return up;
+    }
+
+    // 当前上游的响应全部返回，重新处理暂存的消息
+    private void onUpstreamIdle() {
+        if (!parking) {
+            return;
+        }
+        List<Object> queued = new ArrayList<>(parked);
+        parked.clear();
+        parking = false;
+        for (Object msg : queued) {
+            handle(msg);
+        }
+        updateAutoRead();
+    }
+
+    // 上游流被Agent或链路关闭
+    private void onUpstreamClosed(Upstream up) {
+        if (up != upstream) {
+            return;
+        }
+        upstream = null;
+        if (up.outstanding > 0 || upgraded) {
+            // 响应可能以关闭连接结束，客户端也必须看到连接关闭
             ctx.close();
+            return;
         }
+        onUpstreamIdle();
+        updateAutoRead();
+    }
 
-        super.channelActive(ctx);
+    private void onUpgraded() {
+        upgraded = true;
+        // 升级成功后客户端发来的是其他协议，移除请求解码器，它缓存的字节会作为ByteBuf继续传下来
+        if (ctx.pipeline().get(HttpRequestDecoder.class) != null) {
+            ctx.pipeline().remove(HttpRequestDecoder.class);
+        }
+        log.debug("Vhost connection upgraded: tunnel={}", upstream != null ? upstream.tunnelName : null);
+    }
+
+    private void respondAndClose(HttpResponseStatus status) {
+        byte[] body = (status.code() + " " + status.reasonPhrase() + "\n").getBytes(StandardCharsets.UTF_8);
+        String head = "HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "Connection: close\r\n\r\n";
+        ByteBuf response = Unpooled.wrappedBuffer(head.getBytes(StandardCharsets.US_ASCII), body);
+        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    // 暂存请求期间、上游未确认、发送窗口耗尽或链路不可写时暂停读取客户端
+    private void updateAutoRead() {
+        if (!ctx.channel().isActive()) {
+            return;
+        }
+        boolean autoRead = !parking && (upstream == null || upstream.isReadable());
+        if (ctx.channel().config().isAutoRead() != autoRead) {
+            ctx.channel().config().setAutoRead(autoRead);
+        }
+    }
+
+    private void runInEventLoop(Runnable task) {
+        if (ctx.executor().inEventLoop()) {
+            task.run();
+        } else {
+            ctx.executor().execute(task);
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        Object msg;
+        while ((msg = parked.poll()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
+        if (upstream != null) {
+            upstream.release();
+            upstream = null;
+        }
+        super.channelInactive(ctx);
     }
 
     @Override
-    protected void channelRead0(ChannelHandlerContext ctx, Object msg) throws Exception {
-        ByteBuf buf = ctx.alloc().buffer();
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        log.error("Exception in vhost HTTP handler", cause);
+        ctx.close();
+    }
 
-        try {
+    /**
+     * 到某个隧道的上游流。除getWindow等接口方法外只在客户端连接的事件循环中访问
+     */
+    private final class Upstream implements TunnelStream {
+        private final String tunnelName;
+        private final AgentLink link;
+        private final StreamWindow window = new StreamWindow();
+        // 请求编码和响应边界解析
+        private final EmbeddedChannel codec = new EmbeddedChannel(new HttpClientCodec());
+        private final Queue<ByteBuf> pendingData = new ArrayDeque<>();
+        // 已发出请求的响应收集器，与请求一一对应，不缓存的请求对应null（LinkedList允许null）
+        private final Queue<ResponseCache.Capture> captures = new LinkedList<>();
+        // 正在收集的响应
+        private ResponseCache.Capture capturing;
+        private int streamId;
+        private boolean agentConnected;
+        private volatile boolean linkWritable;
+        private boolean responseStarted;
+        private boolean informational;
+        // 当前响应要求关闭连接（Connection: close或HTTP/1.0）
+        private boolean closeAfterResponse;
+        // 客户端的请求要求关闭连接，它之后不会再有请求
+        private boolean clientClose;
+        // 要求关闭连接的响应已经完整，写完后关闭客户端连接
+        private boolean closing;
+        private boolean closed;
+        // 已发出但响应未完成的请求数
+        private int outstanding;
+
+        Upstream(String tunnelName, AgentLink link, boolean optimistic) {
+            this.tunnelName = tunnelName;
+            this.link = link;
+            this.agentConnected = optimistic;
+            this.linkWritable = link.isWritable();
+        }
+
+        boolean isReadable() {
+            // 会话的重传缓冲积压时链路立即变为不可写，可写事件稍后才到，这里直接检查，避免一轮读取冲过上限
+            return agentConnected && window.isOpen() && linkWritable && link.isWritable();
+        }
+
+        void send(HttpObject msg) {
+            send(msg, null);
+        }
+
+        void send(HttpObject msg, ResponseCache.Capture capture) {
             if (msg instanceof HttpRequest) {
-                HttpRequest request = (HttpRequest) msg;
-                requestSent = true;
-
-                // 编码HTTP请求行
-                String requestLine = request.method().name() + " " + request.uri() + " " + request.protocolVersion() + "\r\n";
-                buf.writeBytes(requestLine.getBytes(StandardCharsets.UTF_8));
-
-                // 写入headers
-                for (String name : request.headers().names()) {
-                    for (String value : request.headers().getAll(name)) {
-                        String header = name + ": " + value + "\r\n";
-                        buf.writeBytes(header.getBytes(StandardCharsets.UTF_8));
-                    }
-                }
-                buf.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
+                outstanding++;
+                captures.offer(capture);
+                clientClose |= !HttpUtil.isKeepAlive((HttpRequest) msg);
+            }
+            codec.writeOutbound(msg);
+            ByteBuf encoded = drainOutbound();
+            if (encoded == null) {
+                return;
+            }
+            if (encoded.isReadable()) {
+                forward(encoded);
+            } else {
+                encoded.release();
+            }
+        }
 
-                log.info("HTTP Request: {} {} from channelId={}", request.method(), request.uri(), channelId);
+        // 编码器可能输出多段（头部、内容切片、chunk结尾），合并成一个DATA帧
+        private ByteBuf drainOutbound() {
+            ByteBuf first = codec.readOutbound();
+            if (first == null) {
+                return null;
             }
+            ByteBuf next = codec.readOutbound();
+            if (next == null) {
+                return first;
+            }
+            CompositeByteBuf composite = ctx.alloc().compositeBuffer();
+            composite.addComponent(true, first);
+            do {
+                composite.addComponent(true, next);
+            } while ((next = codec.readOutbound()) != null);
+            return composite;
+        }
 
-            if (msg instanceof HttpContent) {
-                HttpContent content = (HttpContent) msg;
-                ByteBuf contentBuf = content.content();
-                if (contentBuf.readableBytes() > 0) {
-                    buf.writeBytes(contentBuf);
+        void forward(ByteBuf buf) {
+            if (closed || !link.isOpen()) {
+                buf.release();
+                return;
+            }
+            if (!agentConnected) {
+                pendingData.offer(buf);
+                link.getMetrics().addPendingBytes(buf.readableBytes());
+                return;
+            }
+            int size = buf.readableBytes();
+            link.write(Message.data(streamId, buf));
+            if (!window.consume(size) || !link.isWritable()) {
+                updateAutoRead();
+            }
+        }
+
+        // Agent的响应数据：先解析响应边界，再原样写给客户端
+        @Override
+        public ChannelFuture write(ByteBuf data) {
+            Channel channel = ctx.channel();
+            ChannelPromise promise = channel.newPromise();
+            runInEventLoop(() -> {
+                if (!upgraded) {
+                    track(data);
+                }
+                channel.writeAndFlush(data, promise);
+                if (closing) {
+                    promise.addListener(ChannelFutureListener.CLOSE);
+                    return;
                 }
+                if (!upgraded && outstanding == 0 && upstream == this) {
+                    onUpstreamIdle();
+                }
+            });
+            return promise;
+        }
 
-                // 检查是否是最后一个chunk
-                if (msg instanceof LastHttpContent) {
-                    log.debug("HTTP request complete for channelId={}", channelId);
+        private void track(ByteBuf data) {
+            responseStarted = true;
+            codec.writeInbound(data.retainedDuplicate());
+            Object msg;
+            while ((msg = codec.readInbound()) != null) {
+                try {
+                    if (msg instanceof HttpResponse) {
+                        int code = ((HttpResponse) msg).status().code();
+                        if (code == HttpResponseStatus.SWITCHING_PROTOCOLS.code()) {
+                            onUpgraded();
+                        }
+                        informational = code >= 100 && code < 200;
+                        if (!informational) {
+                            closeAfterResponse = !HttpUtil.isKeepAlive((HttpResponse) msg);
+                            capturing = captures.poll();
+                            if (capturing != null) {
+                                capturing.onResponse((HttpResponse) msg);
+                            }
+                        }
+                    }
+                    if (msg instanceof HttpContent && capturing != null) {
+                        capturing.onContent(((HttpContent) msg).content());
+                    }
+                    if (msg instanceof LastHttpContent && !informational && outstanding > 0) {
+                        outstanding--;
+                        closing |= closeAfterResponse || (clientClose && outstanding == 0);
+                        if (capturing != null) {
+                            if (((LastHttpContent) msg).decoderResult().isSuccess()) {
+                                capturing.finish();
+                            } else {
+                                capturing.abort();
+                            }
+                            capturing = null;
+                        }
+                    }
+                } finally {
+                    ReferenceCountUtil.release(msg);
+                }
+                if (upgraded) {
+                    break;
                 }
             }
+        }
 
-            if (buf.readableBytes() > 0) {
-                byte[] data = new byte[buf.readableBytes()];
-                buf.readBytes(data);
+        @Override
+        public Channel getChannel() {
+            return ctx.channel();
+        }
 
-                TunnelManager.TunnelInfo tunnel = tunnelManager.getTunnel(tunnelName);
-                if (tunnel != null && tunnel.getAgentChannel() != null) {
-                    Message dataMsg = Message.data(channelId, data);
-                    dataMsg.setTunnelName(tunnelName);
-                    tunnel.getAgentChannel().writeAndFlush(dataMsg).addListener(future -> {
-                        if (future.isSuccess()) {
-                            log.debug("HTTP data forwarded to agent: channelId={}, size={}", channelId, data.length);
-                        } else {
-                            log.error("Failed to forward HTTP data: channelId={}", channelId, future.cause());
+        @Override
+        public AgentLink getLink() {
+            return link;
+        }
+
+        @Override
+        public StreamWindow getWindow() {
+            return window;
+        }
+
+        @Override
+        public void onAgentConnected(boolean success) {
+            runInEventLoop(() -> {
+                if (closed) {
+                    return;
+                }
+                if (!success) {
+                    log.error("Agent failed to connect to target: streamId={}, tunnel={}", streamId, tunnelName);
+                    link.getMetrics().onConnectFailure();
+                    releasePendingData();
+                    link.getStreams().remove(streamId, this);
+                    closed = true;
+                    codec.finishAndReleaseAll();
+                    abortCaptures();
+                    if (upstream == this) {
+                        upstream = null;
+                        if (responseStarted) {
                             ctx.close();
+                        } else {
+                            respondAndClose(HttpResponseStatus.BAD_GATEWAY);
                         }
-                    });
-                } else {
-                    log.error("Agent channel not available");
-                    ctx.close();
+                    }
+                    return;
                 }
+                agentConnected = true;
+                ByteBuf buf;
+                while ((buf = pendingData.poll()) != null) {
+                    int size = buf.readableBytes();
+                    link.getMetrics().addPendingBytes(-size);
+                    link.write(Message.data(streamId, buf));
+                    window.consume(size);
+                }
+                updateAutoRead();
+            });
+        }
+
+        @Override
+        public void onWindowUpdate(int increment) {
+            if (window.release(increment)) {
+                runInEventLoop(HttpProxyHandler.this::updateAutoRead);
             }
-        } finally {
-            buf.release();
         }
-    }
 
-    @Override
-    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-        // 延迟移除，确保响应数据完全发送
-        ctx.executor().schedule(() -> {
-            tunnelManager.removeClientChannel(tunnelName, channelId);
+        @Override
+        public void onLinkWritabilityChanged(boolean writable) {
+            linkWritable = writable;
+            runInEventLoop(HttpProxyHandler.this::updateAutoRead);
+        }
+
+        // Agent断开或链路关闭时调用，只结束这条上游，客户端连接是否关闭取决于响应是否完整
+        @Override
+        public void close() {
+            runInEventLoop(() -> {
+                if (closed) {
+                    return;
+                }
+                shutdown(false);
+                onUpstreamClosed(this);
+            });
+        }
 
-            TunnelManager.TunnelInfo tunnel = tunnelManager.getTunnel(tunnelName);
-            if (tunnel != null && tunnel.getAgentChannel() != null) {
-                Message disconnectMsg = Message.disconnect(channelId);
-                disconnectMsg.setTunnelName(tunnelName);
-                tunnel.getAgentChannel().writeAndFlush(disconnectMsg);
+        // 客户端断开或切换隧道，通知Agent关闭目标连接
+        void release() {
+            if (!closed) {
+                shutdown(true);
             }
+        }
 
-            log.info("HTTP client disconnected: channelId={}, tunnel={}", channelId, tunnelName);
-        }, 200, java.util.concurrent.TimeUnit.MILLISECONDS);
+        private void shutdown(boolean notifyAgent) {
+            closed = true;
+            releasePendingData();
+            codec.finishAndReleaseAll();
+            abortCaptures();
+            if (link.getStreams().remove(streamId, this) && notifyAgent && link.isOpen()) {
+                link.write(Message.disconnect(streamId));
+            }
+        }
 
-        super.channelInactive(ctx);
-    }
+        private void abortCaptures() {
+            if (capturing != null) {
+                capturing.abort();
+                capturing = null;
+            }
+            ResponseCache.Capture capture;
+            while (!captures.isEmpty()) {
+                capture = captures.poll();
+                if (capture != null) {
+                    capture.abort();
+                }
+            }
+        }
 
-    @Override
-    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
-        log.error("Exception in HTTP proxy handler: channelId={}", channelId, cause);
-        ctx.close();
+        private void releasePendingData() {
+            ByteBuf buf;
+            while ((buf = pendingData.poll()) != null) {
+                link.getMetrics().addPendingBytes(-buf.readableBytes());
+                buf.release();
+            }
+        }
     }
 }
@@ -0,0 +1,90 @@
+package com.imddy.frp.server.handler;
+
+import com.imddy.frp.server.tunnel.AgentLink;
+import com.imddy.frp.server.tunnel.TunnelManager;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.bootstrap.ServerBootstrapConfig;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.util.AttributeKey;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Map;
+
+/**
+ * 装在隧道的监听Channel上，排在ServerBootstrap的acceptor之前：连接接入时就为它选好Agent链路，
+ * 并把连接注册到该链路所在的事件循环，客户端连接和链路之间的转发不再跨线程提交任务、唤醒对方。
+ * 没有可用链路时交给acceptor按常规分配，由ClientProxyHandler关闭连接。
+ * 初始化连接的步骤与ServerBootstrap的acceptor相同：childHandler、childOption、childAttr，注册失败时强制关闭
+ */
+@Slf4j
+public class LinkAffinityAcceptor extends ChannelInboundHandlerAdapter {
+    // 接入时选定的链路，ClientProxyHandler在channelActive中取出
+    public static final AttributeKey<AgentLink> LINK = AttributeKey.valueOf("frp.affinity.link");
+
+    private final TunnelManager tunnelManager;
+    private final String tunnelName;
+    // 取childHandler、childOption和childAttr，与acceptor注册的连接保持一致
+    private final ServerBootstrap bootstrap;
+
+    public LinkAffinityAcceptor(TunnelManager tunnelManager, String tunnelName, ServerBootstrap bootstrap) {
+        this.tunnelManager = tunnelManager;
+        this.tunnelName = tunnelName;
+        this.bootstrap = bootstrap;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        Channel child = (Channel) msg;
+        TunnelManager.TunnelInfo tunnel = tunnelManager.getTunnel(tunnelName);
+        AgentLink link = tunnel != null ? tunnel.getLinks().select(child.remoteAddress()) : null;
+        Channel linkChannel = link != null ? link.getChannel() : null;
+        if (linkChannel == null) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        ServerBootstrapConfig config = bootstrap.config();
+        child.pipeline().addLast(config.childHandler());
+        setOptions(child, config.childOptions());
+        setAttributes(child, config.childAttrs());
+        child.attr(LINK).set(link);
+        try {
+            linkChannel.eventLoop().register(child).addListener((ChannelFutureListener) future -> {
+                if (!future.isSuccess()) {
+                    forceClose(child, future.cause());
+                }
+            });
+        } catch (Throwable t) {
+            forceClose(child, t);
+        }
+    }
+
+    private void forceClose(Channel child, Throwable cause) {
+        child.unsafe().closeForcibly();
+        log.warn("Failed to register client connection: tunnel={}, channel={}", tunnelName, child, cause);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void setOptions(Channel child, Map<ChannelOption<?>, Object> options) {
+        for (Map.Entry<ChannelOption<?>, Object> e : options.entrySet()) {
+            try {
+                if (!child.config().setOption((ChannelOption<Object>) e.getKey(), e.getValue())) {
+                    log.warn("Unknown channel option '{}' for channel '{}'", e.getKey(), child);
+                }
+            } catch (Throwable t) {
+                log.warn("Failed to set channel option '{}' with value '{}' for channel '{}'",
+                        e.getKey(), e.getValue(), child, t);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void setAttributes(Channel child, Map<AttributeKey<?>, Object> attrs) {
+        for (Map.Entry<AttributeKey<?>, Object> e : attrs.entrySet()) {
+            child.attr((AttributeKey<Object>) e.getKey()).set(e.getValue());
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.imddy.frp.server.handler;
+
+import com.imddy.frp.common.protocol.Message;
+import com.imddy.frp.common.stream.StreamTable;
+import com.imddy.frp.server.metrics.TrafficMetrics;
+import com.imddy.frp.server.tunnel.AgentLink;
+import com.imddy.frp.server.tunnel.TunnelStream;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+
+/**
+ * 统计Agent链路上的帧数和DATA字节数，注册成功后插入到编解码器和AgentServerHandler之间。
+ * 多个隧道共用连接时按帧的流ID找到所属链路，不属于任何流的帧计入第一条链路
+ */
+public class LinkMetricsHandler extends ChannelDuplexHandler {
+    private final TrafficMetrics metrics;
+    private final StreamTable<TunnelStream> streams;
+
+    public LinkMetricsHandler(TrafficMetrics metrics) {
+        this(metrics, null);
+    }
+
+    public LinkMetricsHandler(TrafficMetrics metrics, StreamTable<TunnelStream> streams) {
+        this.metrics = metrics;
+        this.streams = streams;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof Message) {
+            metricsFor((Message) msg).onFrameIn(((Message) msg).dataLength());
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof Message) {
+            metricsFor((Message) msg).onFrameOut(((Message) msg).dataLength());
+        }
+        ctx.write(msg, promise);
+    }
+
+    private TrafficMetrics metricsFor(Message msg) {
+        if (streams == null || msg.getStreamId() == 0) {
+            return metrics;
+        }
+        TunnelStream stream = streams.get(msg.getStreamId());
+        AgentLink link = stream != null ? stream.getLink() : null;
+        return link != null ? link.getMetrics() : metrics;
+    }
+}
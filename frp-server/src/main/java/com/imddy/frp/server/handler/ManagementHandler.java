@@ -1,6 +1,12 @@
 package com.imddy.frp.server.handler;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.imddy.frp.common.codec.DatagramBatcher;
+import com.imddy.frp.common.codec.MessageCodec;
+import com.imddy.frp.common.codec.WriteBatchHandler;
+import com.imddy.frp.common.protocol.ProxyProtocol;
+import com.imddy.frp.server.metrics.PrometheusExporter;
+import com.imddy.frp.server.tunnel.AgentLink;
 import com.imddy.frp.server.tunnel.TunnelManager;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFutureListener;
@@ -10,16 +16,20 @@ import io.netty.handler.codec.http.*;
 import lombok.extern.slf4j.Slf4j;
 
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 @Slf4j
 public class ManagementHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
     private final TunnelManager tunnelManager;
     private final ObjectMapper objectMapper = new ObjectMapper();
+    private final PrometheusExporter prometheusExporter;
 
     public ManagementHandler(TunnelManager tunnelManager) {
         this.tunnelManager = tunnelManager;
+        this.prometheusExporter = new PrometheusExporter(tunnelManager);
     }
 
     @Override
@@ -28,6 +38,8 @@ public class ManagementHandler extends SimpleChannelInboundHandler<FullHttpReque
 
         if ("/api/tunnels".equals(uri)) {
             handleGetTunnels(ctx);
+        } else if ("/api/metrics".equals(uri)) {
+            handleGetMetrics(ctx);
         } else if ("/api/status".equals(uri)) {
             handleGetStatus(ctx);
         } else {
@@ -47,7 +59,57 @@ public class ManagementHandler extends SimpleChannelInboundHandler<FullHttpReque
             info.put("openPort", tunnel.getConfig().getOpenPort());
             info.put("agentPort", tunnel.getConfig().getAgentPort());
             info.put("status", tunnel.getStatus().name());
-            info.put("connected", tunnel.getAgentChannel() != null && tunnel.getAgentChannel().isActive());
+            info.put("connected", tunnel.getLinks().isAvailable());
+            info.put("activeStreams", tunnel.getLinks().getActiveStreams());
+            info.put("connectedTime", tunnel.getConnectedTime());
+            info.put("totalConnections", tunnel.getTotalConnections());
+            List<Map<String, Object>> links = new ArrayList<>();
+            for (AgentLink link : tunnel.getLinks().getLinks()) {
+                Map<String, Object> linkInfo = new HashMap<>();
+                linkInfo.put("agentId", link.getAgentId());
+                linkInfo.put("remoteAddress", String.valueOf(link.getChannel().remoteAddress()));
+                linkInfo.put("activeStreams", link.getStreams().size());
+                linkInfo.put("rttMicros", link.getRttMicros());
+                linkInfo.put("draining", link.isDraining());
+                WriteBatchHandler batch = link.getChannel().pipeline().get(WriteBatchHandler.class);
+                if (batch != null) {
+                    Map<String, Object> batchInfo = new HashMap<>();
+                    batchInfo.put("frames", batch.getFrames());
+                    batchInfo.put("flushes", batch.getFlushes());
+                    batchInfo.put("framesPerFlush", batch.getFramesPerFlush());
+                    linkInfo.put("writeBatch", batchInfo);
+                }
+                DatagramBatcher datagramBatcher = link.getDatagramBatcher();
+                if (datagramBatcher != null) {
+                    Map<String, Object> datagramInfo = new HashMap<>();
+                    datagramInfo.put("datagrams", datagramBatcher.getDatagrams());
+                    datagramInfo.put("batches", datagramBatcher.getBatches());
+                    datagramInfo.put("datagramsPerBatch", datagramBatcher.getDatagramsPerBatch());
+                    linkInfo.put("datagramBatch", datagramInfo);
+                }
+                MessageCodec codec = link.getChannel().pipeline().get(MessageCodec.class);
+                if (codec != null && codec.getCompression() != null) {
+                    linkInfo.put("compression", codec.getCompression());
+                }
+                if (link.getSession().isResumable()) {
+                    linkInfo.put("session", link.getSession().getStats());
+                }
+                if (link.getAgentStats() != null) {
+                    linkInfo.put("agentStats", objectMapper.readTree(link.getAgentStats()));
+                }
+                links.add(linkInfo);
+            }
+            info.put("links", links);
+            info.put("loadBalance", tunnel.getConfig().getLoadBalance());
+            info.put("agents", agentLoads(tunnel));
+            info.put("crossThreadWrites", tunnel.getMetrics().getCrossThreadWrites());
+            info.put("compression", tunnel.getCompressionStats().toMap());
+            if (tunnel.getConfig().getProtocolType() == ProxyProtocol.HTTPS) {
+                info.put("tls", tunnel.getTlsStats().toMap());
+            }
+            if (tunnel.getResponseCache() != null) {
+                info.put("cache", tunnel.getResponseCache().toMap());
+            }
             result.put(entry.getKey(), info);
         }
 
@@ -55,6 +117,51 @@ public class ManagementHandler extends SimpleChannelInboundHandler<FullHttpReque
         sendJsonResponse(ctx, json);
     }
 
+    // 按Agent汇总的负载
+    private List<Map<String, Object>> agentLoads(TunnelManager.TunnelInfo tunnel) {
+        List<Map<String, Object>> agents = new ArrayList<>();
+        for (Map.Entry<String, List<AgentLink>> entry : tunnel.getLinks().getAgents().entrySet()) {
+            int streams = 0;
+            long bytesIn = 0;
+            long bytesOut = 0;
+            long connects = 0;
+            long rtt = 0;
+            boolean draining = true;
+            for (AgentLink link : entry.getValue()) {
+                streams += link.getStreams().size();
+                bytesIn += link.getMetrics().getBytesIn();
+                bytesOut += link.getMetrics().getBytesOut();
+                connects += link.getMetrics().getConnects();
+                if (link.getRttMicros() > 0 && (rtt == 0 || link.getRttMicros() < rtt)) {
+                    rtt = link.getRttMicros();
+                }
+                draining &= link.isDraining();
+            }
+            Map<String, Object> agent = new HashMap<>();
+            agent.put("agentId", entry.getKey());
+            agent.put("links", entry.getValue().size());
+            agent.put("activeStreams", streams);
+            agent.put("totalConnections", connects);
+            agent.put("bytesIn", bytesIn);
+            agent.put("bytesOut", bytesOut);
+            agent.put("rttMicros", rtt);
+            agent.put("draining", draining);
+            agents.add(agent);
+        }
+        return agents;
+    }
+
+    private void handleGetMetrics(ChannelHandlerContext ctx) {
+        FullHttpResponse response = new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1,
+                HttpResponseStatus.OK,
+                Unpooled.copiedBuffer(prometheusExporter.export(), StandardCharsets.UTF_8)
+        );
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; version=0.0.4; charset=UTF-8");
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+    }
+
     private void handleGetStatus(ChannelHandlerContext ctx) throws Exception {
         Map<String, Object> status = new HashMap<>();
         status.put("running", true);
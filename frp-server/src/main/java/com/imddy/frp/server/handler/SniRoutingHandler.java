@@ -0,0 +1,49 @@
+package com.imddy.frp.server.handler;
+
+import com.imddy.frp.server.tunnel.TunnelManager;
+import com.imddy.frp.server.tunnel.VhostRouter;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.ssl.AbstractSniHandler;
+import io.netty.util.concurrent.Future;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 共享HTTPS端口的TLS透传：只窥探ClientHello中的SNI，不终止TLS。
+ * 按SNI在路由表中找到隧道后换上普通的ClientProxyHandler，窥探期间缓存的字节原样转发给Agent，
+ * TLS在客户端和目标服务之间端到端保持，服务端不做任何加解密。
+ */
+@Slf4j
+public class SniRoutingHandler extends AbstractSniHandler<String> {
+    // 客户端连接后必须在这段时间内发来完整的ClientHello
+    private static final long CLIENT_HELLO_TIMEOUT_MILLIS = 10000;
+
+    private final TunnelManager tunnelManager;
+    private final VhostRouter router;
+
+    public SniRoutingHandler(TunnelManager tunnelManager, VhostRouter router) {
+        super(CLIENT_HELLO_TIMEOUT_MILLIS);
+        this.tunnelManager = tunnelManager;
+        this.router = router;
+    }
+
+    @Override
+    protected Future<String> lookup(ChannelHandlerContext ctx, String hostname) throws Exception {
+        // 路由表是内存中的只读表，直接同步完成
+        return ctx.executor().newSucceededFuture(hostname != null ? router.route(hostname, "/") : null);
+    }
+
+    @Override
+    protected void onLookupComplete(ChannelHandlerContext ctx, String hostname, Future<String> future) throws Exception {
+        String tunnelName = future.getNow();
+        if (tunnelName == null) {
+            log.warn("No SNI route: sni={}, remote={}", hostname, ctx.channel().remoteAddress());
+            ctx.close();
+            return;
+        }
+        log.debug("SNI routed: sni={}, tunnel={}", hostname, tunnelName);
+        // 先让新handler收到channelActive完成流注册，再移除自己，缓存的ClientHello随后作为普通数据传给它
+        ctx.pipeline().addAfter(ctx.name(), "proxy", new ClientProxyHandler(tunnelManager, tunnelName));
+        ctx.fireChannelActive();
+        ctx.pipeline().remove(this);
+    }
+}
@@ -1,45 +1,224 @@
 package com.imddy.frp.server.handler;
 
+import com.imddy.frp.common.codec.DatagramBatcher;
+import com.imddy.frp.common.config.UdpConfig;
 import com.imddy.frp.common.protocol.Message;
+import com.imddy.frp.common.stream.StreamWindow;
+import com.imddy.frp.server.tunnel.AgentLink;
 import com.imddy.frp.server.tunnel.TunnelManager;
+import com.imddy.frp.server.tunnel.TunnelStream;
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
 import lombok.extern.slf4j.Slf4j;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * UDP隧道的入口：每个客户端地址对应一个会话，会话是链路上的一条流。
+ * 首个报文时在链路上注册流并发出乐观CONNECT，之后的报文作为DATA转发；
+ * Agent回来的DATA按流找到会话，原样发回该客户端地址。会话空闲超时后由时间轮淘汰并通知Agent。
+ * 链路协商了合并帧时报文先进入链路的DatagramBatcher，一轮读取结束后统一发出。
+ */
 @Slf4j
 public class UdpProxyHandler extends SimpleChannelInboundHandler<DatagramPacket> {
     private final TunnelManager tunnelManager;
     private final String tunnelName;
-    private final Map<InetSocketAddress, String> addressToChannelId = new ConcurrentHashMap<>();
+    private final UdpConfig config;
+    private final Timer timer;
+    private final Map<InetSocketAddress, UdpSession> sessions = new ConcurrentHashMap<>();
+    // 本轮读取中写入过的合并器，只在Socket的事件循环中访问
+    private final List<DatagramBatcher> touchedBatchers = new ArrayList<>();
+    private Channel channel;
 
-    public UdpProxyHandler(TunnelManager tunnelManager, String tunnelName) {
+    public UdpProxyHandler(TunnelManager tunnelManager, String tunnelName, Timer timer) {
         this.tunnelManager = tunnelManager;
         this.tunnelName = tunnelName;
+        this.config = tunnelManager.getTunnel(tunnelName).getConfig().getUdp();
+        this.timer = timer;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        this.channel = ctx.channel();
+        super.channelActive(ctx);
     }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) throws Exception {
         InetSocketAddress sender = packet.sender();
-        String channelId = addressToChannelId.computeIfAbsent(sender,
-                addr -> addr.getAddress().getHostAddress() + ":" + addr.getPort());
-
         ByteBuf content = packet.content();
-        byte[] data = new byte[content.readableBytes()];
-        content.readBytes(data);
+        int size = content.readableBytes();
+
+        UdpSession session = sessions.get(sender);
+        if (session == null || !session.link.isActive()) {
+            session = openSession(sender);
+            if (session == null) {
+                dropped();
+                return;
+            }
+        }
+
+        // UDP本身允许丢包，链路出站缓冲区超过高水位时直接丢弃，避免在服务端无限堆积
+        if (!session.link.getChannel().isWritable()) {
+            session.link.getMetrics().onPacketDropped();
+            log.debug("Agent link not writable, drop UDP packet from {}, size: {}", sender, size);
+            return;
+        }
+
+        session.touch();
+        // packet会被SimpleChannelInboundHandler释放，负载需要额外retain一次
+        DatagramBatcher batcher = session.link.getDatagramBatcher();
+        if (batcher != null) {
+            batcher.add(session.streamId, content.retain());
+            if (!touchedBatchers.contains(batcher)) {
+                touchedBatchers.add(batcher);
+            }
+        } else {
+            session.link.getChannel().writeAndFlush(Message.data(session.streamId, content.retain()));
+        }
+        log.debug("UDP packet from {}, streamId: {}, size: {}", sender, session.streamId, size);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        // 一轮读取（epoll下可能是一次recvmmsg）结束，不再等待合并延迟
+        for (DatagramBatcher batcher : touchedBatchers) {
+            batcher.flush();
+        }
+        touchedBatchers.clear();
+        super.channelReadComplete(ctx);
+    }
+
+    private UdpSession openSession(InetSocketAddress sender) {
+        if (sessions.size() >= config.getMaxSessions()) {
+            log.debug("UDP session limit reached: tunnel={}, max={}", tunnelName, config.getMaxSessions());
+            return null;
+        }
+        TunnelManager.TunnelInfo tunnel = tunnelManager.getTunnel(tunnelName);
+        AgentLink link = tunnel != null ? tunnel.getLinks().select(sender) : null;
+        if (link == null) {
+            log.debug("Agent not connected for UDP tunnel: {}", tunnelName);
+            return null;
+        }
+
+        // 同一发送方固定在一条链路上，UDP没有握手，CONNECT总是乐观的，Agent只在失败时回复
+        UdpSession session = new UdpSession(sender, link);
+        session.streamId = link.getStreams().register(session);
+        sessions.put(sender, session);
+        link.getMetrics().onConnect();
+        link.getChannel().writeAndFlush(Message.connect(tunnelName, session.streamId, true));
+        session.timeout = timer.newTimeout(session, config.getIdleTimeoutMillis(), TimeUnit.MILLISECONDS);
+        log.debug("UDP session opened: sender={}, streamId={}, sessions={}", sender, session.streamId, sessions.size());
+        return session;
+    }
 
+    private void dropped() {
         TunnelManager.TunnelInfo tunnel = tunnelManager.getTunnel(tunnelName);
-        if (tunnel != null && tunnel.getAgentChannel() != null) {
-            Message dataMsg = Message.data(channelId, data);
-            dataMsg.setTunnelName(tunnelName);
-            dataMsg.setMetadata("{\"sender\":\"" + sender.toString() + "\"}");
-            tunnel.getAgentChannel().writeAndFlush(dataMsg);
-            log.debug("UDP packet from {}, size: {}", sender, data.length);
+        if (tunnel != null) {
+            tunnel.getMetrics().onPacketDropped();
+        }
+    }
+
+    private final class UdpSession implements TunnelStream, TimerTask {
+        private final InetSocketAddress sender;
+        private final AgentLink link;
+        // 只用于满足TunnelStream接口，UDP会话不做流控
+        private final StreamWindow window = new StreamWindow();
+        private int streamId;
+        private volatile long lastActiveNanos = System.nanoTime();
+        private volatile Timeout timeout;
+
+        UdpSession(InetSocketAddress sender, AgentLink link) {
+            this.sender = sender;
+            this.link = link;
+        }
+
+        void touch() {
+            lastActiveNanos = System.nanoTime();
+        }
+
+        @Override
+        public Channel getChannel() {
+            return channel;
+        }
+
+        @Override
+        public AgentLink getLink() {
+            return link;
+        }
+
+        @Override
+        public StreamWindow getWindow() {
+            return window;
+        }
+
+        // 回包发回会话对应的客户端地址
+        @Override
+        public ChannelFuture write(ByteBuf data) {
+            touch();
+            return channel.writeAndFlush(new DatagramPacket(data, sender));
+        }
+
+        @Override
+        public void enqueue(ByteBuf data) {
+            touch();
+            channel.write(new DatagramPacket(data, sender), channel.voidPromise());
+        }
+
+        // 只释放会话，共享的DatagramChannel保持打开
+        @Override
+        public void close() {
+            sessions.remove(sender, this);
+            Timeout t = timeout;
+            if (t != null) {
+                t.cancel();
+            }
+        }
+
+        @Override
+        public void onAgentConnected(boolean success) {
+            if (!success) {
+                log.warn("Agent failed to open UDP session: sender={}, streamId={}", sender, streamId);
+                link.getMetrics().onConnectFailure();
+                link.getStreams().remove(streamId, this);
+                close();
+            }
+        }
+
+        @Override
+        public void onWindowUpdate(int increment) {
+        }
+
+        @Override
+        public void onLinkWritabilityChanged(boolean writable) {
+        }
+
+        // 空闲检查：未到期时按剩余时间重新排期，避免每个报文都重设定时器
+        @Override
+        public void run(Timeout t) {
+            long idleMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastActiveNanos);
+            long remaining = config.getIdleTimeoutMillis() - idleMillis;
+            if (remaining > 0) {
+                timeout = timer.newTimeout(this, remaining, TimeUnit.MILLISECONDS);
+                return;
+            }
+            if (link.getStreams().remove(streamId, this) && link.isActive()) {
+                link.getChannel().writeAndFlush(Message.disconnect(streamId));
+            }
+            sessions.remove(sender, this);
+            log.debug("UDP session idle evicted: sender={}, streamId={}", sender, streamId);
         }
     }
 
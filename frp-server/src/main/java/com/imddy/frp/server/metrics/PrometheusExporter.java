@@ -0,0 +1,241 @@
+package com.imddy.frp.server.metrics;
+
+import com.imddy.frp.common.compress.CompressionStats;
+import com.imddy.frp.common.protocol.ProxyProtocol;
+import com.imddy.frp.server.cache.ResponseCache;
+import com.imddy.frp.server.tunnel.AgentLink;
+import com.imddy.frp.server.tunnel.TunnelManager;
+import io.netty.channel.ChannelOutboundBuffer;
+
+import java.util.Map;
+
+/**
+ * 以Prometheus文本格式输出隧道和链路指标
+ */
+public class PrometheusExporter {
+    private final TunnelManager tunnelManager;
+
+    public PrometheusExporter(TunnelManager tunnelManager) {
+        this.tunnelManager = tunnelManager;
+    }
+
+    public String export() {
+        Map<String, TunnelManager.TunnelInfo> tunnels = tunnelManager.getAllTunnels();
+        StringBuilder sb = new StringBuilder(4096);
+
+        header(sb, "frp_tunnel_up", "gauge", "Whether the tunnel has at least one active agent link");
+        for (TunnelManager.TunnelInfo tunnel : tunnels.values()) {
+            sample(sb, "frp_tunnel_up", tunnelLabels(tunnel), tunnel.getLinks().isAvailable() ? 1 : 0);
+        }
+        header(sb, "frp_tunnel_links", "gauge", "Number of agent links");
+        for (TunnelManager.TunnelInfo tunnel : tunnels.values()) {
+            sample(sb, "frp_tunnel_links", tunnelLabels(tunnel), tunnel.getLinks().size());
+        }
+        header(sb, "frp_tunnel_active_streams", "gauge", "Streams currently open on the tunnel");
+        for (TunnelManager.TunnelInfo tunnel : tunnels.values()) {
+            sample(sb, "frp_tunnel_active_streams", tunnelLabels(tunnel), tunnel.getLinks().getActiveStreams());
+        }
+        header(sb, "frp_tunnel_connections_total", "counter", "Client connections accepted");
+        for (TunnelManager.TunnelInfo tunnel : tunnels.values()) {
+            sample(sb, "frp_tunnel_connections_total", tunnelLabels(tunnel), tunnel.getMetrics().getConnects());
+        }
+        header(sb, "frp_tunnel_connect_failures_total", "counter",
+                "Client connections rejected or reset because no agent or target was available");
+        for (TunnelManager.TunnelInfo tunnel : tunnels.values()) {
+            sample(sb, "frp_tunnel_connect_failures_total", tunnelLabels(tunnel),
+                    tunnel.getMetrics().getConnectFailures());
+        }
+        header(sb, "frp_tunnel_bytes_total", "counter", "DATA payload bytes, out = to agent, in = from agent");
+        for (TunnelManager.TunnelInfo tunnel : tunnels.values()) {
+            TrafficMetrics metrics = tunnel.getMetrics();
+            sample(sb, "frp_tunnel_bytes_total", tunnelLabels(tunnel) + ",direction=\"out\"", metrics.getBytesOut());
+            sample(sb, "frp_tunnel_bytes_total", tunnelLabels(tunnel) + ",direction=\"in\"", metrics.getBytesIn());
+        }
+        header(sb, "frp_tunnel_frames_total", "counter", "Frames on agent links, out = to agent, in = from agent");
+        for (TunnelManager.TunnelInfo tunnel : tunnels.values()) {
+            TrafficMetrics metrics = tunnel.getMetrics();
+            sample(sb, "frp_tunnel_frames_total", tunnelLabels(tunnel) + ",direction=\"out\"", metrics.getFramesOut());
+            sample(sb, "frp_tunnel_frames_total", tunnelLabels(tunnel) + ",direction=\"in\"", metrics.getFramesIn());
+        }
+        header(sb, "frp_tunnel_pending_bytes", "gauge", "Client bytes buffered while waiting for the agent");
+        for (TunnelManager.TunnelInfo tunnel : tunnels.values()) {
+            sample(sb, "frp_tunnel_pending_bytes", tunnelLabels(tunnel), tunnel.getMetrics().getPendingBytes());
+        }
+        header(sb, "frp_tunnel_dropped_packets_total", "counter", "UDP datagrams dropped by the server");
+        for (TunnelManager.TunnelInfo tunnel : tunnels.values()) {
+            sample(sb, "frp_tunnel_dropped_packets_total", tunnelLabels(tunnel), tunnel.getMetrics().getDroppedPackets());
+        }
+        header(sb, "frp_tunnel_cross_thread_writes_total", "counter",
+                "Writes between a client connection and its agent link that crossed event loops");
+        for (TunnelManager.TunnelInfo tunnel : tunnels.values()) {
+            sample(sb, "frp_tunnel_cross_thread_writes_total", tunnelLabels(tunnel),
+                    tunnel.getMetrics().getCrossThreadWrites());
+        }
+        header(sb, "frp_tunnel_compression_bytes_total", "counter",
+                "DATA bytes sent to agents before (raw) and after (wire) compression");
+        for (TunnelManager.TunnelInfo tunnel : tunnels.values()) {
+            CompressionStats compression = tunnel.getCompressionStats();
+            sample(sb, "frp_tunnel_compression_bytes_total", tunnelLabels(tunnel) + ",stage=\"raw\"",
+                    compression.getRawBytes());
+            sample(sb, "frp_tunnel_compression_bytes_total", tunnelLabels(tunnel) + ",stage=\"wire\"",
+                    compression.getWireBytes());
+        }
+
+        header(sb, "frp_tls_handshakes_total", "counter", "TLS handshakes terminated on the tunnel's open port");
+        for (TunnelManager.TunnelInfo tunnel : tunnels.values()) {
+            if (isHttps(tunnel)) {
+                TlsStats tls = tunnel.getTlsStats();
+                sample(sb, "frp_tls_handshakes_total", tunnelLabels(tunnel) + ",result=\"success\"", tls.getHandshakes());
+                sample(sb, "frp_tls_handshakes_total", tunnelLabels(tunnel) + ",result=\"failure\"", tls.getFailures());
+            }
+        }
+        header(sb, "frp_tls_resumed_handshakes_total", "counter", "Successful TLS handshakes that resumed a session");
+        for (TunnelManager.TunnelInfo tunnel : tunnels.values()) {
+            if (isHttps(tunnel)) {
+                sample(sb, "frp_tls_resumed_handshakes_total", tunnelLabels(tunnel), tunnel.getTlsStats().getResumed());
+            }
+        }
+        header(sb, "frp_tls_handshake_duration_seconds", "histogram",
+                "Time from accepting the connection to a successful TLS handshake");
+        for (TunnelManager.TunnelInfo tunnel : tunnels.values()) {
+            if (isHttps(tunnel)) {
+                TlsStats tls = tunnel.getTlsStats();
+                long[] buckets = tls.getCumulativeBuckets();
+                String name = "frp_tls_handshake_duration_seconds";
+                for (int i = 0; i < TlsStats.LATENCY_BUCKETS_MILLIS.length; i++) {
+                    sample(sb, name + "_bucket", tunnelLabels(tunnel) + ",le=\""
+                            + TlsStats.LATENCY_BUCKETS_MILLIS[i] / 1000.0 + "\"", buckets[i]);
+                }
+                sample(sb, name + "_bucket", tunnelLabels(tunnel) + ",le=\"+Inf\"", buckets[buckets.length - 1]);
+                sb.append(name).append("_sum{").append(tunnelLabels(tunnel)).append("} ")
+                        .append(tls.getLatencyNanos() / 1e9).append('\n');
+                sample(sb, name + "_count", tunnelLabels(tunnel), tls.getHandshakes());
+            }
+        }
+
+        header(sb, "frp_tunnel_cache_requests_total", "counter", "Cacheable GET requests looked up in the response cache");
+        for (TunnelManager.TunnelInfo tunnel : tunnels.values()) {
+            ResponseCache cache = tunnel.getResponseCache();
+            if (cache != null) {
+                sample(sb, "frp_tunnel_cache_requests_total", tunnelLabels(tunnel) + ",result=\"hit\"", cache.getHits());
+                sample(sb, "frp_tunnel_cache_requests_total", tunnelLabels(tunnel) + ",result=\"miss\"", cache.getMisses());
+            }
+        }
+        header(sb, "frp_tunnel_cache_evictions_total", "counter", "Responses evicted from the cache to make room");
+        for (TunnelManager.TunnelInfo tunnel : tunnels.values()) {
+            if (tunnel.getResponseCache() != null) {
+                sample(sb, "frp_tunnel_cache_evictions_total", tunnelLabels(tunnel), tunnel.getResponseCache().getEvictions());
+            }
+        }
+        header(sb, "frp_tunnel_cache_bytes", "gauge", "Memory held by cached responses");
+        for (TunnelManager.TunnelInfo tunnel : tunnels.values()) {
+            if (tunnel.getResponseCache() != null) {
+                sample(sb, "frp_tunnel_cache_bytes", tunnelLabels(tunnel), tunnel.getResponseCache().getBytes());
+            }
+        }
+
+        header(sb, "frp_link_active_streams", "gauge", "Streams currently open on the agent link");
+        for (TunnelManager.TunnelInfo tunnel : tunnels.values()) {
+            for (AgentLink link : tunnel.getLinks().getLinks()) {
+                sample(sb, "frp_link_active_streams", linkLabels(tunnel, link), link.getStreams().size());
+            }
+        }
+        header(sb, "frp_link_bytes_total", "counter", "DATA payload bytes on the link");
+        for (TunnelManager.TunnelInfo tunnel : tunnels.values()) {
+            for (AgentLink link : tunnel.getLinks().getLinks()) {
+                sample(sb, "frp_link_bytes_total", linkLabels(tunnel, link) + ",direction=\"out\"",
+                        link.getMetrics().getBytesOut());
+                sample(sb, "frp_link_bytes_total", linkLabels(tunnel, link) + ",direction=\"in\"",
+                        link.getMetrics().getBytesIn());
+            }
+        }
+        header(sb, "frp_link_frames_total", "counter", "Frames on the link");
+        for (TunnelManager.TunnelInfo tunnel : tunnels.values()) {
+            for (AgentLink link : tunnel.getLinks().getLinks()) {
+                sample(sb, "frp_link_frames_total", linkLabels(tunnel, link) + ",direction=\"out\"",
+                        link.getMetrics().getFramesOut());
+                sample(sb, "frp_link_frames_total", linkLabels(tunnel, link) + ",direction=\"in\"",
+                        link.getMetrics().getFramesIn());
+            }
+        }
+        header(sb, "frp_link_pending_bytes", "gauge", "Client bytes buffered while waiting for the agent");
+        for (TunnelManager.TunnelInfo tunnel : tunnels.values()) {
+            for (AgentLink link : tunnel.getLinks().getLinks()) {
+                sample(sb, "frp_link_pending_bytes", linkLabels(tunnel, link), link.getMetrics().getPendingBytes());
+            }
+        }
+        header(sb, "frp_link_outbound_buffer_bytes", "gauge", "Bytes queued in the link's outbound buffer");
+        for (TunnelManager.TunnelInfo tunnel : tunnels.values()) {
+            for (AgentLink link : tunnel.getLinks().getLinks()) {
+                ChannelOutboundBuffer buffer = link.getChannel().unsafe().outboundBuffer();
+                sample(sb, "frp_link_outbound_buffer_bytes", linkLabels(tunnel, link),
+                        buffer != null ? buffer.totalPendingWriteBytes() : 0);
+            }
+        }
+        // 会话恢复指标只输出开启了恢复的链路
+        header(sb, "frp_link_session_unacked_bytes", "gauge", "Bytes kept for retransmission until the agent acknowledges them");
+        for (TunnelManager.TunnelInfo tunnel : tunnels.values()) {
+            for (AgentLink link : tunnel.getLinks().getLinks()) {
+                if (link.getSession().isResumable()) {
+                    sample(sb, "frp_link_session_unacked_bytes", linkLabels(tunnel, link),
+                            link.getSession().getUnackedBytes());
+                }
+            }
+        }
+        header(sb, "frp_link_session_resumes_total", "counter", "Times the link's session was resumed on a new connection");
+        for (TunnelManager.TunnelInfo tunnel : tunnels.values()) {
+            for (AgentLink link : tunnel.getLinks().getLinks()) {
+                if (link.getSession().isResumable()) {
+                    sample(sb, "frp_link_session_resumes_total", linkLabels(tunnel, link), link.getSession().getResumes());
+                }
+            }
+        }
+        header(sb, "frp_link_session_throttles_total", "counter",
+                "Times the link stopped writing because the retransmit buffer was half full");
+        for (TunnelManager.TunnelInfo tunnel : tunnels.values()) {
+            for (AgentLink link : tunnel.getLinks().getLinks()) {
+                if (link.getSession().isResumable()) {
+                    sample(sb, "frp_link_session_throttles_total", linkLabels(tunnel, link),
+                            link.getSession().getThrottles());
+                }
+            }
+        }
+        header(sb, "frp_link_session_overflows_total", "counter",
+                "Times the retransmit buffer overflowed and was dropped, leaving the session not resumable");
+        for (TunnelManager.TunnelInfo tunnel : tunnels.values()) {
+            for (AgentLink link : tunnel.getLinks().getLinks()) {
+                if (link.getSession().isResumable()) {
+                    sample(sb, "frp_link_session_overflows_total", linkLabels(tunnel, link),
+                            link.getSession().getOverflows());
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean isHttps(TunnelManager.TunnelInfo tunnel) {
+        return tunnel.getConfig().getProtocolType() == ProxyProtocol.HTTPS;
+    }
+
+    private static String tunnelLabels(TunnelManager.TunnelInfo tunnel) {
+        return "tunnel=\"" + escape(tunnel.getConfig().getName()) + "\"";
+    }
+
+    private static String linkLabels(TunnelManager.TunnelInfo tunnel, AgentLink link) {
+        String address = String.valueOf(link.getChannel().remoteAddress()).replaceFirst("^/", "");
+        return tunnelLabels(tunnel) + ",agent=\"" + escape(link.getAgentId()) + "\",link=\"" + escape(address) + "\"";
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, long value) {
+        sb.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,105 @@
+package com.imddy.frp.server.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 服务端终止TLS时的握手统计：次数、会话复用率和握手耗时分布。
+ * 无法判断是否复用了会话的握手（握手完成前引擎已释放）计入unknown，不参与复用率
+ */
+public class TlsStats {
+    // 握手耗时直方图的上界（毫秒），最后一档为+Inf
+    public static final long[] LATENCY_BUCKETS_MILLIS = {1, 5, 10, 25, 50, 100, 250, 500, 1000, 2500};
+
+    private final LongAdder handshakes = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+    // 无法判断是否复用会话的握手
+    private final LongAdder unknown = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder latencyNanos = new LongAdder();
+    private final LongAdder[] latencyBuckets = new LongAdder[LATENCY_BUCKETS_MILLIS.length + 1];
+
+    public TlsStats() {
+        for (int i = 0; i < latencyBuckets.length; i++) {
+            latencyBuckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * sessionReused为null表示引擎无法判断
+     */
+    public void onHandshake(long nanos, Boolean sessionReused) {
+        handshakes.increment();
+        if (sessionReused == null) {
+            unknown.increment();
+        } else if (sessionReused) {
+            resumed.increment();
+        }
+        latencyNanos.add(nanos);
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int bucket = 0;
+        while (bucket < LATENCY_BUCKETS_MILLIS.length && millis >= LATENCY_BUCKETS_MILLIS[bucket]) {
+            bucket++;
+        }
+        latencyBuckets[bucket].increment();
+    }
+
+    public void onHandshakeFailure() {
+        failures.increment();
+    }
+
+    public long getHandshakes() {
+        return handshakes.sum();
+    }
+
+    public long getResumed() {
+        return resumed.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    public long getLatencyNanos() {
+        return latencyNanos.sum();
+    }
+
+    // 能判断是否复用会话的握手数
+    public long getReuseKnown() {
+        return handshakes.sum() - unknown.sum();
+    }
+
+    public double getResumptionRate() {
+        long known = getReuseKnown();
+        return known == 0 ? 0.0 : (double) resumed.sum() / known;
+    }
+
+    // 各档的累计计数（小于等于该档上界的握手数），与LATENCY_BUCKETS_MILLIS对应，最后一个为总数
+    public long[] getCumulativeBuckets() {
+        long[] cumulative = new long[latencyBuckets.length];
+        long sum = 0;
+        for (int i = 0; i < latencyBuckets.length; i++) {
+            sum += latencyBuckets[i].sum();
+            cumulative[i] = sum;
+        }
+        return cumulative;
+    }
+
+    public Map<String, Object> toMap() {
+        long total = handshakes.sum();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("handshakes", total);
+        if (total > 0 && getReuseKnown() == 0) {
+            stats.put("resumed", "unknown");
+            stats.put("resumptionRate", "unknown");
+        } else {
+            stats.put("resumed", resumed.sum());
+            stats.put("resumptionRate", getResumptionRate());
+        }
+        stats.put("failures", failures.sum());
+        stats.put("avgHandshakeMillis", total == 0 ? 0.0 : latencyNanos.sum() / 1_000_000.0 / total);
+        return stats;
+    }
+}
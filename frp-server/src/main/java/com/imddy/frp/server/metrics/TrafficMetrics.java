@@ -0,0 +1,120 @@
+package com.imddy.frp.server.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 链路/隧道的流量计数器。使用LongAdder，多个事件循环线程同时累加时不会争用同一个缓存行；
+ * 链路的计数同时累加到所属隧道上。
+ */
+public class TrafficMetrics {
+    private final TrafficMetrics parent;
+
+    // 方向以服务端为准：out为发往Agent，in为来自Agent
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder framesOut = new LongAdder();
+    private final LongAdder framesIn = new LongAdder();
+    private final LongAdder connects = new LongAdder();
+    private final LongAdder connectFailures = new LongAdder();
+    // 等待Agent确认期间缓存的客户端数据
+    private final LongAdder pendingBytes = new LongAdder();
+    // 被丢弃的UDP报文（会话数达到上限、Agent未连接或链路不可写）
+    private final LongAdder droppedPackets = new LongAdder();
+    // 客户端连接与Agent链路不在同一事件循环时，写出要提交任务并唤醒对方线程，按两个方向累计次数
+    private final LongAdder crossThreadWrites = new LongAdder();
+
+    public TrafficMetrics() {
+        this(null);
+    }
+
+    public TrafficMetrics(TrafficMetrics parent) {
+        this.parent = parent;
+    }
+
+    public void onFrameOut(int dataBytes) {
+        framesOut.increment();
+        bytesOut.add(dataBytes);
+        if (parent != null) {
+            parent.onFrameOut(dataBytes);
+        }
+    }
+
+    public void onFrameIn(int dataBytes) {
+        framesIn.increment();
+        bytesIn.add(dataBytes);
+        if (parent != null) {
+            parent.onFrameIn(dataBytes);
+        }
+    }
+
+    public void onConnect() {
+        connects.increment();
+        if (parent != null) {
+            parent.onConnect();
+        }
+    }
+
+    public void onConnectFailure() {
+        connectFailures.increment();
+        if (parent != null) {
+            parent.onConnectFailure();
+        }
+    }
+
+    public void addPendingBytes(int delta) {
+        pendingBytes.add(delta);
+        if (parent != null) {
+            parent.addPendingBytes(delta);
+        }
+    }
+
+    public void onPacketDropped() {
+        droppedPackets.increment();
+        if (parent != null) {
+            parent.onPacketDropped();
+        }
+    }
+
+    public void onCrossThreadWrite() {
+        crossThreadWrites.increment();
+        if (parent != null) {
+            parent.onCrossThreadWrite();
+        }
+    }
+
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long getFramesOut() {
+        return framesOut.sum();
+    }
+
+    public long getFramesIn() {
+        return framesIn.sum();
+    }
+
+    public long getConnects() {
+        return connects.sum();
+    }
+
+    public long getConnectFailures() {
+        return connectFailures.sum();
+    }
+
+    public long getPendingBytes() {
+        return pendingBytes.sum();
+    }
+
+    public long getDroppedPackets() {
+        return droppedPackets.sum();
+    }
+
+    public long getCrossThreadWrites() {
+        return crossThreadWrites.sum();
+    }
+}
@@ -0,0 +1,164 @@
+package com.imddy.frp.server.tls;
+
+import com.imddy.frp.server.config.ServerConfig;
+import com.imddy.frp.server.metrics.TlsStats;
+import io.netty.channel.Channel;
+import io.netty.handler.ssl.*;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+import io.netty.internal.tcnative.SSL;
+import io.netty.util.concurrent.EventExecutorGroup;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+import java.io.File;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 服务端TLS终止用的SslContext。按TlsConfig缓存，配置相同的隧道共用同一个上下文，
+ * 因而共用会话缓存和会话票据密钥；classpath中有netty-tcnative时使用OpenSSL/BoringSSL引擎。
+ */
+@Slf4j
+public class ServerTlsContexts {
+    private final EventExecutorGroup scheduler;
+    private final Map<ServerConfig.TlsConfig, SslContext> contexts = new HashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private SelfSignedCertificate selfSigned;
+
+    public ServerTlsContexts(EventExecutorGroup scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * 创建SslHandler，握手完成后把次数、是否复用会话和耗时记到stats上
+     */
+    public SslHandler newHandler(Channel ch, ServerConfig.TlsConfig tls, TlsStats stats) throws Exception {
+        SslHandler sslHandler = get(tls).newHandler(ch.alloc());
+        sslHandler.setHandshakeTimeoutMillis(tls.getHandshakeTimeoutMillis());
+        long startMillis = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        sslHandler.handshakeFuture().addListener(future -> {
+            if (future.isSuccess()) {
+                stats.onHandshake(System.nanoTime() - startNanos, isSessionReused(sslHandler.engine(), startMillis));
+            } else {
+                stats.onHandshakeFailure();
+                log.debug("TLS handshake failed: remote={}", ch.remoteAddress(), future.cause());
+            }
+        });
+        return sslHandler;
+    }
+
+    /**
+     * 握手是否复用了会话。OpenSSL引擎直接询问本地库；JDK引擎没有公开的判断方式，
+     * 复用的会话保留最初的创建时间，早于本次握手开始即视为复用。引擎已经释放时返回null
+     */
+    private static Boolean isSessionReused(SSLEngine engine, long startMillis) {
+        if (engine instanceof ReferenceCountedOpenSslEngine) {
+            long ssl = ((ReferenceCountedOpenSslEngine) engine).sslPointer();
+            return ssl != 0 ? SSL.isSessionReused(ssl) : null;
+        }
+        return engine.getSession().getCreationTime() < startMillis;
+    }
+
+    public synchronized SslContext get(ServerConfig.TlsConfig tls) throws Exception {
+        SslContext context = contexts.get(tls);
+        if (context == null) {
+            context = build(tls);
+            contexts.put(tls, context);
+        }
+        return context;
+    }
+
+    private SslContext build(ServerConfig.TlsConfig tls) throws Exception {
+        SslProvider provider = selectProvider(tls.getProvider());
+        SslContextBuilder builder;
+        if (tls.getCertFile() != null && tls.getKeyFile() != null) {
+            builder = SslContextBuilder.forServer(new File(tls.getCertFile()), new File(tls.getKeyFile()),
+                    tls.getKeyPassword());
+        } else {
+            log.warn("No certFile/keyFile configured, using a temporary self-signed certificate");
+            if (selfSigned == null) {
+                selfSigned = new SelfSignedCertificate();
+            }
+            builder = SslContextBuilder.forServer(selfSigned.certificate(), selfSigned.privateKey());
+        }
+        builder.sslProvider(provider)
+                .sessionCacheSize(tls.getSessionCacheSize())
+                .sessionTimeout(tls.getSessionTimeoutSeconds());
+        if (tls.getProtocols() != null && !tls.getProtocols().isEmpty()) {
+            builder.protocols(tls.getProtocols());
+        }
+        if (tls.getCiphers() != null && !tls.getCiphers().isEmpty()) {
+            builder.ciphers(tls.getCiphers());
+        }
+        if (tls.getAlpn() != null && !tls.getAlpn().isEmpty()) {
+            if (SslProvider.isAlpnSupported(provider)) {
+                builder.applicationProtocolConfig(new ApplicationProtocolConfig(
+                        ApplicationProtocolConfig.Protocol.ALPN,
+                        // 没有共同协议时不通告，按普通TLS继续
+                        ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                        ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                        tls.getAlpn()));
+            } else {
+                log.warn("ALPN is not supported by TLS provider {}, ignored", provider);
+            }
+        }
+
+        SslContext context = builder.build();
+        scheduleTicketKeyRotation(context, tls.getTicketKeyRotationMinutes());
+        log.info("TLS context created: provider={}, cert={}, alpn={}, sessionCache={}, sessionTimeout={}s",
+                provider, tls.getCertFile() != null ? tls.getCertFile() : "self-signed", tls.getAlpn(),
+                tls.getSessionCacheSize(), tls.getSessionTimeoutSeconds());
+        return context;
+    }
+
+    private static SslProvider selectProvider(String name) {
+        switch (name == null ? "auto" : name.toLowerCase()) {
+            case "auto":
+                return OpenSsl.isAvailable() ? SslProvider.OPENSSL : SslProvider.JDK;
+            case "openssl":
+                OpenSsl.ensureAvailability();
+                return SslProvider.OPENSSL;
+            case "jdk":
+                return SslProvider.JDK;
+            default:
+                throw new IllegalArgumentException("Unknown TLS provider: " + name);
+        }
+    }
+
+    // OpenSSL的票据密钥由应用提供：定期生成新密钥用于加密，上一把密钥保留一个周期用于解密已发出的票据。
+    // JDK引擎的无状态票据密钥由JDK按jdk.tls.server.statelessKeyTimeout自行轮换
+    private void scheduleTicketKeyRotation(SslContext context, int rotationMinutes) {
+        SSLSessionContext sessionContext = context.sessionContext();
+        if (rotationMinutes <= 0 || !(sessionContext instanceof OpenSslSessionContext)) {
+            return;
+        }
+        OpenSslSessionContext openSslContext = (OpenSslSessionContext) sessionContext;
+        OpenSslSessionTicketKey[] keys = {newTicketKey()};
+        openSslContext.setTicketKeys(keys);
+        scheduler.scheduleAtFixedRate(() -> {
+            keys[0] = rotateTicketKeys(openSslContext, keys[0]);
+        }, rotationMinutes, rotationMinutes, TimeUnit.MINUTES);
+    }
+
+    private OpenSslSessionTicketKey rotateTicketKeys(OpenSslSessionContext context, OpenSslSessionTicketKey previous) {
+        OpenSslSessionTicketKey current = newTicketKey();
+        // 第一把密钥用于加密新票据，其余只用于解密
+        context.setTicketKeys(current, previous);
+        log.info("TLS session ticket keys rotated");
+        return current;
+    }
+
+    private OpenSslSessionTicketKey newTicketKey() {
+        byte[] name = new byte[OpenSslSessionTicketKey.NAME_SIZE];
+        byte[] hmacKey = new byte[OpenSslSessionTicketKey.HMAC_KEY_SIZE];
+        byte[] aesKey = new byte[OpenSslSessionTicketKey.AES_KEY_SIZE];
+        random.nextBytes(name);
+        random.nextBytes(hmacKey);
+        random.nextBytes(aesKey);
+        return new OpenSslSessionTicketKey(name, hmacKey, aesKey);
+    }
+}
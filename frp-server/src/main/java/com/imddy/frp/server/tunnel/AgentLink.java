@@ -0,0 +1,91 @@
+package com.imddy.frp.server.tunnel;
+
+import com.imddy.frp.common.codec.DatagramBatcher;
+import com.imddy.frp.common.protocol.Message;
+import com.imddy.frp.common.session.LinkSession;
+import com.imddy.frp.common.stream.StreamTable;
+import com.imddy.frp.server.metrics.TrafficMetrics;
+import io.netty.channel.Channel;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一条Agent链路及其上的流表，流ID在链路内分配。
+ * 开启会话恢复时连接断开后链路进入宽限期，流表保留，Agent重连恢复后换成新连接。
+ * 一个Agent连接同时注册多个隧道时，每个隧道一个AgentLink，它们共用连接、会话和流表
+ */
+@Getter
+public class AgentLink {
+    private final String tunnelName;
+    // 注册时Agent上报的标识，同一Agent的多条链路相同
+    private final String agentId;
+    // 最近一次的连接，断开等待恢复期间仍是已关闭的旧连接
+    @Setter
+    private volatile Channel channel;
+    private final LinkSession session;
+    private final StreamTable<TunnelStream> streams;
+    // 共用同一连接的所有链路（包括自己），第一个代表整个连接登记会话
+    private final List<AgentLink> bundle;
+    // 链路流量计数，同时累加到隧道
+    private final TrafficMetrics metrics;
+    // Agent随心跳上报的统计（JSON）
+    @Setter
+    private volatile String agentStats;
+    // UDP隧道协商启用合并帧时非空，发往Agent的报文经它合并
+    @Setter
+    private volatile DatagramBatcher datagramBatcher;
+    // Agent测得的心跳往返时间（平滑值），还没有上报时为0
+    @Setter
+    private volatile long rttMicros;
+    // Agent准备停止，不再接收新流
+    @Setter
+    private volatile boolean draining;
+
+    public AgentLink(String tunnelName, String agentId, Channel channel, LinkSession session,
+                     TrafficMetrics tunnelMetrics) {
+        this(tunnelName, agentId, channel, session, tunnelMetrics, new ArrayList<>());
+    }
+
+    /**
+     * 加入bundle中已有的链路，与它们共用流表，流ID在整个连接内唯一
+     */
+    public AgentLink(String tunnelName, String agentId, Channel channel, LinkSession session,
+                     TrafficMetrics tunnelMetrics, List<AgentLink> bundle) {
+        this.tunnelName = tunnelName;
+        this.agentId = agentId;
+        this.channel = channel;
+        this.session = session;
+        this.metrics = new TrafficMetrics(tunnelMetrics);
+        this.streams = bundle.isEmpty() ? new StreamTable<>() : bundle.get(0).getStreams();
+        this.bundle = bundle;
+        bundle.add(this);
+    }
+
+    // 连接可用，新流只放到这样的链路上
+    public boolean isActive() {
+        return session.isActive();
+    }
+
+    // 已有的流还能写入，包括断开等待恢复的链路
+    public boolean isOpen() {
+        return session.isOpen();
+    }
+
+    public boolean isWritable() {
+        return session.isWritable();
+    }
+
+    /**
+     * 发送有序帧，msg的所有权转移给链路
+     */
+    public void write(Message msg) {
+        Channel ch = channel;
+        if (ch != null && !ch.eventLoop().inEventLoop()) {
+            metrics.onCrossThreadWrite();
+        }
+        session.write(msg);
+    }
+}
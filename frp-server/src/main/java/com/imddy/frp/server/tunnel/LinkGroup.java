@@ -0,0 +1,109 @@
+package com.imddy.frp.server.tunnel;
+
+import com.imddy.frp.server.balance.LeastStreamsBalancer;
+import com.imddy.frp.server.balance.LoadBalancer;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 一个隧道的Agent链路组。多个Agent可以注册同一隧道，每个Agent还可以建立多条并行链路，
+ * 新流按隧道配置的负载均衡策略放到其中一条上，之后该流的所有帧都固定走这条链路。
+ * 正在排空的链路不再接收新流，已有的流照常转发。
+ */
+public class LinkGroup {
+    private final List<AgentLink> links = new CopyOnWriteArrayList<>();
+    private final LoadBalancer balancer;
+
+    public LinkGroup() {
+        this(new LeastStreamsBalancer());
+    }
+
+    public LinkGroup(LoadBalancer balancer) {
+        this.balancer = balancer;
+    }
+
+    public void add(AgentLink link) {
+        links.add(link);
+    }
+
+    public boolean remove(AgentLink link) {
+        return links.remove(link);
+    }
+
+    public AgentLink select() {
+        return select(null);
+    }
+
+    /**
+     * 为来自client的新流选择链路，没有可用链路时返回null
+     */
+    public AgentLink select(SocketAddress client) {
+        AgentLink only = null;
+        List<AgentLink> candidates = null;
+        for (AgentLink link : links) {
+            if (!isAvailable(link)) {
+                continue;
+            }
+            if (only == null) {
+                only = link;
+            } else {
+                if (candidates == null) {
+                    candidates = new ArrayList<>(links.size());
+                    candidates.add(only);
+                }
+                candidates.add(link);
+            }
+        }
+        return candidates == null ? only : balancer.select(candidates, client);
+    }
+
+    private static boolean isAvailable(AgentLink link) {
+        return link.isActive() && !link.isDraining();
+    }
+
+    // 至少有一条链路可以接收新流
+    public boolean isAvailable() {
+        for (AgentLink link : links) {
+            if (isAvailable(link)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 按Agent分组的链路，顺序与注册顺序一致
+     */
+    public Map<String, List<AgentLink>> getAgents() {
+        Map<String, List<AgentLink>> agents = new LinkedHashMap<>();
+        for (AgentLink link : links) {
+            agents.computeIfAbsent(link.getAgentId(), id -> new ArrayList<>()).add(link);
+        }
+        return agents;
+    }
+
+    public List<AgentLink> getLinks() {
+        return links;
+    }
+
+    public boolean isEmpty() {
+        return links.isEmpty();
+    }
+
+    public int size() {
+        return links.size();
+    }
+
+    public int getActiveStreams() {
+        int total = 0;
+        for (AgentLink link : links) {
+            total += link.getStreams().size();
+        }
+        return total;
+    }
+}
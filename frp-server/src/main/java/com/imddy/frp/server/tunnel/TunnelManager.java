@@ -1,84 +1,119 @@
 package com.imddy.frp.server.tunnel;
 
+import com.imddy.frp.server.balance.LoadBalancers;
+import com.imddy.frp.server.cache.ResponseCache;
+import com.imddy.frp.common.session.LinkSession;
 import com.imddy.frp.server.config.ServerConfig;
-import com.imddy.frp.server.handler.ClientProxyHandler;
 import io.netty.channel.Channel;
+import com.imddy.frp.common.compress.CompressionStats;
+import com.imddy.frp.server.metrics.TlsStats;
+import com.imddy.frp.server.metrics.TrafficMetrics;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 @Slf4j
 public class TunnelManager {
     private final Map<String, TunnelInfo> tunnels = new ConcurrentHashMap<>();
-    private final Map<String, Map<String, Channel>> clientChannels = new ConcurrentHashMap<>();
-    private final Map<String, Map<String, ClientProxyHandler>> clientHandlers = new ConcurrentHashMap<>();
+    // 可恢复的链路，按会话token索引
+    private final Map<String, AgentLink> sessions = new ConcurrentHashMap<>();
 
     public void registerTunnel(ServerConfig.TunnelConfig config) {
         TunnelInfo info = new TunnelInfo();
         info.setConfig(config);
+        info.setLinks(new LinkGroup(LoadBalancers.create(config.getLoadBalance())));
+        if (config.getCache().isEnabled()) {
+            info.setResponseCache(new ResponseCache(config.getCache()));
+        }
         info.setStatus(TunnelStatus.WAITING);
         tunnels.put(config.getName(), info);
         log.info("Registered tunnel: {}, openPort: {}, agentPort: {}",
                 config.getName(), config.getOpenPort(), config.getAgentPort());
     }
 
-    public void agentConnected(String tunnelName, Channel agentChannel) {
-        TunnelInfo info = tunnels.get(tunnelName);
-        if (info != null) {
-            info.setAgentChannel(agentChannel);
-            info.setStatus(TunnelStatus.CONNECTED);
-            clientChannels.putIfAbsent(tunnelName, new ConcurrentHashMap<>());
-            clientHandlers.putIfAbsent(tunnelName, new ConcurrentHashMap<>());
-            log.info("Agent connected to tunnel: {}", tunnelName);
-        }
+    public AgentLink agentConnected(String tunnelName, String agentId, Channel agentChannel, LinkSession session) {
+        return agentConnected(tunnelName, agentId, agentChannel, session, new ArrayList<>());
     }
 
-    public void agentDisconnected(String tunnelName) {
+    /**
+     * 同一个Agent连接注册的多个隧道依次加入bundle，共用会话和流表，会话只按第一个登记
+     */
+    public AgentLink agentConnected(String tunnelName, String agentId, Channel agentChannel, LinkSession session,
+                                    List<AgentLink> bundle) {
         TunnelInfo info = tunnels.get(tunnelName);
-        if (info != null) {
-            info.setAgentChannel(null);
-            info.setStatus(TunnelStatus.DISCONNECTED);
-            // 清理所有客户端连接
-            Map<String, Channel> channels = clientChannels.remove(tunnelName);
-            if (channels != null) {
-                channels.values().forEach(Channel::close);
-            }
-            clientHandlers.remove(tunnelName);
-            log.info("Agent disconnected from tunnel: {}", tunnelName);
+        if (info == null) {
+            return null;
         }
+        AgentLink link = new AgentLink(tunnelName, agentId, agentChannel, session, info.getMetrics(), bundle);
+        info.getLinks().add(link);
+        if (session.isResumable() && bundle.get(0) == link) {
+            sessions.put(session.getToken(), link);
+        }
+        if (info.getStatus() != TunnelStatus.CONNECTED) {
+            info.setConnectedTime(System.currentTimeMillis());
+        }
+        info.setStatus(TunnelStatus.CONNECTED);
+        log.info("Agent connected to tunnel: {}, agent: {}, links: {}", tunnelName, agentId, info.getLinks().size());
+        return link;
     }
 
-    public void addClientChannel(String tunnelName, String channelId, Channel channel) {
-        clientChannels.computeIfAbsent(tunnelName, k -> new ConcurrentHashMap<>())
-                .put(channelId, channel);
-    }
-
-    public void addClientHandler(String tunnelName, String channelId, ClientProxyHandler handler) {
-        clientHandlers.computeIfAbsent(tunnelName, k -> new ConcurrentHashMap<>())
-                .put(channelId, handler);
+    /**
+     * 按token查找可恢复的链路
+     */
+    public AgentLink findSession(String token) {
+        return sessions.get(token);
     }
 
-    public Channel getClientChannel(String tunnelName, String channelId) {
-        Map<String, Channel> channels = clientChannels.get(tunnelName);
-        return channels != null ? channels.get(channelId) : null;
+    /**
+     * 可恢复的链路断开，流保留到宽限期结束，期间暂停读取客户端
+     */
+    public void agentSuspended(AgentLink link) {
+        for (TunnelStream stream : link.getStreams().values()) {
+            stream.onLinkWritabilityChanged(false);
+        }
+        log.warn("Agent link suspended, waiting for resume: tunnel={}, streams={}",
+                link.getTunnelName(), link.getStreams().size());
     }
 
-    public ClientProxyHandler getClientHandler(String tunnelName, String channelId) {
-        Map<String, ClientProxyHandler> handlers = clientHandlers.get(tunnelName);
-        return handlers != null ? handlers.get(channelId) : null;
+    /**
+     * Agent用新连接恢复了链路
+     */
+    public void agentResumed(AgentLink link) {
+        boolean writable = link.isWritable();
+        for (TunnelStream stream : link.getStreams().values()) {
+            stream.onLinkWritabilityChanged(writable);
+        }
+        log.info("Agent link resumed: tunnel={}, streams={}", link.getTunnelName(), link.getStreams().size());
     }
 
-    public void removeClientChannel(String tunnelName, String channelId) {
-        Map<String, Channel> channels = clientChannels.get(tunnelName);
-        if (channels != null) {
-            channels.remove(channelId);
+    public void agentDisconnected(AgentLink link) {
+        if (link.getSession().getToken() != null) {
+            sessions.remove(link.getSession().getToken(), link);
+        }
+        link.getSession().close();
+        TunnelInfo info = tunnels.get(link.getTunnelName());
+        if (info != null && info.getLinks().remove(link) && info.getLinks().isEmpty()) {
+            info.setStatus(TunnelStatus.DISCONNECTED);
         }
-        Map<String, ClientProxyHandler> handlers = clientHandlers.get(tunnelName);
-        if (handlers != null) {
-            handlers.remove(channelId);
+        // 只清理该链路上的客户端连接，其他链路上的流不受影响
+        for (TunnelStream stream : link.getStreams().drain()) {
+            stream.close();
         }
+        log.info("Agent link disconnected from tunnel: {}, agent: {}, remaining links: {}",
+                link.getTunnelName(), link.getAgentId(), info != null ? info.getLinks().size() : 0);
+    }
+
+    /**
+     * Agent准备停止：它的链路不再接收新流，已有的流继续直到结束
+     */
+    public void agentDraining(AgentLink link) {
+        link.setDraining(true);
+        log.info("Agent link draining: tunnel={}, agent={}, streams={}",
+                link.getTunnelName(), link.getAgentId(), link.getStreams().size());
     }
 
     public TunnelInfo getTunnel(String tunnelName) {
@@ -92,10 +127,22 @@ public class TunnelManager {
     @Data
     public static class TunnelInfo {
         private ServerConfig.TunnelConfig config;
-        private Channel agentChannel;
+        private LinkGroup links = new LinkGroup();
+        // 隧道所有链路共享的压缩统计
+        private final CompressionStats compressionStats = new CompressionStats();
         private TunnelStatus status;
+        // 第一条链路建立的时间
         private long connectedTime;
-        private long totalConnections;
+        // 隧道流量计数
+        private final TrafficMetrics metrics = new TrafficMetrics();
+        // 在openPort上终止TLS时的握手统计
+        private final TlsStats tlsStats = new TlsStats();
+        // 响应缓存，未启用时为null
+        private ResponseCache responseCache;
+
+        public long getTotalConnections() {
+            return metrics.getConnects();
+        }
     }
 
     public enum TunnelStatus {
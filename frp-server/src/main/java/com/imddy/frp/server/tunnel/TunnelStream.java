@@ -0,0 +1,44 @@
+package com.imddy.frp.server.tunnel;
+
+import com.imddy.frp.common.stream.StreamWindow;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+
+/**
+ * 服务端一条代理流：客户端Channel与处理它的Handler
+ */
+public interface TunnelStream {
+
+    Channel getChannel();
+
+    // 流所在的链路，多个隧道共用一条连接时据此把帧计入所属隧道
+    AgentLink getLink();
+
+    // 把Agent发来的数据写给客户端
+    default ChannelFuture write(ByteBuf data) {
+        return getChannel().writeAndFlush(data);
+    }
+
+    // 写入但不flush，批量写完后由调用方flush
+    default void enqueue(ByteBuf data) {
+        getChannel().write(data, getChannel().voidPromise());
+    }
+
+    // 关闭这条流，UDP会话共享同一个Channel，只释放会话本身
+    default void close() {
+        getChannel().close();
+    }
+
+    // 流控窗口
+    StreamWindow getWindow();
+
+    // Agent连接目标服务的结果回调
+    void onAgentConnected(boolean success);
+
+    // 收到Agent的WINDOW_UPDATE
+    void onWindowUpdate(int increment);
+
+    // Agent链路可写状态变化
+    void onLinkWritabilityChanged(boolean writable);
+}
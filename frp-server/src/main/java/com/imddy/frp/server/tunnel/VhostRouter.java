@@ -0,0 +1,192 @@
+package com.imddy.frp.server.tunnel;
+
+import com.imddy.frp.common.protocol.ProxyProtocol;
+import com.imddy.frp.server.config.ServerConfig;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 共享端口的虚拟主机路由表：按Host（HTTPS为SNI）和可选的路径前缀找到隧道。
+ * 启动时由配置编译生成，之后只读。精确域名和通配域名（*.example.com）分别放在HashMap里，
+ * 查找次数只与Host的层级数有关，与隧道数量无关；同一域名下的路径前缀按长度降序排列，取第一个匹配的。
+ */
+public class VhostRouter {
+    private final Map<String, Route[]> exact;
+    private final Map<String, Route[]> wildcard;
+    // 没有匹配时使用的隧道
+    private final String fallback;
+
+    private VhostRouter(Map<String, Route[]> exact, Map<String, Route[]> wildcard, String fallback) {
+        this.exact = exact;
+        this.wildcard = wildcard;
+        this.fallback = fallback;
+    }
+
+    /**
+     * 所有请求都路由到同一隧道，用于http隧道自己的openPort
+     */
+    public static VhostRouter single(String tunnelName) {
+        return new VhostRouter(Map.of(), Map.of(), tunnelName);
+    }
+
+    /**
+     * 用指定类型且配置了domains的隧道编译路由表，同一域名和路径前缀被多个隧道占用时抛出IllegalArgumentException
+     */
+    public static VhostRouter build(List<ServerConfig.TunnelConfig> tunnels, ProxyProtocol protocol) {
+        Map<String, List<Route>> exact = new HashMap<>();
+        Map<String, List<Route>> wildcard = new HashMap<>();
+        for (ServerConfig.TunnelConfig tunnel : tunnels) {
+            if (tunnel.getDomains() == null || tunnel.getProtocolType() != protocol) {
+                continue;
+            }
+            List<String> locations = tunnel.getLocations() == null || tunnel.getLocations().isEmpty()
+                    ? List.of("") : tunnel.getLocations();
+            for (String domain : tunnel.getDomains()) {
+                String host = normalizeHost(domain);
+                Map<String, List<Route>> table = exact;
+                if (host.startsWith("*.")) {
+                    host = host.substring(2);
+                    table = wildcard;
+                }
+                List<Route> routes = table.computeIfAbsent(host, k -> new ArrayList<>());
+                for (String location : locations) {
+                    String prefix = normalizePrefix(location);
+                    for (Route route : routes) {
+                        if (route.prefix.equals(prefix)) {
+                            throw new IllegalArgumentException("Duplicate vhost route: " + domain + prefix
+                                    + " (" + route.tunnelName + ", " + tunnel.getName() + ")");
+                        }
+                    }
+                    routes.add(new Route(prefix, tunnel.getName()));
+                }
+            }
+        }
+        return new VhostRouter(compile(exact), compile(wildcard), null);
+    }
+
+    private static Map<String, Route[]> compile(Map<String, List<Route>> table) {
+        Map<String, Route[]> compiled = new HashMap<>(table.size() * 2);
+        for (Map.Entry<String, List<Route>> entry : table.entrySet()) {
+            Route[] routes = entry.getValue().toArray(new Route[0]);
+            Arrays.sort(routes, Comparator.comparingInt((Route r) -> r.prefix.length()).reversed());
+            compiled.put(entry.getKey(), routes);
+        }
+        return compiled;
+    }
+
+    /**
+     * 返回隧道名，没有匹配时返回null。host是请求的Host头，uri是请求行中的URI
+     */
+    public String route(String host, String uri) {
+        if (host == null) {
+            return fallback;
+        }
+        String name = normalizeHost(host);
+        String path = pathOf(uri);
+        String tunnel = match(exact.get(name), path);
+        if (tunnel != null) {
+            return tunnel;
+        }
+        // 通配域名从最具体的后缀开始匹配：a.b.example.com依次查b.example.com、example.com、com
+        int dot = name.indexOf('.');
+        while (dot >= 0) {
+            tunnel = match(wildcard.get(name.substring(dot + 1)), path);
+            if (tunnel != null) {
+                return tunnel;
+            }
+            dot = name.indexOf('.', dot + 1);
+        }
+        return fallback;
+    }
+
+    public int size() {
+        return exact.size() + wildcard.size();
+    }
+
+    private static String match(Route[] routes, String path) {
+        if (routes == null) {
+            return null;
+        }
+        for (Route route : routes) {
+            if (route.matches(path)) {
+                return route.tunnelName;
+            }
+        }
+        return null;
+    }
+
+    // 小写，去掉端口和末尾的点；IPv6字面量保留方括号
+    static String normalizeHost(String host) {
+        String h = host.trim().toLowerCase(Locale.ROOT);
+        if (h.startsWith("[")) {
+            int end = h.indexOf(']');
+            return end > 0 ? h.substring(0, end + 1) : h;
+        }
+        int colon = h.indexOf(':');
+        if (colon >= 0) {
+            h = h.substring(0, colon);
+        }
+        if (h.endsWith(".")) {
+            h = h.substring(0, h.length() - 1);
+        }
+        return h;
+    }
+
+    // 空串和"/"都表示整个域名，其他前缀去掉末尾的"/"
+    private static String normalizePrefix(String location) {
+        String prefix = location == null ? "" : location.trim();
+        if (!prefix.isEmpty() && !prefix.startsWith("/")) {
+            prefix = "/" + prefix;
+        }
+        while (prefix.endsWith("/")) {
+            prefix = prefix.substring(0, prefix.length() - 1);
+        }
+        return prefix;
+    }
+
+    // 绝对形式的URI（http://host/path）只取路径部分
+    private static String pathOf(String uri) {
+        if (uri == null || uri.isEmpty()) {
+            return "/";
+        }
+        if (uri.charAt(0) != '/') {
+            int scheme = uri.indexOf("://");
+            if (scheme >= 0) {
+                int slash = uri.indexOf('/', scheme + 3);
+                return slash >= 0 ? uri.substring(slash) : "/";
+            }
+        }
+        return uri;
+    }
+
+    private static final class Route {
+        private final String prefix;
+        private final String tunnelName;
+
+        Route(String prefix, String tunnelName) {
+            this.prefix = prefix;
+            this.tunnelName = tunnelName;
+        }
+
+        // 按路径段匹配：/api匹配/api、/api/x、/api?x，不匹配/apix
+        boolean matches(String path) {
+            if (prefix.isEmpty()) {
+                return true;
+            }
+            if (!path.startsWith(prefix)) {
+                return false;
+            }
+            if (path.length() == prefix.length()) {
+                return true;
+            }
+            char next = path.charAt(prefix.length());
+            return next == '/' || next == '?' || next == '#';
+        }
+    }
+}